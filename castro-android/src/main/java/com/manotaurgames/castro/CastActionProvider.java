@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.support.v7.app.MediaRouteActionProvider;
+
+/**
+ * A {@link MediaRouteActionProvider} that also shows the cast button for recently seen devices,
+ * while MediaRouter is still rediscovering them.
+ */
+public class CastActionProvider extends MediaRouteActionProvider {
+
+    private RouteCache mRouteCache;
+
+    public CastActionProvider(Context context) {
+        super(context);
+    }
+
+    void setRouteCache(RouteCache routeCache) {
+        mRouteCache = routeCache;
+        refreshVisibility();
+    }
+
+    @Override
+    public boolean isVisible() {
+        return super.isVisible() || (mRouteCache != null && mRouteCache.hasLiveRoutes());
+    }
+}
@@ -16,9 +16,6 @@
 
 package com.manotaurgames.castro;
 
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.view.Menu;
@@ -59,12 +56,7 @@ public abstract class CastActivity extends AppCompatActivity implements CastLogi
         if (mCastAppIdRes != null) {
             return getString(mCastAppIdRes);
         }
-        try {
-            ApplicationInfo ai = getPackageManager().getApplicationInfo(getPackageName(), PackageManager.GET_META_DATA);
-            return (String) ai.metaData.get("GoogleCastId");
-        } catch (NameNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        return CastLogic.getManifestCastAppId(this);
     }
 
     @Override
@@ -107,4 +99,11 @@ public abstract class CastActivity extends AppCompatActivity implements CastLogi
         return mCastLogic.getSessionId();
     }
 
+    /**
+     * For tuning the underlying {@link CastLogic}, e.g. from onCreate.
+     */
+    public final CastLogic getCastLogic() {
+        return mCastLogic;
+    }
+
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks images to the receiver's screen before they are cast, and serves them with the
+ * {@link CastMediaServer}.
+ *
+ * Images larger than the target size are decoded with subsampling, scaled to fit and re-encoded on a
+ * background pool, and kept in an {@link AssetCache} keyed by source and target size, so casting the
+ * same image again costs nothing. Images that already fit are served as they are. A published image
+ * is pinned in the cache until it is {@link #release released}, so eviction never pulls a file out
+ * from under the receiver.
+ *
+ * The target size defaults to 1920x1080. Cast devices do not report their output resolution to
+ * senders, so a 720p receiver gets images larger than it needs and a 4K one gets them smaller. If
+ * the receiver knows its screen size (e.g. from {@code window.innerWidth}), send it over a channel
+ * and pass it to {@link #setTargetSize}.
+ *
+ * {@link CastLogic#getAssets()} returns the session's. Call it on the main thread; callbacks
+ * arrive on the main thread.
+ */
+public class CastAssets {
+
+    private static final String TAG = CastAssets.class.getSimpleName();
+
+    private static final int THREADS = 2;
+    private static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * Receives the URL the receiver can load an asset from.
+     */
+    public interface Callback {
+
+        void onReady(String url);
+
+        void onFailure(IOException error);
+    }
+
+    /**
+     * A shrunk image and its format, worked out on the pool so the main thread never reads the disk.
+     */
+    private static final class Transcoded {
+
+        final String key;
+        final File file;
+        final String contentType;
+
+        Transcoded(String key, File file, String contentType) {
+            this.key = key;
+            this.file = file;
+            this.contentType = contentType;
+        }
+    }
+
+    private static final Executor sExecutor;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private final ContentResolver mResolver;
+    private final CastMediaServer mServer;
+    private final AssetCache mCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Most receivers output 1080p
+    private int mTargetWidth = 1920;
+    private int mTargetHeight = 1080;
+    // Published URL to the cache entry it pins
+    private final Map<String, String> mPublished = new HashMap<>();
+
+    CastAssets(Context context, CastMediaServer server) {
+        mResolver = context.getContentResolver();
+        mServer = server;
+        mCache = new AssetCache(new File(context.getCacheDir(), "castro-assets"), DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * The box images are scaled to fit, e.g. 1280x720 for a 720p receiver. Defaults to 1920x1080,
+     * since the sender can't ask the device. Images cached for the old size are left to age out.
+     */
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
+    public AssetCache getCache() {
+        return mCache;
+    }
+
+    public void prepare(File file, Callback callback) {
+        prepare(Uri.fromFile(file), callback);
+    }
+
+    /**
+     * Shrink an image if needed and publish it.
+     */
+    public void prepare(final Uri source, final Callback callback) {
+        final int width = mTargetWidth;
+        final int height = mTargetHeight;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Transcoded transcoded = transcode(source, width, height);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            String url = transcoded != null
+                                    ? mServer.publish(transcoded.file, transcoded.contentType) : mServer.publish(source);
+                            if (url != null) {
+                                if (transcoded != null) {
+                                    mPublished.put(url, transcoded.key);
+                                }
+                                callback.onReady(url);
+                            } else {
+                                if (transcoded != null) {
+                                    releaseLater(transcoded.key);
+                                }
+                                callback.onFailure(new IOException("Media server is not running"));
+                            }
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "could not prepare " + source, e);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onFailure(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop serving a URL from {@link Callback#onReady}, and let the cache evict its file.
+     */
+    public void release(String url) {
+        mServer.unpublish(url);
+        String key = mPublished.remove(url);
+        if (key != null) {
+            releaseLater(key);
+        }
+    }
+
+    /**
+     * Stop serving every prepared asset, e.g. when the session ends.
+     */
+    public void releaseAll() {
+        for (Map.Entry<String, String> entry : mPublished.entrySet()) {
+            mServer.unpublish(entry.getKey());
+            releaseLater(entry.getValue());
+        }
+        mPublished.clear();
+    }
+
+    private void releaseLater(final String key) {
+        // Releasing may delete the file
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCache.release(key);
+            }
+        });
+    }
+
+    /**
+     * @return the shrunk image, pinned in the cache until released, or null if the source already
+     * fits. Pool threads only.
+     */
+    private Transcoded transcode(Uri source, int width, int height) throws IOException {
+        // The size in the key makes an edited file a new entry
+        String key = source + "|" + statSize(source) + "@" + width + "x" + height;
+        File cached = mCache.acquire(key);
+        if (cached != null) {
+            return new Transcoded(key, cached, contentTypeOf(cached));
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + source);
+        }
+        float scale = Math.min((float) width / options.outWidth, (float) height / options.outHeight);
+        if (scale >= 1) {
+            return null;
+        }
+        int targetWidth = Math.max(1, Math.round(options.outWidth * scale));
+        int targetHeight = Math.max(1, Math.round(options.outHeight * scale));
+        // Let the decoder drop whole powers of two, and scale the rest
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= targetWidth
+                && options.outHeight / (options.inSampleSize * 2) >= targetHeight) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = decode(source, options);
+        if (decoded == null) {
+            throw new IOException("Could not decode " + source);
+        }
+        final Bitmap scaled = decoded.getWidth() == targetWidth && decoded.getHeight() == targetHeight
+                ? decoded : Bitmap.createScaledBitmap(decoded, targetWidth, targetHeight, true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        final Bitmap.CompressFormat format = scaled.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+        try {
+            File file = mCache.putAndAcquire(key, new AssetCache.Writer() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    if (!scaled.compress(format, JPEG_QUALITY, out)) {
+                        throw new IOException("Could not encode");
+                    }
+                }
+            });
+            return new Transcoded(key, file, format == Bitmap.CompressFormat.PNG ? "image/png" : "image/jpeg");
+        } finally {
+            scaled.recycle();
+        }
+    }
+
+    private Bitmap decode(Uri source, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(source);
+        if (in == null) {
+            throw new IOException("Could not open " + source);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private long statSize(Uri source) throws IOException {
+        ParcelFileDescriptor fd = mResolver.openFileDescriptor(source, "r");
+        if (fd == null) {
+            throw new IOException("Could not open " + source);
+        }
+        try {
+            return fd.getStatSize();
+        } finally {
+            fd.close();
+        }
+    }
+
+    /**
+     * Sniffs a cached file's format. Pool threads only, it reads the disk.
+     */
+    private static String contentTypeOf(File file) {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                // PNG files start with 0x89 'P' 'N' 'G'
+                return in.read() == 0x89 ? "image/png" : "image/jpeg";
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return "image/jpeg";
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastStatusCodes;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+/**
+ * Outgoing message pipeline for a single custom namespace.
+ *
+ * Messages are queued and handed to {@link Cast.CastApi#sendMessage} from the main thread with a
+ * bounded number of requests in flight. When batching is enabled, messages queued within the flush
+ * delay are coalesced into one frame, which the receiver sees as a JSON array of strings.
+ * The queueing itself lives in castro-core's {@link MessagePipeline}.
+ *
+ * With {@link Builder#setJournal} the channel holds on to messages until the receiver has them, and
+ * replays whatever a dropped connection lost on the next {@link #attach}.
+ *
+ * {@link #send(String)} may be called from any thread. {@link Listener} callbacks arrive on the main thread.
+ */
+public class CastChannel {
+
+    /**
+     * What {@link #send(String)} does when the queue is full.
+     */
+    public enum Backpressure {
+        /** Evict the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Wait for room, up to the configured block timeout. Not allowed on the main thread. */
+        BLOCK,
+        /** Refuse the new message. */
+        REJECT
+    }
+
+    /**
+     * Which lane a message is queued in. Realtime messages jump ahead of everything queued, and bulk
+     * traffic is rate-limited while they are flowing.
+     */
+    public enum Priority {
+        /** Player input and anything else that must not wait. */
+        REALTIME,
+        /** Everything else; what {@link #send(String)} uses. */
+        NORMAL,
+        /** Asset and state uploads. */
+        BULK
+    }
+
+    /**
+     * Receives the channel's flow control signals.
+     */
+    public interface Listener {
+
+        /**
+         * Gets called when the queue fills up, and again once it has drained to half capacity.
+         * @param congested true when the receiver has fallen behind.
+         */
+        void onBackpressure(CastChannel channel, boolean congested);
+
+        /**
+         * Gets called for every message evicted under {@link Backpressure#DROP_OLDEST}.
+         */
+        void onMessageDropped(CastChannel channel, String message);
+
+        /**
+         * Gets called when the receiver did not accept a frame.
+         * @param frame the frame as it was sent, possibly a batch of several messages.
+         * @param statusCode the {@link CastStatusCodes} value reported for the send.
+         */
+        void onSendFailed(CastChannel channel, String frame, int statusCode);
+    }
+
+    private static final MessagePipeline.Priority[] LANES = MessagePipeline.Priority.values();
+
+    private final MessagePipeline mPipeline;
+
+    private CastChannel(Builder builder) {
+        final Listener listener = builder.listener;
+        if (listener != null) {
+            builder.pipeline.setListener(new MessagePipeline.Listener() {
+                @Override
+                public void onBackpressure(boolean congested) {
+                    listener.onBackpressure(CastChannel.this, congested);
+                }
+
+                @Override
+                public void onMessageDropped(String message) {
+                    listener.onMessageDropped(CastChannel.this, message);
+                }
+
+                @Override
+                public void onSendFailed(String frame, int statusCode) {
+                    listener.onSendFailed(CastChannel.this, frame, statusCode);
+                }
+            });
+        }
+        mPipeline = builder.pipeline.build();
+    }
+
+    public final String getNamespace() {
+        return mPipeline.getNamespace();
+    }
+
+    /**
+     * Start sending on the given client. Anything queued while detached goes out right away.
+     */
+    public void attach(GoogleApiClient apiClient) {
+        mPipeline.attach(new GmsMessageSender(apiClient));
+    }
+
+    /**
+     * Stop sending. Queued messages are kept until the next {@link #attach} or {@link #clear()}.
+     */
+    public void detach() {
+        mPipeline.detach();
+    }
+
+    /**
+     * Discard everything still waiting in the queue.
+     */
+    public void clear() {
+        mPipeline.clear();
+    }
+
+    public int getQueueDepth() {
+        return mPipeline.getQueueDepth();
+    }
+
+    public int getQueueDepth(Priority priority) {
+        return mPipeline.getQueueDepth(LANES[priority.ordinal()]);
+    }
+
+    public int getInFlightCount() {
+        return mPipeline.getInFlightCount();
+    }
+
+    /**
+     * Time from {@link #send} to the send result of the frame that carried it, for one lane.
+     */
+    public LatencyHistogram getLatency(Priority priority) {
+        return mPipeline.getLatency(LANES[priority.ordinal()]);
+    }
+
+    /**
+     * Queue a message for the receiver at {@link Priority#NORMAL}.
+     * @return false if the message was refused because the queue is full.
+     */
+    public boolean send(String message) {
+        return mPipeline.send(message);
+    }
+
+    /**
+     * Queue a message for the receiver in the given lane. Each lane has its own queue.
+     * @return false if the message was refused because its queue is full.
+     */
+    public boolean send(String message, Priority priority) {
+        return mPipeline.send(message, LANES[priority.ordinal()]);
+    }
+
+    /**
+     * Queue a message that replaces any earlier message with the same key still waiting to be sent
+     * or replayed, e.g. the latest score.
+     * @return false if the message was refused because its queue is full.
+     */
+    public boolean send(String message, Priority priority, String key) {
+        return mPipeline.send(message, LANES[priority.ordinal()], key);
+    }
+
+    /**
+     * Send everything queued without waiting for the flush delay.
+     */
+    public void flush() {
+        mPipeline.flush();
+    }
+
+    /**
+     * Builds a {@link CastChannel}. The defaults send every message as its own frame,
+     * four at a time, drop the oldest message once 64 are waiting in a lane, and hold bulk
+     * traffic to 32K characters a second while realtime messages are flowing.
+     */
+    public static class Builder {
+
+        private final MessagePipeline.Builder pipeline;
+        private Listener listener;
+
+        public Builder(String namespace) {
+            pipeline = new MessagePipeline.Builder(namespace, MainThreadScheduler.get());
+        }
+
+        public Builder setMaxQueuedMessages(int maxQueued) {
+            pipeline.setMaxQueuedMessages(maxQueued);
+            return this;
+        }
+
+        public Builder setMaxInFlight(int maxInFlight) {
+            pipeline.setMaxInFlight(maxInFlight);
+            return this;
+        }
+
+        /**
+         * Coalesce messages queued within flushDelayMs into one JSON array frame of at most maxFrameLength
+         * UTF-8 bytes. A message too big for a frame once escaped goes out on its own, unbatched.
+         */
+        public Builder setBatching(int maxFrameLength, long flushDelayMs) {
+            pipeline.setBatching(maxFrameLength, flushDelayMs);
+            return this;
+        }
+
+        public Builder setBackpressure(Backpressure backpressure) {
+            pipeline.setBackpressure(MessagePipeline.Backpressure.valueOf(backpressure.name()));
+            return this;
+        }
+
+        /**
+         * How long {@link Backpressure#BLOCK} waits for room before refusing a message.
+         */
+        public Builder setBlockTimeout(long blockTimeoutMs) {
+            pipeline.setBlockTimeout(blockTimeoutMs);
+            return this;
+        }
+
+        /**
+         * Keep messages until they are delivered and replay the ones lost to a dropped connection.
+         * @param ttlMs give up on messages still waiting this long after they were sent, 0 to never.
+         */
+        public Builder setJournal(long ttlMs) {
+            pipeline.setJournal(ttlMs);
+            return this;
+        }
+
+        /**
+         * Hold {@link Priority#BULK} to charsPerSecond for realtimeHoldMs after each realtime message.
+         * @param charsPerSecond 0 to never hold bulk back.
+         */
+        public Builder setBulkRateLimit(int charsPerSecond, long realtimeHoldMs) {
+            pipeline.setBulkRateLimit(charsPerSecond, realtimeHoldMs);
+            return this;
+        }
+
+        public Builder setListener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder setMetrics(CastMetrics metrics) {
+            pipeline.setMetrics(metrics);
+            return this;
+        }
+
+        public CastChannel build() {
+            return new CastChannel(this);
+        }
+    }
+}
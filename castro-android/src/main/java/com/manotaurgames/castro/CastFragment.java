@@ -17,9 +17,6 @@
 package com.manotaurgames.castro;
 
 import android.app.Activity;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.support.v4.app.Fragment;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -60,13 +57,7 @@ public abstract class CastFragment extends Fragment implements CastLogicCallback
         if (mCastAppIdRes != null) {
             return getString(mCastAppIdRes);
         }
-        Activity a = getActivity();
-        try {
-            ApplicationInfo ai = a.getPackageManager().getApplicationInfo(a.getPackageName(), PackageManager.GET_META_DATA);
-            return (String) ai.metaData.get("GoogleCastId");
-        } catch (NameNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        return CastLogic.getManifestCastAppId(getActivity());
     }
 
     @Override
@@ -109,4 +100,11 @@ public abstract class CastFragment extends Fragment implements CastLogicCallback
         return mCastLogic.getSessionId();
     }
 
+    /**
+     * For tuning the underlying {@link CastLogic}, e.g. from onCreate.
+     */
+    public final CastLogic getCastLogic() {
+        return mCastLogic;
+    }
+
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.support.v7.media.MediaRouter.RouteInfo;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Independent sessions with several receivers at once, e.g. one per TV in a party game.
+ *
+ * Every member has its own connection, reconnect backoff and {@link MessagePipeline}, so a slow or
+ * flaky TV fills only its own queue and the others carry on. {@link #broadcast} queues a message for
+ * every connected member, and each pipeline sends it on its own. Members are added straight from
+ * MediaRouter's route list, without selecting the route, which only allows one.
+ *
+ * Call it on the main thread. {@link Listener} callbacks arrive there too.
+ */
+public class CastGroup {
+
+    private static final String TAG = CastGroup.class.getSimpleName();
+
+    /**
+     * Follows the members' connections.
+     */
+    public interface Listener {
+        void onMemberConnected(String routeId, boolean isReconnect);
+
+        /**
+         * The member lost its session, or never got one because its first connect failed. It stays in
+         * the group, idle, until it is removed, or {@link #add}ed again to reconnect it.
+         */
+        void onMemberDisconnected(String routeId);
+    }
+
+    /**
+     * How one member is doing, as of {@link #getHealth()}.
+     */
+    public static final class Health {
+        public final String routeId;
+        public final String name;
+        public final ConnectionState state;
+        /** Messages waiting in the member's queue. */
+        public final int queueDepth;
+        public final long framesSent;
+        public final long framesFailed;
+        public final long messagesDropped;
+        public final long reconnects;
+        /** Send latency, from handing a frame to Play services to its result. */
+        public final long meanSendMs;
+        public final long p95SendMs;
+
+        Health(Member member) {
+            routeId = member.routeId;
+            name = member.name;
+            state = member.engine.getStateMachine().getState();
+            queueDepth = member.pipeline.getQueueDepth();
+            framesSent = member.sendLatency.getCount();
+            framesFailed = member.framesFailed;
+            messagesDropped = member.messagesDropped;
+            reconnects = member.reconnects;
+            meanSendMs = member.sendLatency.getMean();
+            p95SendMs = member.sendLatency.getPercentile(95);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + state + " queued=" + queueDepth + " sent=" + framesSent + " failed=" + framesFailed
+                    + " dropped=" + messagesDropped + " reconnects=" + reconnects
+                    + " send=" + meanSendMs + "ms p95=" + p95SendMs + "ms";
+        }
+    }
+
+    private final Context mContext;
+    private final String mCastAppId;
+    private final String mNamespace;
+    private final int mMaxQueuedMessages;
+    private final Map<String, Member> mMembers = new LinkedHashMap<>();
+    private ReconnectPolicy mReconnectPolicy = new ReconnectPolicy.Builder().build();
+    private Listener mListener;
+    private Cast.MessageReceivedCallback mReceiver;
+
+    public CastGroup(Context context, String castAppId, String namespace) {
+        this(context, castAppId, namespace, 64);
+    }
+
+    /**
+     * @param maxQueuedMessages per member; a member that falls further behind loses its oldest messages.
+     */
+    public CastGroup(Context context, String castAppId, String namespace, int maxQueuedMessages) {
+        mContext = context.getApplicationContext();
+        mCastAppId = castAppId;
+        mNamespace = namespace;
+        mMaxQueuedMessages = maxQueuedMessages;
+    }
+
+    public String getNamespace() {
+        return mNamespace;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Applies to members added from now on.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Gets the messages every member's receiver sends on the namespace; the CastDevice says which.
+     */
+    public void setMessageReceivedCallback(Cast.MessageReceivedCallback callback) {
+        for (Member member : mMembers.values()) {
+            member.setReceiver(mReceiver, callback);
+        }
+        mReceiver = callback;
+    }
+
+    /**
+     * Connect to the route's device and launch the app there. Adding an idle member, one that was
+     * reported disconnected, reconnects it.
+     * @return false if the route isn't a cast device or is already a member that is connected or
+     *         connecting.
+     */
+    public boolean add(RouteInfo route) {
+        CastDevice device = CastDevice.getFromBundle(route.getExtras());
+        if (device == null) {
+            return false;
+        }
+        Member member = mMembers.get(route.getId());
+        if (member == null) {
+            member = new Member(route.getId(), route.getName(), device);
+            member.setReceiver(null, mReceiver);
+            mMembers.put(member.routeId, member);
+        } else if (member.engine.getStateMachine().getState() == ConnectionState.IDLE) {
+            // The device may have moved since, e.g. to a new address
+            member.device = device;
+        } else {
+            return false;
+        }
+        member.connectedOnce = false;
+        member.engine.select(member.routeId, device.getDeviceId(), null);
+        return true;
+    }
+
+    /**
+     * Stop the app on the route's device and disconnect.
+     */
+    public void remove(String routeId) {
+        Member member = mMembers.remove(routeId);
+        if (member != null) {
+            member.engine.teardown(false);
+        }
+    }
+
+    public void removeAll() {
+        for (String routeId : new ArrayList<>(mMembers.keySet())) {
+            remove(routeId);
+        }
+    }
+
+    public int size() {
+        return mMembers.size();
+    }
+
+    /**
+     * Queue a message for every connected member.
+     * @return how many members took it.
+     */
+    public int broadcast(String message) {
+        int queued = 0;
+        for (Member member : mMembers.values()) {
+            if (member.engine.getConnectedConnection() != null && member.pipeline.send(message)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Queue a message for one member.
+     * @return false if it isn't connected.
+     */
+    public boolean send(String routeId, String message) {
+        Member member = mMembers.get(routeId);
+        return member != null && member.engine.getConnectedConnection() != null && member.pipeline.send(message);
+    }
+
+    public List<Health> getHealth() {
+        List<Health> health = new ArrayList<>(mMembers.size());
+        for (Member member : mMembers.values()) {
+            health.add(new Health(member));
+        }
+        return Collections.unmodifiableList(health);
+    }
+
+    /**
+     * One receiver, with its own session and queue.
+     */
+    private final class Member extends CastMetrics
+            implements SessionEngine.Listener, ReceiverConnection.Factory, MessagePipeline.Listener {
+
+        final String routeId;
+        final String name;
+        CastDevice device;
+        final SessionEngine engine;
+        final MessagePipeline pipeline;
+        // Installed on every connect and taken off on disconnect, like a session's
+        final MessageRoutes routes = new MessageRoutes();
+        final LatencyHistogram sendLatency = new LatencyHistogram();
+        long framesFailed;
+        long messagesDropped;
+        long reconnects;
+        // Whether the current add() got as far as a session, so a failed first connect is reported
+        boolean connectedOnce;
+
+        Member(String routeId, String name, CastDevice device) {
+            this.routeId = routeId;
+            this.name = name;
+            this.device = device;
+            engine = new SessionEngine(mCastAppId, this, MainThreadScheduler.get(), this);
+            engine.setReconnectPolicy(mReconnectPolicy);
+            engine.setMetrics(this);
+            pipeline = new MessagePipeline.Builder(mNamespace, MainThreadScheduler.get())
+                    .setMaxQueuedMessages(mMaxQueuedMessages)
+                    .setBackpressure(MessagePipeline.Backpressure.DROP_OLDEST)
+                    .setListener(this)
+                    .setMetrics(this)
+                    .build();
+        }
+
+        GoogleApiClient apiClient() {
+            ReceiverConnection connection = engine.getConnectedConnection();
+            return connection != null ? ((GmsReceiverConnection) connection).getApiClient() : null;
+        }
+
+        void setReceiver(Cast.MessageReceivedCallback previous, Cast.MessageReceivedCallback receiver) {
+            if (previous != null) {
+                routes.unregister(mNamespace, previous);
+            }
+            if (receiver != null) {
+                routes.register(mNamespace, receiver);
+            }
+        }
+
+        @Override
+        public ReceiverConnection open(String routeId, String deviceId, ReceiverConnection.Callbacks callbacks) {
+            return new GmsReceiverConnection(mContext, device, callbacks);
+        }
+
+        @Override
+        public void onConnect(boolean isReconnect) {
+            connectedOnce = true;
+            GoogleApiClient apiClient = apiClient();
+            pipeline.attach(new GmsMessageSender(apiClient));
+            routes.attach(apiClient);
+            if (mListener != null) mListener.onMemberConnected(routeId, isReconnect);
+        }
+
+        @Override
+        public void onDisconnect() {
+            pipeline.detach();
+            routes.detach();
+            if (mListener != null) mListener.onMemberDisconnected(routeId);
+        }
+
+        @Override
+        public void onSessionStarted(String routeId, String deviceId, String sessionId) {
+        }
+
+        @Override
+        public void onSessionForgotten() {
+        }
+
+        @Override
+        public void onTeardown(boolean selectDefaultRoute) {
+            pipeline.clear();
+            // A session that was up has already been reported by onDisconnect, a removed member isn't
+            if (!connectedOnce && mMembers.get(routeId) == this) {
+                connectedOnce = true;
+                if (mListener != null) mListener.onMemberDisconnected(routeId);
+            }
+        }
+
+        @Override
+        public void onReconnectScheduled(int attempt, long delayMs, int errorCode) {
+        }
+
+        @Override
+        public void onReconnected(int attempts, long elapsedMs) {
+            reconnects++;
+        }
+
+        @Override
+        public void onReconnectAbandoned(int attempts, long elapsedMs, int errorCode) {
+            Log.d(TAG, name + " gave up reconnecting after " + attempts + " attempts");
+        }
+
+        @Override
+        public void onBackpressure(boolean congested) {
+            Log.d(TAG, name + (congested ? " is falling behind" : " caught up"));
+        }
+
+        @Override
+        public void onMessageDropped(String message) {
+            messagesDropped++;
+        }
+
+        @Override
+        public void onSendFailed(String frame, int statusCode) {
+        }
+
+        @Override
+        public void onFrameSent(String namespace, int messageCount, long queuedMs, long sendMs, int statusCode) {
+            if (statusCode == MessagePipeline.STATUS_SUCCESS) {
+                sendLatency.record(sendMs);
+            } else {
+                framesFailed++;
+            }
+        }
+    }
+}
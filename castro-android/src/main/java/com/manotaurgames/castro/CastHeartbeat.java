@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+/**
+ * Application-level heartbeat that catches a dead receiver within a set time, where Play services
+ * can take minutes.
+ *
+ * Pings {@code {"ping":3}} go out on a reserved namespace only when the receiver has gone quiet, and
+ * the receiver answers {@code {"pong":3}}; see receiver/castro-heartbeat.js. Any message from the
+ * receiver on any routed namespace counts as an answer. A receiver silent for the whole timeout is
+ * dropped and rejoined according to the {@link ReconnectPolicy}, which ends the session if it gives up.
+ *
+ * {@link CastLogic#getHeartbeat()} runs one for the session. Call it on the main thread.
+ */
+public class CastHeartbeat implements Cast.MessageReceivedCallback, HeartbeatMonitor.Listener {
+
+    public static final String NAMESPACE = "urn:x-cast:com.manotaurgames.castro.heartbeat";
+
+    private final CastSession mSession;
+    private final HeartbeatMonitor mMonitor = new HeartbeatMonitor(MainThreadScheduler.get(), this);
+    private final CastChannel mChannel = new CastChannel.Builder(NAMESPACE)
+            .setMaxQueuedMessages(2)
+            .build();
+
+    CastHeartbeat(CastSession session) {
+        mSession = session;
+    }
+
+    /**
+     * @param timeoutMs how long the receiver may stay silent before it is declared dead.
+     */
+    public void setTimeout(long timeoutMs) {
+        mMonitor.setTimeout(timeoutMs);
+    }
+
+    public HeartbeatMonitor getMonitor() {
+        return mMonitor;
+    }
+
+    void start(GoogleApiClient apiClient) {
+        mChannel.attach(apiClient);
+        mMonitor.start();
+    }
+
+    void stop() {
+        mMonitor.stop();
+        mChannel.detach();
+        mChannel.clear();
+    }
+
+    @Override
+    public void onPing(int seq) {
+        // Realtime so it isn't stuck behind the traffic it is standing in for
+        mChannel.send("{\"ping\":" + seq + "}", CastChannel.Priority.REALTIME);
+    }
+
+    @Override
+    public void onDead(long silenceMs) {
+        mChannel.detach();
+        mChannel.clear();
+        mSession.onReceiverUnresponsive();
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        // The router has already counted it
+    }
+}
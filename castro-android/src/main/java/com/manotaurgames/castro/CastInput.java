@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Sends controller input at most once per display frame, or at a fixed rate, instead of once per
+ * touch or sensor event.
+ *
+ * Events only update the latest value of their key in an {@link InputCoalescer}. On the next frame the
+ * keys that changed go out together as one realtime message on the {@link CastChannel}. Nothing is
+ * scheduled while the input is idle. Frames come from the {@link Choreographer} on Jelly Bean and
+ * up, and from a 60Hz timer before that.
+ *
+ * Realtime messages can be dropped, which could leave the receiver holding a button the player has
+ * let go. So every key goes out on the first frame after {@link #start()}, after a refused send, and
+ * a second after any other frame, which means once a second while input is flowing and once more
+ * after it stops. Call {@link #resync()} to send them all from your own
+ * {@link CastChannel.Listener}, e.g. in onMessageDropped.
+ *
+ * Start it from onCastConnect and stop it from onCastDisconnect, e.g. in a {@link CastActivity}.
+ * The set methods may be called from any thread.
+ */
+public class CastInput {
+
+    private static final long FALLBACK_FRAME_MS = 16;
+    private static final long DEFAULT_KEYFRAME_MS = 1000;
+
+    private final CastChannel mChannel;
+    private final InputCoalescer mInput = new InputCoalescer();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mFrame = new StringBuilder(128);
+    private final FrameScheduler mFrames;
+    private long mMinIntervalMs;
+    private long mKeyframeIntervalMs = DEFAULT_KEYFRAME_MS;
+    private long mLastFlushAt;
+    // Main thread only
+    private boolean mStarted;
+    private boolean mFrameScheduled;
+    private boolean mKeyframeScheduled;
+    // The next frame is the full state, which doesn't need one of its own to follow it
+    private boolean mKeyframePending;
+
+    private final Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            scheduleFrame();
+        }
+    };
+
+    private final Runnable mKeyframe = new Runnable() {
+        @Override
+        public void run() {
+            mKeyframeScheduled = false;
+            mKeyframePending = true;
+            mInput.resync();
+            scheduleFrame();
+        }
+    };
+
+    public CastInput(CastChannel channel) {
+        mChannel = channel;
+        mFrames = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new ChoreographerFrames() : new HandlerFrames();
+    }
+
+    public final InputCoalescer getInput() {
+        return mInput;
+    }
+
+    /**
+     * Flush at most hz times a second, on the first display frame after each interval.
+     * @param hz 0, the default, for every display frame.
+     */
+    public void setRate(int hz) {
+        mMinIntervalMs = hz > 0 ? 1000 / hz : 0;
+    }
+
+    /**
+     * How long after a frame to send every key again, in case it was dropped.
+     * @param intervalMs 0 to never; defaults to a second.
+     */
+    public void setKeyframeInterval(long intervalMs) {
+        mKeyframeIntervalMs = intervalMs;
+    }
+
+    /**
+     * @param deadZone axes closer to zero than this read as zero.
+     */
+    public void setDeadZone(double deadZone) {
+        mInput.setDefaultDeadZone(deadZone);
+    }
+
+    public void setDeadZone(String key, double deadZone) {
+        mInput.setDeadZone(key, deadZone);
+    }
+
+    public void set(String key, double value) {
+        if (mInput.set(key, value)) {
+            requestFrame();
+        }
+    }
+
+    public void set(String key, boolean pressed) {
+        if (mInput.set(key, pressed)) {
+            requestFrame();
+        }
+    }
+
+    /**
+     * Start sending. Call on the main thread.
+     */
+    public void start() {
+        mStarted = true;
+        // The receiver may have nothing yet
+        mInput.resync();
+        mKeyframePending = mInput.hasChanges();
+        scheduleFrame();
+    }
+
+    /**
+     * Send every key on the next frame, not just the ones that changed.
+     */
+    public void resync() {
+        mInput.resync();
+        requestFrame();
+    }
+
+    /**
+     * Stop sending. Input keeps being coalesced, and goes out on the next {@link #start()}.
+     */
+    public void stop() {
+        mStarted = false;
+        if (mFrameScheduled) {
+            mFrames.cancel();
+            mFrameScheduled = false;
+        }
+        if (mKeyframeScheduled) {
+            mHandler.removeCallbacks(mKeyframe);
+            mKeyframeScheduled = false;
+        }
+    }
+
+    private void requestFrame() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            scheduleFrame();
+        } else {
+            mHandler.post(mSchedule);
+        }
+    }
+
+    private void scheduleFrame() {
+        if (mStarted && !mFrameScheduled && mInput.hasChanges()) {
+            mFrameScheduled = true;
+            mFrames.post();
+        }
+    }
+
+    private void onFrame() {
+        mFrameScheduled = false;
+        if (!mStarted) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mMinIntervalMs > 0 && now - mLastFlushAt < mMinIntervalMs) {
+            // Too early at this rate, try the next display frame
+            mFrameScheduled = true;
+            mFrames.post();
+            return;
+        }
+        mFrame.setLength(0);
+        if (mInput.writeFrame(mFrame)) {
+            mLastFlushAt = now;
+            if (!mChannel.send(mFrame.toString(), CastChannel.Priority.REALTIME)) {
+                // Refused, so the receiver is behind on whatever this frame carried
+                mInput.resync();
+                mKeyframePending = true;
+            } else if (mKeyframePending) {
+                mKeyframePending = false;
+            } else {
+                scheduleKeyframe();
+            }
+        }
+        // A tapped button still owes its release
+        scheduleFrame();
+    }
+
+    private void scheduleKeyframe() {
+        if (mKeyframeIntervalMs > 0 && !mKeyframeScheduled) {
+            mHandler.postDelayed(mKeyframe, mKeyframeIntervalMs);
+            mKeyframeScheduled = true;
+        }
+    }
+
+    /**
+     * Calls {@link #onFrame()} on the next display frame.
+     */
+    private interface FrameScheduler {
+        void post();
+
+        void cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class ChoreographerFrames implements FrameScheduler, Choreographer.FrameCallback {
+
+        @Override
+        public void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame();
+        }
+    }
+
+    private final class HandlerFrames implements FrameScheduler, Runnable {
+
+        @Override
+        public void post() {
+            mHandler.postDelayed(this, FALLBACK_FRAME_MS);
+        }
+
+        @Override
+        public void cancel() {
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            onFrame();
+        }
+    }
+}
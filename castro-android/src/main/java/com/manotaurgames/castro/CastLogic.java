@@ -17,31 +17,43 @@
 package com.manotaurgames.castro;
 
 import android.app.Activity;
-import android.os.Bundle;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.MediaRouteActionProvider;
+import android.support.v7.app.MediaRouteChooserDialogFragment;
+import android.support.v7.app.MediaRouteDialogFactory;
 import android.support.v7.media.MediaRouteSelector;
 import android.support.v7.media.MediaRouter;
-import android.support.v7.media.MediaRouter.Callback;
 import android.support.v7.media.MediaRouter.RouteInfo;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
-import com.google.android.gms.cast.ApplicationMetadata;
-import com.google.android.gms.cast.Cast;
-import com.google.android.gms.cast.Cast.ApplicationConnectionResult;
 import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.cast.CastMediaControlIntent;
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class CastLogic {
 
     private static final String TAG = CastLogic.class.getSimpleName();
 
+    /**
+     * How long to scan for cached routes that haven't been seen yet before dropping them.
+     */
+    private static final long ROUTE_VERIFY_MS = 10 * 1000;
+
+    private static volatile String sManifestCastAppId;
+
     /**
      * Primary interface for getting things done with cast. Pass this to the {@link CastLogic} constructor.
      */
@@ -50,7 +62,8 @@ public class CastLogic {
         /**
          * Gets called every time the API is connected, and provides you with the client.
          * @param apiClient the ApiClient you'll want to operate on.
-         * @param isReconnect whether this is a reconnect of a dropped connection.
+         * @param isReconnect whether this is a reconnect of a dropped connection, or a session
+         *                    that was already running when this screen was created.
          */
         void onCastConnect(GoogleApiClient apiClient, boolean isReconnect);
 
@@ -64,224 +77,513 @@ public class CastLogic {
     private final Activity mActivity;
     private final String mCastAppId;
     private final CastLogicCallbacks mCallbacks;
+    private final CastSession mSession;
+
+    private final MediaRouter.Callback mMediaRouterCallback = new MyMediaRouterCallback();
 
-    private final State mState;
+    // Created on first use, see setLazyRouteSetup
+    private MediaRouter mMediaRouter;
+    private MediaRouteSelector mMediaRouteSelector;
 
-    private static class State {
-        public final MediaRouter mediaRouter;
-        public final MediaRouteSelector mediaRouteSelector;
-        public final MediaRouter.Callback mediaRouterCallback;
+    private boolean mLazyRouteSetup = true;
+    private boolean mStarted;
 
-        public CastDevice selectedDevice;
-        public GoogleApiClient apiClient;
-        public boolean applicationStarted;
-        public boolean waitingForReconnect;
-        public String sessionId;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final DiscoveryStats mDiscoveryStats = new DiscoveryStats();
+    private DiscoveryPolicy mDiscoveryPolicy = DiscoveryPolicy.always();
+    private long mStartedAt;
+    private boolean mRouteMenuOpen;
+    // Flags the router callback is registered with, -1 when it isn't
+    private int mDiscoveryFlags = -1;
 
-        public State(MediaRouter mediaRouter, MediaRouteSelector mediaRouteSelector, Callback mediaRouterCallback) {
-            this.mediaRouter = mediaRouter;
-            this.mediaRouteSelector = mediaRouteSelector;
-            this.mediaRouterCallback = mediaRouterCallback;
+    private ReconnectPolicy.Listener mReconnectListener;
+
+    private final List<ConnectionState.Listener> mStateListeners = new ArrayList<>();
+    // Besides the constructor's, added after the fact by fragments and the like
+    private final CopyOnWriteArrayList<CastLogicCallbacks> mExtraCallbacks = new CopyOnWriteArrayList<>();
+    private final Publisher<ConnectionState> mStates = new Publisher<>(true);
+    private final ConnectionState.Listener mStatePublisher = new ConnectionState.Listener() {
+        @Override
+        public void onConnectionStateChanged(ConnectionState oldState, ConnectionState newState) {
+            mStates.publish(newState);
         }
-    }
+    };
+
+    private final NamespaceRouter mRouter;
+
+    private ClockSync mClockSync;
+    private CastMediaController mMediaController;
+    private CastHeartbeat mHeartbeat;
+
+    private CastActionProvider mActionProvider;
+    // Wall clock time we started checking cached routes, -1 when not checking
+    private long mVerifyingSince = -1;
+
+    private final Runnable mFinishVerify = new Runnable() {
+        @Override
+        public void run() {
+            finishRouteVerification();
+        }
+    };
+
+    private final Runnable mUpdateDiscovery = new Runnable() {
+        @Override
+        public void run() {
+            updateDiscovery();
+        }
+    };
+
+    /**
+     * The client we last reported through onCastConnect, so a reattached session is only announced once.
+     */
+    private GoogleApiClient mConnectedClient;
 
     public CastLogic(Activity activity, String castAppId, CastLogicCallbacks callbacks) {
         mActivity = activity;
         mCastAppId = castAppId;
         mCallbacks = callbacks;
-        mState = new State(
-                MediaRouter.getInstance(mActivity),
-                new MediaRouteSelector.Builder()
-                        .addControlCategory(CastMediaControlIntent.categoryForCast(mCastAppId))
-                        .build(),
-                new MyMediaRouterCallback());
+        mSession = CastSession.get(activity, castAppId);
+        mRouter = new NamespaceRouter(mSession.getRoutes());
+        mSession.attach(this);
+        mStates.publish(mSession.getStateMachine().getState());
+        mSession.getStateMachine().addListener(mStatePublisher);
+    }
+
+    /**
+     * Reads the 'GoogleCastId' metadata field from AndroidManifest. The value is cached for the life of the process.
+     */
+    static String getManifestCastAppId(Context context) {
+        String castAppId = sManifestCastAppId;
+        if (castAppId == null) {
+            try {
+                ApplicationInfo ai = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+                castAppId = (String) ai.metaData.get("GoogleCastId");
+            } catch (NameNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+            sManifestCastAppId = castAppId;
+        }
+        return castAppId;
+    }
+
+    /**
+     * By default the MediaRouter and route selector are only set up once the cast menu item is
+     * created, or when there is a session to pick up, which keeps them off the cold start path of
+     * screens that never cast. Pass false to set them up in onStart instead.
+     */
+    public final void setLazyRouteSetup(boolean lazyRouteSetup) {
+        mLazyRouteSetup = lazyRouteSetup;
+        if (!lazyRouteSetup && mStarted) {
+            ensureRouteSetup();
+        }
+    }
+
+    /**
+     * Controls how actively devices are discovered while this screen is started.
+     * Defaults to {@link DiscoveryPolicy#always()}.
+     */
+    public final void setDiscoveryPolicy(DiscoveryPolicy policy) {
+        mDiscoveryPolicy = policy;
+        updateDiscovery();
+    }
+
+    /**
+     * @return discovery time for this screen so far, for tuning the {@link DiscoveryPolicy}.
+     */
+    public final DiscoveryStats getDiscoveryStats() {
+        return mDiscoveryStats.snapshot(SystemClock.elapsedRealtime());
     }
 
     public final void onStart() {
-        mState.mediaRouter.addCallback(mState.mediaRouteSelector, mState.mediaRouterCallback, MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
+        mStarted = true;
+        if (mMediaRouter != null) {
+            startRouting();
+        } else if (!mLazyRouteSetup || mSession.hasSession()) {
+            ensureRouteSetup();
+        }
+        // Pick up a session that outlived the previous instance of this screen
+        GoogleApiClient apiClient = mSession.getConnectedApiClient();
+        if (apiClient != null && apiClient != mConnectedClient) {
+            dispatchConnect(apiClient, true);
+        }
+    }
+
+    /**
+     * How long a device seen on an earlier launch keeps the cast button visible. Defaults to a day.
+     */
+    public final void setRouteCacheTtl(long ttlMs) {
+        mSession.getRouteCache().setTtl(ttlMs);
+    }
+
+    /**
+     * Controls how dropped connections are retried. This applies to the whole process, not just this screen.
+     */
+    public final void setReconnectPolicy(ReconnectPolicy policy) {
+        mSession.setReconnectPolicy(policy);
+    }
+
+    /**
+     * Reports connection setup stages, reconnects and teardowns of this screen's session.
+     */
+    public final void setMetrics(CastMetrics metrics) {
+        mSession.setMetrics(metrics);
+    }
+
+    /**
+     * Gets told about each reconnect attempt while this screen is alive.
+     */
+    public final void setReconnectListener(ReconnectPolicy.Listener listener) {
+        mReconnectListener = listener;
     }
 
     public final void onStop() {
-        mState.mediaRouter.removeCallback(mState.mediaRouterCallback);
+        mStarted = false;
+        mSession.onOwnerStopped();
+        mHandler.removeCallbacks(mUpdateDiscovery);
+        mHandler.removeCallbacks(mFinishVerify);
+        mVerifyingSince = -1;
+        if (mDiscoveryFlags != -1) {
+            mMediaRouter.removeCallback(mMediaRouterCallback);
+            mDiscoveryFlags = -1;
+            mDiscoveryStats.stop(SystemClock.elapsedRealtime());
+            Log.d(TAG, "discovery: " + mDiscoveryStats);
+        }
     }
 
+    /**
+     * Releases this screen's hold on the session. The receiver keeps running across configuration
+     * changes and is stopped once no other screen is using it.
+     */
     public final void onDestroy() {
         Log.d(TAG, "onDestroy");
-        teardown(true);
+        for (ConnectionState.Listener listener : mStateListeners) {
+            mSession.getStateMachine().removeListener(listener);
+        }
+        mStateListeners.clear();
+        mSession.getStateMachine().removeListener(mStatePublisher);
+        MessageRoutes routes = mSession.getRoutes();
+        if (mClockSync != null) {
+            mClockSync.stop();
+            routes.unregister(ClockSync.NAMESPACE, mClockSync);
+        }
+        if (mMediaController != null) {
+            mMediaController.detach();
+            routes.unregister(mMediaController.getNamespace(), mMediaController);
+        }
+        if (mHeartbeat != null) {
+            mHeartbeat.stop();
+            routes.unregister(CastHeartbeat.NAMESPACE, mHeartbeat);
+            routes.removeHeartbeat(mHeartbeat.getMonitor());
+        }
+        mRouter.unregisterAll();
+        mSession.detach(this, mActivity.isChangingConfigurations());
+        mConnectedClient = null;
     }
 
     public final void onCreateOptionsMenu(Menu menu) {
+        ensureRouteSetup();
         MenuItem mediaRouteMenuItem = menu.findItem(R.id.media_route_menu_item);
         MediaRouteActionProvider mediaRouteActionProvider =
                 (MediaRouteActionProvider) MenuItemCompat
                         .getActionProvider(mediaRouteMenuItem);
-        mediaRouteActionProvider.setRouteSelector(mState.mediaRouteSelector);
+        mediaRouteActionProvider.setRouteSelector(mMediaRouteSelector);
+        mediaRouteActionProvider.setDialogFactory(new RouteDialogFactory());
+        if (mediaRouteActionProvider instanceof CastActionProvider) {
+            mActionProvider = (CastActionProvider) mediaRouteActionProvider;
+            mActionProvider.setRouteCache(mSession.getRouteCache());
+        }
     }
 
     public final GoogleApiClient getApiClient() {
-        return mState.apiClient;
+        return mSession.getApiClient();
     }
 
     public final String getSessionId() {
-        return mState.sessionId;
+        return mSession.getSessionId();
     }
 
     /**
-     * Start the receiver app
+     * Register message callbacks here once, instead of on every {@link CastLogicCallbacks#onCastConnect}.
      */
-    private void launchReceiver() {
-        try {
-            Cast.Listener castListener = new Cast.Listener() {
-
-                @Override
-                public void onApplicationDisconnected(int errorCode) {
-                    Log.d(TAG, "application has stopped");
-                    teardown(true);
-                }
+    public final NamespaceRouter getNamespaceRouter() {
+        return mRouter;
+    }
 
-            };
-            // Connect to Google Play services
-            ConnectionCallbacks connectionCallbacks = new ConnectionCallbacks();
-            ConnectionFailedListener connectionFailedListener = new ConnectionFailedListener();
-            Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
-                    .builder(mState.selectedDevice, castListener);
-            mState.apiClient = new GoogleApiClient.Builder(mActivity)
-                    .addApi(Cast.API, apiOptionsBuilder.build())
-                    .addConnectionCallbacks(connectionCallbacks)
-                    .addOnConnectionFailedListener(connectionFailedListener)
-                    .build();
-            mState.apiClient.connect();
-        } catch (Exception e) {
-            Log.e(TAG, "Failed launchReceiver", e);
+    /**
+     * Estimates of the receiver's clock and the round trip time. Pinging starts with the first call
+     * and then runs whenever the session is connected. The receiver must answer on {@link ClockSync#NAMESPACE}.
+     */
+    public final ClockSync getClockSync() {
+        if (mClockSync == null) {
+            mClockSync = new ClockSync();
+            mSession.getRoutes().register(ClockSync.NAMESPACE, mClockSync);
+            if (mConnectedClient != null) {
+                mClockSync.start(mConnectedClient, false);
+            }
         }
+        return mClockSync;
     }
 
     /**
-     * Tear down the connection to the receiver
+     * Media playback controls with a cached, pushed status. Attached whenever the session is connected.
      */
-    private void teardown(boolean selectDefaultRoute) {
-        Log.d(TAG, "teardown");
-        if (mState.apiClient != null) {
-            if (mState.applicationStarted) {
-                if (mState.apiClient.isConnected() || mState.apiClient.isConnecting()) {
-                    Cast.CastApi.stopApplication(mState.apiClient, mState.sessionId);
-                    if (mCallbacks != null) mCallbacks.onCastDisconnect(mState.apiClient);
-                    mState.apiClient.disconnect();
-                }
-                mState.applicationStarted = false;
+    public final CastMediaController getMediaController() {
+        if (mMediaController == null) {
+            mMediaController = new CastMediaController();
+            mSession.getRoutes().register(mMediaController.getNamespace(), mMediaController);
+            if (mConnectedClient != null) {
+                mMediaController.attach(mConnectedClient);
             }
-            mState.apiClient = null;
         }
-        if (selectDefaultRoute) {
-            mState.mediaRouter.selectRoute(mState.mediaRouter.getDefaultRoute());
-        }
-        mState.selectedDevice = null;
-        mState.waitingForReconnect = false;
-        mState.sessionId = null;
+        return mMediaController;
     }
 
     /**
-     * Callback for MediaRouter events
+     * HTTP server for local media, running while the session is connected and only reachable by the cast
+     * device. It belongs to the session, so rotating or leaving this screen doesn't interrupt playback.
      */
-    private class MyMediaRouterCallback extends MediaRouter.Callback {
+    public final CastMediaServer getMediaServer() {
+        return mSession.getMediaServer();
+    }
 
-        @Override
-        public void onRouteSelected(MediaRouter router, RouteInfo info) {
-            Log.d(TAG, "onRouteSelected");
-            // Handle the user route selection.
-            mState.selectedDevice = CastDevice.getFromBundle(info.getExtras());
-            launchReceiver();
-        }
+    /**
+     * Images shrunk to the receiver's screen and served with {@link #getMediaServer()}.
+     */
+    public final CastAssets getAssets() {
+        return mSession.getAssets();
+    }
 
-        @Override
-        public void onRouteUnselected(MediaRouter router, RouteInfo info) {
-            Log.d(TAG, "onRouteUnselected: info=" + info);
-            teardown(false);
-            mState.selectedDevice = null;
+    /**
+     * Heartbeat that notices a dead receiver quickly and reconnects or ends the session. Runs from the
+     * first call whenever the session is connected. The receiver must answer on {@link CastHeartbeat#NAMESPACE}.
+     */
+    public final CastHeartbeat getHeartbeat() {
+        if (mHeartbeat == null) {
+            mHeartbeat = new CastHeartbeat(mSession);
+            mSession.getRoutes().register(CastHeartbeat.NAMESPACE, mHeartbeat);
+            mSession.getRoutes().addHeartbeat(mHeartbeat.getMonitor());
+            if (mConnectedClient != null) {
+                mHeartbeat.start(mConnectedClient);
+            }
         }
+        return mHeartbeat;
     }
 
     /**
-     * Google Play services callbacks
+     * Safe to call from any thread.
      */
-    private class ConnectionCallbacks implements GoogleApiClient.ConnectionCallbacks {
+    public final ConnectionState getConnectionState() {
+        return mSession.getStateMachine().getState();
+    }
 
-        @Override
-        public void onConnected(Bundle connectionHint) {
-            Log.d(TAG, "onConnected");
+    /**
+     * Gets told about every connection state change until {@link #onDestroy()} or {@link #removeConnectionStateListener}.
+     */
+    public final void addConnectionStateListener(ConnectionState.Listener listener) {
+        mStateListeners.add(listener);
+        mSession.getStateMachine().addListener(listener);
+    }
+
+    public final void removeConnectionStateListener(ConnectionState.Listener listener) {
+        mStateListeners.remove(listener);
+        mSession.getStateMachine().removeListener(listener);
+    }
 
-            if (mState.apiClient == null) {
-                // We got disconnected while this runnable was pending
-                // execution.
+    /**
+     * Connection states, starting with the current one for every new subscriber. Subscribe with
+     * {@link NamespaceRouter#handlerExecutor} to get them on a looper.
+     */
+    public final Publisher<ConnectionState> getConnectionStates() {
+        return mStates;
+    }
+
+    /**
+     * Get the same calls as the callbacks passed to the constructor, until {@link #removeCallbacks}.
+     * If the session is already connected, {@link CastLogicCallbacks#onCastConnect} is called right
+     * away with isReconnect true, so a fragment added late starts out like everyone else.
+     */
+    public final void addCallbacks(CastLogicCallbacks callbacks) {
+        if (mExtraCallbacks.addIfAbsent(callbacks) && mConnectedClient != null) {
+            callbacks.onCastConnect(mConnectedClient, true);
+        }
+    }
+
+    public final void removeCallbacks(CastLogicCallbacks callbacks) {
+        mExtraCallbacks.remove(callbacks);
+    }
+
+    private void ensureRouteSetup() {
+        if (mMediaRouter != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        mMediaRouter = MediaRouter.getInstance(mActivity);
+        mMediaRouteSelector = new MediaRouteSelector.Builder()
+                .addControlCategory(CastMediaControlIntent.categoryForCast(mCastAppId))
+                .build();
+        Log.d(TAG, "route setup took " + (System.nanoTime() - start) / 1000 + "us");
+        if (mStarted) {
+            startRouting();
+        }
+    }
+
+    private void startRouting() {
+        mStartedAt = SystemClock.elapsedRealtime();
+        startRouteVerification();
+        updateDiscovery();
+        mSession.resume(mMediaRouter);
+    }
+
+    /**
+     * If the cache promises devices MediaRouter doesn't know about yet, scan for a little while to confirm them.
+     */
+    private void startRouteVerification() {
+        RouteCache routeCache = mSession.getRouteCache();
+        long now = System.currentTimeMillis();
+        for (RouteInfo route : mMediaRouter.getRoutes()) {
+            if (route.matchesSelector(mMediaRouteSelector)) {
+                cacheRoute(route);
+            }
+        }
+        for (RouteCache.Route cached : routeCache.getLiveRoutes()) {
+            if (cached.lastSeen < now) {
+                Log.d(TAG, "verifying cached route " + cached.name);
+                mVerifyingSince = now;
+                mHandler.postDelayed(mFinishVerify, ROUTE_VERIFY_MS);
                 return;
             }
+        }
+    }
 
-            try {
-                if (mState.waitingForReconnect) {
-                    mState.waitingForReconnect = false;
-
-                    // Check if the receiver app is still running
-                    if ((connectionHint != null)
-                            && connectionHint.getBoolean(Cast.EXTRA_APP_NO_LONGER_RUNNING)) {
-                        Log.d(TAG, "App  is no longer running");
-                        teardown(true);
-                    } else {
-                        if (mCallbacks != null) mCallbacks.onCastConnect(mState.apiClient, true);
-                    }
-                } else {
-                    // Launch the receiver app
-                    Cast.CastApi.launchApplication(mState.apiClient, mCastAppId, false)
-                            .setResultCallback(
-                                    new ResultCallback<ApplicationConnectionResult>() {
-                                        @Override
-                                        public void onResult(
-                                                ApplicationConnectionResult result) {
-                                            Status status = result.getStatus();
-                                            Log.d(TAG,
-                                                    "ApplicationConnectionResultCallback.onResult:"
-                                                            + status.getStatusCode());
-                                            if (status.isSuccess()) {
-                                                ApplicationMetadata applicationMetadata = result
-                                                        .getApplicationMetadata();
-                                                mState.sessionId = result.getSessionId();
-                                                String applicationStatus = result
-                                                        .getApplicationStatus();
-                                                boolean wasLaunched = result.getWasLaunched();
-                                                Log.d(TAG, "application name: "
-                                                        + applicationMetadata.getName()
-                                                        + ", status: " + applicationStatus
-                                                        + ", sessionId: " + mState.sessionId
-                                                        + ", wasLaunched: " + wasLaunched);
-                                                mState.applicationStarted = true;
-                                                if (mCallbacks != null) mCallbacks.onCastConnect(mState.apiClient, false);
-                                            } else {
-                                                Log.e(TAG, "application could not launch");
-                                                teardown(true);
-                                            }
-                                        }
-                                    });
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to launch application", e);
+    private void finishRouteVerification() {
+        if (mVerifyingSince != -1 && mSession.getRouteCache().removeNotSeenSince(mVerifyingSince)) {
+            Log.d(TAG, "dropped cached routes that did not show up");
+            if (mActionProvider != null) mActionProvider.refreshVisibility();
+        }
+        mVerifyingSince = -1;
+        updateDiscovery();
+    }
+
+    private void cacheRoute(RouteInfo route) {
+        CastDevice device = CastDevice.getFromBundle(route.getExtras());
+        if (device != null) {
+            mSession.getRouteCache().put(route.getId(), device.getDeviceId(), route.getName());
+        }
+    }
+
+    /**
+     * Re-register the router callback if the discovery policy now wants different flags.
+     */
+    private void updateDiscovery() {
+        mHandler.removeCallbacks(mUpdateDiscovery);
+        if (!mStarted || mMediaRouter == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long startedMs = now - mStartedAt;
+        boolean connected = mSession.getApiClient() != null;
+        int flags = mDiscoveryPolicy.getCallbackFlags(mRouteMenuOpen, connected, startedMs);
+        if (mVerifyingSince != -1) {
+            flags |= MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY | MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN;
+        }
+        if (flags != mDiscoveryFlags) {
+            // addCallback only ever adds flags, so drop the old registration first
+            if (mDiscoveryFlags != -1) {
+                mMediaRouter.removeCallback(mMediaRouterCallback);
             }
+            mMediaRouter.addCallback(mMediaRouteSelector, mMediaRouterCallback, flags);
+            mDiscoveryFlags = flags;
+            mDiscoveryStats.update(now, flags);
+        }
+        long delay = mDiscoveryPolicy.getReevaluationDelay(mRouteMenuOpen, connected, startedMs);
+        if (delay >= 0) {
+            mHandler.postDelayed(mUpdateDiscovery, delay);
+        }
+    }
+
+    void dispatchConnect(GoogleApiClient apiClient, boolean isReconnect) {
+        mConnectedClient = apiClient;
+        if (mClockSync != null) mClockSync.start(apiClient, isReconnect);
+        if (mMediaController != null) mMediaController.attach(apiClient);
+        if (mHeartbeat != null) mHeartbeat.start(apiClient);
+        updateDiscovery();
+        if (mCallbacks != null) mCallbacks.onCastConnect(apiClient, isReconnect);
+        for (CastLogicCallbacks callbacks : mExtraCallbacks) {
+            callbacks.onCastConnect(apiClient, isReconnect);
         }
+    }
+
+    void dispatchDisconnect(GoogleApiClient apiClient) {
+        mConnectedClient = null;
+        if (mClockSync != null) mClockSync.stop();
+        if (mMediaController != null) mMediaController.detach();
+        if (mHeartbeat != null) mHeartbeat.stop();
+        updateDiscovery();
+        if (mCallbacks != null) mCallbacks.onCastDisconnect(apiClient);
+        for (CastLogicCallbacks callbacks : mExtraCallbacks) {
+            callbacks.onCastDisconnect(apiClient);
+        }
+    }
+
+    void dispatchReconnectScheduled(int attempt, long delayMs, int errorCode) {
+        if (mReconnectListener != null) mReconnectListener.onReconnectScheduled(attempt, delayMs, errorCode);
+    }
+
+    void dispatchReconnected(int attempts, long elapsedMs) {
+        if (mReconnectListener != null) mReconnectListener.onReconnected(attempts, elapsedMs);
+    }
+
+    void dispatchReconnectAbandoned(int attempts, long elapsedMs, int errorCode) {
+        if (mReconnectListener != null) mReconnectListener.onReconnectAbandoned(attempts, elapsedMs, errorCode);
+    }
+
+    /**
+     * Hands out route choosers that report when they are showing
+     */
+    private class RouteDialogFactory extends MediaRouteDialogFactory {
 
         @Override
-        public void onConnectionSuspended(int cause) {
-            Log.d(TAG, "onConnectionSuspended");
-            mState.waitingForReconnect = true;
+        public MediaRouteChooserDialogFragment onCreateChooserDialogFragment() {
+            RouteChooserDialogFragment fragment = new RouteChooserDialogFragment();
+            fragment.setListener(new RouteChooserDialogFragment.Listener() {
+                @Override
+                public void onRouteMenuVisibilityChanged(boolean visible) {
+                    mRouteMenuOpen = visible;
+                    updateDiscovery();
+                }
+            });
+            return fragment;
         }
     }
 
     /**
-     * Google Play services callbacks
+     * Callback for MediaRouter events
      */
-    private class ConnectionFailedListener implements GoogleApiClient.OnConnectionFailedListener {
+    private class MyMediaRouterCallback extends MediaRouter.Callback {
 
         @Override
-        public void onConnectionFailed(ConnectionResult result) {
-            Log.e(TAG, "onConnectionFailed ");
-            teardown(false);
+        public void onRouteSelected(MediaRouter router, RouteInfo info) {
+            Log.d(TAG, "onRouteSelected");
+            // Handle the user route selection.
+            cacheRoute(info);
+            mSession.onRouteSelected(info.getId(), CastDevice.getFromBundle(info.getExtras()));
+        }
+
+        @Override
+        public void onRouteAdded(MediaRouter router, RouteInfo info) {
+            cacheRoute(info);
+            mSession.onRouteAdded(router, info);
+        }
+
+        @Override
+        public void onRouteChanged(MediaRouter router, RouteInfo info) {
+            cacheRoute(info);
+        }
+
+        @Override
+        public void onRouteUnselected(MediaRouter router, RouteInfo info) {
+            Log.d(TAG, "onRouteUnselected: info=" + info);
+            mSession.onRouteUnselected();
         }
     }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.cast.MediaInfo;
+import com.google.android.gms.cast.MediaStatus;
+import com.google.android.gms.cast.RemoteMediaPlayer;
+import com.google.android.gms.cast.RemoteMediaPlayer.MediaChannelResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
+import com.google.android.gms.common.api.ResultCallback;
+
+/**
+ * Media playback on the receiver through a {@link RemoteMediaPlayer}, without polling.
+ *
+ * The last {@link MediaStatus} is cached and only replaced by the status updates the receiver pushes;
+ * the status is requested once per connect to seed it. {@link #getPosition()} projects the position
+ * locally from the last update, so a progress bar can redraw every frame for free.
+ *
+ * Seek, play and pause take effect locally right away and reach the receiver once the calls stop
+ * coming for the debounce delay, as one command: dragging a slider sends a single seek.
+ *
+ * {@link CastLogic#getMediaController()} runs one for the session. Call it on the main thread.
+ */
+public class CastMediaController implements Cast.MessageReceivedCallback {
+
+    private static final String TAG = CastMediaController.class.getSimpleName();
+
+    private static final long DEFAULT_DEBOUNCE_MS = 250;
+
+    /**
+     * Receives pushed status updates.
+     */
+    public interface Listener {
+
+        void onStatusUpdated(MediaStatus status);
+    }
+
+    private final RemoteMediaPlayer mPlayer = new RemoteMediaPlayer();
+    private final PlaybackClock mClock = new PlaybackClock();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private GoogleApiClient mApiClient;
+    private MediaStatus mStatus;
+    // When mStatus arrived, which is when its stream position was current
+    private long mStatusAt;
+    private Listener mListener;
+    private long mDebounceMs = DEFAULT_DEBOUNCE_MS;
+    // Commands waiting out the debounce delay, -1 for none
+    private long mPendingSeekMs = -1;
+    private int mPendingResumeState = RemoteMediaPlayer.RESUME_STATE_UNCHANGED;
+    // Commands sent but not answered; statuses from before them would undo the local projection
+    private int mInFlight;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ResultCallback<MediaChannelResult> mCommandResult = new ResultCallback<MediaChannelResult>() {
+        @Override
+        public void onResult(MediaChannelResult result) {
+            if (!result.getStatus().isSuccess()) {
+                Log.d(TAG, "media command failed: " + result.getStatus().getStatusCode());
+            }
+            if (mInFlight > 0) {
+                mInFlight--;
+            }
+            // The receiver pushes its new status before answering, so this is the one to show
+            applyStatus();
+        }
+    };
+
+    public CastMediaController() {
+        mPlayer.setOnStatusUpdatedListener(new RemoteMediaPlayer.OnStatusUpdatedListener() {
+            @Override
+            public void onStatusUpdated() {
+                mStatus = mPlayer.getMediaStatus();
+                mStatusAt = SystemClock.elapsedRealtime();
+                applyStatus();
+                if (mListener != null && mStatus != null) mListener.onStatusUpdated(mStatus);
+            }
+        });
+    }
+
+    /**
+     * The namespace of the media channel, to register this controller under.
+     */
+    public String getNamespace() {
+        return mPlayer.getNamespace();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * How long seek, play and pause wait for the next call before going out.
+     */
+    public void setDebounce(long debounceMs) {
+        mDebounceMs = debounceMs;
+    }
+
+    /**
+     * @return the last status pushed by the receiver, or null if there hasn't been one.
+     */
+    public MediaStatus getMediaStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return the playback position projected to now, including seeks not yet confirmed.
+     */
+    public long getPosition() {
+        return mClock.getPosition(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return the stream duration, 0 or less if unknown.
+     */
+    public long getDuration() {
+        return mClock.getDuration();
+    }
+
+    public boolean isPlaying() {
+        return mClock.isPlaying();
+    }
+
+    public void attach(GoogleApiClient apiClient) {
+        mApiClient = apiClient;
+        mInFlight = 0;
+        mPlayer.requestStatus(apiClient);
+    }
+
+    public void detach() {
+        mApiClient = null;
+        mHandler.removeCallbacks(mFlush);
+        mPendingSeekMs = -1;
+        mPendingResumeState = RemoteMediaPlayer.RESUME_STATE_UNCHANGED;
+        mInFlight = 0;
+        mStatus = null;
+        mClock.reset();
+    }
+
+    /**
+     * Load media on the receiver.
+     * @return the pending result, or null if not connected.
+     */
+    public PendingResult<MediaChannelResult> load(MediaInfo media, boolean autoplay, long positionMs) {
+        if (mApiClient == null) {
+            return null;
+        }
+        return mPlayer.load(mApiClient, media, autoplay, positionMs);
+    }
+
+    public void seek(long positionMs) {
+        mClock.seek(positionMs, SystemClock.elapsedRealtime());
+        mPendingSeekMs = Math.max(0, positionMs);
+        schedule();
+    }
+
+    public void play() {
+        mClock.setPlaying(true, SystemClock.elapsedRealtime());
+        mPendingResumeState = RemoteMediaPlayer.RESUME_STATE_PLAY;
+        schedule();
+    }
+
+    public void pause() {
+        mClock.setPlaying(false, SystemClock.elapsedRealtime());
+        mPendingResumeState = RemoteMediaPlayer.RESUME_STATE_PAUSE;
+        schedule();
+    }
+
+    /**
+     * Send a pending seek, play or pause now instead of after the debounce delay.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        long seekMs = mPendingSeekMs;
+        int resumeState = mPendingResumeState;
+        mPendingSeekMs = -1;
+        mPendingResumeState = RemoteMediaPlayer.RESUME_STATE_UNCHANGED;
+        if (mApiClient == null) {
+            return;
+        }
+        PendingResult<MediaChannelResult> pending;
+        if (seekMs >= 0) {
+            pending = mPlayer.seek(mApiClient, seekMs, resumeState);
+        } else if (resumeState == RemoteMediaPlayer.RESUME_STATE_PLAY) {
+            pending = mPlayer.play(mApiClient);
+        } else if (resumeState == RemoteMediaPlayer.RESUME_STATE_PAUSE) {
+            pending = mPlayer.pause(mApiClient);
+        } else {
+            return;
+        }
+        mInFlight++;
+        pending.setResultCallback(mCommandResult);
+    }
+
+    private void schedule() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, mDebounceMs);
+    }
+
+    /**
+     * Project from the cached status, unless local commands are ahead of it. The status may be from
+     * before a command that changed nothing, e.g. one that failed, so it projects from when it arrived.
+     */
+    private void applyStatus() {
+        if (mStatus == null || mInFlight > 0 || mPendingSeekMs >= 0
+                || mPendingResumeState != RemoteMediaPlayer.RESUME_STATE_UNCHANGED) {
+            return;
+        }
+        MediaInfo media = mStatus.getMediaInfo();
+        boolean playing = mStatus.getPlayerState() == MediaStatus.PLAYER_STATE_PLAYING;
+        double rate = mStatus.getPlaybackRate();
+        mClock.update(mStatus.getStreamPosition(), media != null ? media.getStreamDuration() : 0,
+                rate > 0 ? rate : 1, playing, mStatusAt);
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        mPlayer.onMessageReceived(castDevice, namespace, message);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.google.android.gms.cast.CastDevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves local files and content URIs to the receiver over HTTP, e.g. to cast a recording with
+ * {@link CastMediaController#load}.
+ *
+ * The server itself is castro-core's {@link MediaServer}. This class starts it when the session
+ * connects, lets only the cast device in, and builds URLs on the address the device can reach.
+ * Content URIs must be backed by a seekable file, which covers MediaStore and FileProvider.
+ *
+ * {@link CastLogic#getMediaServer()} returns the session's, which lives as long as the session, so
+ * screens can come and go while the receiver streams from it. Published URLs stay valid across
+ * reconnects and end with the session. Call it on the main thread.
+ */
+public class CastMediaServer {
+
+    private static final String TAG = CastMediaServer.class.getSimpleName();
+
+    private static final int THREADS = 4;
+
+    /**
+     * Serves a content URI through its file descriptor.
+     */
+    private static final class ContentSource implements MediaServer.Source {
+
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final String mContentType;
+
+        ContentSource(ContentResolver resolver, Uri uri) {
+            mResolver = resolver;
+            mUri = uri;
+            mContentType = resolver.getType(uri);
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            ParcelFileDescriptor fd = openDescriptor();
+            try {
+                return fd.getStatSize();
+            } finally {
+                fd.close();
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public FileChannel open() throws IOException {
+            // Closing the channel closes the descriptor
+            return new ParcelFileDescriptor.AutoCloseInputStream(openDescriptor()).getChannel();
+        }
+
+        private ParcelFileDescriptor openDescriptor() throws IOException {
+            ParcelFileDescriptor fd = mResolver.openFileDescriptor(mUri, "r");
+            if (fd == null) {
+                throw new IOException("Could not open " + mUri);
+            }
+            return fd;
+        }
+    }
+
+    private final Context mContext;
+    private final MediaServer mServer = new MediaServer(THREADS);
+    private String mHost;
+    // Port of the last start, reused so earlier URLs keep working; 0 before the first
+    private int mPort;
+
+    CastMediaServer(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Start serving to a device. Restarts reuse the previous port if it is still free, so published
+     * URLs stay valid.
+     */
+    void start(CastDevice device) {
+        InetAddress deviceAddress = device != null ? device.getIpAddress() : null;
+        if (deviceAddress == null) {
+            Log.d(TAG, "no device address, not serving");
+            return;
+        }
+        try {
+            InetAddress local = MediaServer.getLocalAddress(deviceAddress);
+            if (local == null) {
+                Log.d(TAG, "not on the same network as " + deviceAddress);
+                return;
+            }
+            mServer.setAllowedAddress(deviceAddress);
+            mPort = bind(mPort);
+            mHost = "http://" + local.getHostAddress() + ":" + mPort;
+        } catch (IOException e) {
+            Log.e(TAG, "could not start media server", e);
+        }
+    }
+
+    private int bind(int port) throws IOException {
+        if (port != 0) {
+            try {
+                return mServer.start(port);
+            } catch (IOException e) {
+                Log.w(TAG, "port " + port + " is taken, published URLs change", e);
+            }
+        }
+        return mServer.start(0);
+    }
+
+    /**
+     * Stop serving at the end of the session. Everything published goes with it, so no URL handed to
+     * this receiver works for the next.
+     */
+    void stop() {
+        mServer.stop();
+        mServer.unpublishAll();
+        mServer.setAllowedAddress(null);
+        mHost = null;
+    }
+
+    public boolean isRunning() {
+        return mHost != null;
+    }
+
+    /**
+     * @return the URL the receiver can load the file from, or null if not connected.
+     */
+    public String publish(File file, String contentType) {
+        if (mHost == null) {
+            return null;
+        }
+        return mHost + mServer.publish(new MediaServer.FileSource(file, contentType), file.getName());
+    }
+
+    /**
+     * @return the URL the receiver can load the content from, or null if not connected.
+     */
+    public String publish(Uri uri) {
+        if (mHost == null) {
+            return null;
+        }
+        String name = uri.getLastPathSegment();
+        return mHost + mServer.publish(new ContentSource(mContext.getContentResolver(), uri), name != null ? name : "media");
+    }
+
+    /**
+     * Stop serving a URL returned by {@link #publish}.
+     */
+    public void unpublish(String url) {
+        int path = url.indexOf('/', url.indexOf("//") + 2);
+        if (path > 0) {
+            mServer.unpublish(url.substring(path));
+        }
+    }
+
+    public void unpublishAll() {
+        mServer.unpublishAll();
+    }
+}
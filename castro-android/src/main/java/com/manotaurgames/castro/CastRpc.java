@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request/response calls to the receiver over a {@link CastChannel}.
+ *
+ * Each call is tagged with an id and sent right away, so any number of calls can be in flight and
+ * a flow that needs N answers waits about one round trip instead of N. Requests look like
+ * {@code {"id":1,"method":"lobby.players","params":...}}. The receiver answers on the same
+ * namespace with {@code {"id":1,"result":...}} or {@code {"id":1,"error":{"code":7,"message":"..."}}}.
+ *
+ * Register the rpc on the channel's namespace with the {@link NamespaceRouter}. Messages that
+ * aren't responses go to the fallback callback. Results are decoded on the thread that received
+ * them, and {@link Callback}s run on the main thread.
+ */
+public class CastRpc implements Cast.MessageReceivedCallback {
+
+    private static final String TAG = CastRpc.class.getSimpleName();
+
+    /** No response within the call's timeout. */
+    public static final int ERROR_TIMEOUT = -1;
+    /** The connection went away before the response arrived. */
+    public static final int ERROR_DISCONNECTED = -2;
+    /** The channel's queue was full. */
+    public static final int ERROR_REJECTED = -3;
+    /** The response could not be decoded. */
+    public static final int ERROR_MALFORMED = -4;
+
+    private static final ThreadLocal<JsonReader> sReaders = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    /**
+     * Gets the outcome of a call on the main thread.
+     */
+    public interface Callback<R> {
+        void onSuccess(R result);
+
+        void onFailure(RpcException error);
+    }
+
+    /**
+     * A failed call. The code is one of the ERROR_ constants, or whatever the receiver reported.
+     */
+    public static class RpcException extends Exception {
+
+        private final int mCode;
+
+        public RpcException(int code, String message) {
+            super(message);
+            mCode = code;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+    }
+
+    private final CastChannel mChannel;
+    private final long mDefaultTimeoutMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private final Map<Integer, PendingCall<?>> mPending = new ConcurrentHashMap<>();
+    private volatile Cast.MessageReceivedCallback mFallback;
+    private volatile CastMetrics mMetrics;
+
+    public CastRpc(CastChannel channel) {
+        this(channel, 10 * 1000);
+    }
+
+    public CastRpc(CastChannel channel, long defaultTimeoutMs) {
+        mChannel = channel;
+        mDefaultTimeoutMs = defaultTimeoutMs;
+    }
+
+    public final String getNamespace() {
+        return mChannel.getNamespace();
+    }
+
+    /**
+     * Gets every message on the namespace that isn't a response, e.g. events pushed by the receiver.
+     */
+    public void setFallback(Cast.MessageReceivedCallback fallback) {
+        mFallback = fallback;
+    }
+
+    /**
+     * Reports the round trip time of every call that completes.
+     */
+    public void setMetrics(CastMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Call a method with the default timeout. May be called from any thread.
+     * @param paramsCodec null to send no params.
+     * @param resultCodec null to ignore the result.
+     */
+    public <P, R> Future<R> call(String method, P params, JsonCodec<P> paramsCodec, JsonCodec<R> resultCodec) {
+        return call(method, params, paramsCodec, resultCodec, mDefaultTimeoutMs, null);
+    }
+
+    /**
+     * Call a method. May be called from any thread.
+     * @param callback null if you'll use the returned future instead.
+     */
+    public <P, R> Future<R> call(String method, P params, JsonCodec<P> paramsCodec, JsonCodec<R> resultCodec,
+                                 long timeoutMs, Callback<R> callback) {
+        int id = mNextId.incrementAndGet();
+        StringBuilder frame = new StringBuilder(64);
+        JsonWriter writer = new JsonWriter(frame);
+        writer.beginObject().name("id").value(id).name("method").value(method);
+        if (paramsCodec != null) {
+            writer.name("params");
+            paramsCodec.write(writer, params);
+        }
+        writer.endObject();
+
+        PendingCall<R> call = new PendingCall<>(id, method, resultCodec, callback);
+        mPending.put(id, call);
+        mHandler.postDelayed(call, timeoutMs);
+        if (!mChannel.send(frame.toString())) {
+            call.fail(new RpcException(ERROR_REJECTED, method + " rejected, channel is full"));
+        }
+        return call;
+    }
+
+    /**
+     * Fail every call still waiting for a response. Call it from onCastDisconnect.
+     */
+    public void failPending() {
+        for (PendingCall<?> call : mPending.values()) {
+            call.fail(new RpcException(ERROR_DISCONNECTED, call.method + " lost its connection"));
+        }
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        if (!dispatchResponse(message)) {
+            Cast.MessageReceivedCallback fallback = mFallback;
+            if (fallback != null) fallback.onMessageReceived(castDevice, namespace, message);
+        }
+    }
+
+    /**
+     * @return false if the message isn't a response.
+     */
+    private boolean dispatchResponse(String message) {
+        JsonReader reader = sReaders.get().reset(message);
+        PendingCall<?> call = null;
+        boolean hasId = false;
+        boolean hasResult = false;
+        Object result = null;
+        CharSequence rawResult = null;
+        RpcException error = null;
+        try {
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                return false;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "id":
+                        if (reader.peek() != JsonReader.Token.NUMBER) {
+                            return false;
+                        }
+                        hasId = true;
+                        call = mPending.get(reader.nextInt());
+                        break;
+                    case "method":
+                        // A request or event from the receiver
+                        return false;
+                    case "result":
+                        hasResult = true;
+                        if (call != null) {
+                            result = call.read(reader);
+                        } else {
+                            // Don't know the codec until we've seen the id
+                            rawResult = reader.nextRawValue();
+                        }
+                        break;
+                    case "error":
+                        error = readError(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (!hasId) {
+                return false;
+            }
+            if (call == null) {
+                Log.d(TAG, "Dropping response that arrived after its call ended");
+                return true;
+            }
+            if (error != null) {
+                call.fail(error);
+            } else if (rawResult != null) {
+                call.succeed(call.decode(rawResult));
+            } else if (hasResult) {
+                call.succeed(result);
+            } else {
+                call.fail(new RpcException(ERROR_MALFORMED, "Response has no result"));
+            }
+        } catch (IllegalArgumentException e) {
+            if (call == null) {
+                return hasId;
+            }
+            call.fail(new RpcException(ERROR_MALFORMED, e.getMessage()));
+        }
+        return true;
+    }
+
+    private static RpcException readError(JsonReader reader) {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            return new RpcException(ERROR_MALFORMED, String.valueOf(reader.nextRawValue()));
+        }
+        int code = 0;
+        String message = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("code") && reader.peek() == JsonReader.Token.NUMBER) {
+                code = reader.nextInt();
+            } else if (name.equals("message") && reader.peek() == JsonReader.Token.STRING) {
+                message = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new RpcException(code, message);
+    }
+
+    /**
+     * A call waiting for its response. Runs as its own timeout.
+     */
+    private final class PendingCall<R> implements Future<R>, Runnable {
+
+        final int id;
+        final String method;
+        private final JsonCodec<R> mCodec;
+        private final Callback<R> mCallback;
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final long mSentAt = SystemClock.elapsedRealtime();
+        private volatile R mResult;
+        private volatile RpcException mError;
+        private volatile boolean mCancelled;
+
+        PendingCall(int id, String method, JsonCodec<R> codec, Callback<R> callback) {
+            this.id = id;
+            this.method = method;
+            mCodec = codec;
+            mCallback = callback;
+        }
+
+        Object read(JsonReader reader) {
+            if (mCodec == null) {
+                reader.skipValue();
+                return null;
+            }
+            return mCodec.read(reader);
+        }
+
+        Object decode(CharSequence raw) {
+            return mCodec == null ? null : mCodec.decode(raw);
+        }
+
+        @SuppressWarnings("unchecked")
+        void succeed(Object result) {
+            complete((R) result, null);
+        }
+
+        void fail(RpcException error) {
+            complete(null, error);
+        }
+
+        private boolean complete(R result, RpcException error) {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return false;
+            }
+            mPending.remove(id);
+            mHandler.removeCallbacks(this);
+            mResult = result;
+            mError = error;
+            mDone.countDown();
+            CastMetrics metrics = mMetrics;
+            if (metrics != null && !mCancelled) {
+                metrics.onRoundTrip(method, SystemClock.elapsedRealtime() - mSentAt,
+                        error == null ? 0 : error.getCode());
+            }
+            if (mCallback != null && !mCancelled) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mError != null) {
+                            mCallback.onFailure(mError);
+                        } else {
+                            mCallback.onSuccess(mResult);
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        /**
+         * Timeout
+         */
+        @Override
+        public void run() {
+            fail(new RpcException(ERROR_TIMEOUT, method + " timed out"));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            mCancelled = true;
+            if (complete(null, null)) {
+                return true;
+            }
+            mCancelled = false;
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public R get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return getResult();
+        }
+
+        @Override
+        public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private R getResult() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mError != null) {
+                throw new ExecutionException(mError);
+            }
+            return mResult;
+        }
+    }
+}
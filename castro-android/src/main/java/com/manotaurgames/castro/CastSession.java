@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.media.MediaRouter;
+import android.support.v7.media.MediaRouter.RouteInfo;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-scoped owner of the receiver connection for one cast app id.
+ *
+ * {@link CastLogic} instances attach to it for the lifetime of their screen. A configuration change
+ * hands the live GoogleApiClient and session id over to the new instance instead of stopping the
+ * receiver, which is only stopped once the last screen really goes away.
+ *
+ * The connection itself is run by castro-core's {@link SessionEngine}, including retries according
+ * to a {@link ReconnectPolicy}. This class adds what needs Android: the GoogleApiClient, the
+ * MediaRouter, and persistence.
+ *
+ * The last live session is persisted, and after the process is killed it is rejoined with
+ * {@link Cast.CastApi#joinApplication} as soon as its route is rediscovered.
+ *
+ * All methods except the getters must be called on the main thread.
+ */
+final class CastSession implements SessionEngine.Listener, ReceiverConnection.Factory {
+
+    private static final String TAG = CastSession.class.getSimpleName();
+
+    /**
+     * Saved sessions older than this are not rejoined automatically.
+     */
+    private static final long MAX_RESUME_AGE_MS = 60 * 60 * 1000;
+    // How often a live session refreshes its saved age, well inside MAX_RESUME_AGE_MS
+    private static final long KEEP_ALIVE_MS = MAX_RESUME_AGE_MS / 4;
+
+    /**
+     * How long to wait for the saved route to show up before giving up on it.
+     */
+    private static final long RESUME_ROUTE_TIMEOUT_MS = 15 * 1000;
+
+    private static final Map<String, CastSession> sSessions = new HashMap<>();
+    // CastStream ids. Outlives the screens, and starts somewhere random so a new process doesn't
+    // reuse ids a receiver still remembers
+    private static final AtomicInteger sNextStreamId = new AtomicInteger(new Random().nextInt(1 << 30));
+
+    /**
+     * @return a positive stream id, unique for the life of the process.
+     */
+    static int nextStreamId() {
+        return sNextStreamId.incrementAndGet() & Integer.MAX_VALUE;
+    }
+
+    static CastSession get(Context context, String castAppId) {
+        CastSession session = sSessions.get(castAppId);
+        if (session == null) {
+            session = new CastSession(context.getApplicationContext(), castAppId);
+            sSessions.put(castAppId, session);
+        }
+        return session;
+    }
+
+    private final Context mContext;
+    private final List<CastLogic> mOwners = new ArrayList<>();
+    private final SessionStore mStore;
+    private final RouteCache mRouteCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final SessionEngine mEngine;
+    // Every screen's message callbacks, installed once on the shared client
+    private final MessageRoutes mRoutes = new MessageRoutes();
+    // Created on first use, then kept until the session ends so URLs outlive the screens
+    private CastMediaServer mMediaServer;
+    private CastAssets mAssets;
+
+    private SessionStore.Record mPendingResume;
+    // The device handed to the next connection the engine opens
+    private CastDevice mSelectedDevice;
+
+    private final Runnable mResumeTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mPendingResume != null) {
+                Log.d(TAG, "saved route did not show up, forgetting it");
+                mPendingResume = null;
+                mStore.clear();
+            }
+        }
+    };
+
+    private final Runnable mKeepAlive = new Runnable() {
+        @Override
+        public void run() {
+            mStore.touch();
+            mHandler.postDelayed(this, KEEP_ALIVE_MS);
+        }
+    };
+
+    private CastSession(Context context, String castAppId) {
+        mContext = context;
+        mStore = new SessionStore(context, castAppId);
+        // Reads the preferences on first use, not here on the first screen's onCreate
+        mRouteCache = new RouteCache(context, SessionStore.PREFS_NAME, castAppId + ".routes", 8);
+        mEngine = new SessionEngine(castAppId, this, MainThreadScheduler.get(), this);
+    }
+
+    void attach(CastLogic owner) {
+        if (!mOwners.contains(owner)) {
+            mOwners.add(owner);
+        }
+    }
+
+    /**
+     * @param keepSession true if another owner is about to take over, e.g. across a configuration change.
+     */
+    void detach(CastLogic owner, boolean keepSession) {
+        mOwners.remove(owner);
+        if (!keepSession && mOwners.isEmpty()) {
+            teardown(true);
+        }
+    }
+
+    /**
+     * @return true if there is a live session, or a saved one waiting to be rejoined.
+     */
+    boolean hasSession() {
+        return getStateMachine().getState() != ConnectionState.IDLE || mPendingResume != null || mStore.load() != null;
+    }
+
+    void setMetrics(CastMetrics metrics) {
+        mEngine.setMetrics(metrics);
+    }
+
+    void setReconnectPolicy(ReconnectPolicy policy) {
+        mEngine.setReconnectPolicy(policy);
+    }
+
+    MessageRoutes getRoutes() {
+        return mRoutes;
+    }
+
+    CastMediaServer getMediaServer() {
+        if (mMediaServer == null) {
+            mMediaServer = new CastMediaServer(mContext);
+            if (getConnectedApiClient() != null) {
+                mMediaServer.start(getDevice());
+            }
+        }
+        return mMediaServer;
+    }
+
+    CastAssets getAssets() {
+        if (mAssets == null) {
+            mAssets = new CastAssets(mContext, getMediaServer());
+        }
+        return mAssets;
+    }
+
+    RouteCache getRouteCache() {
+        return mRouteCache;
+    }
+
+    GoogleApiClient getApiClient() {
+        return apiClientOf(mEngine.getConnection());
+    }
+
+    /**
+     * @return the device of the selected route, or null.
+     */
+    CastDevice getDevice() {
+        return mSelectedDevice;
+    }
+
+    String getSessionId() {
+        return mEngine.getSessionId();
+    }
+
+    /**
+     * @return the client if the receiver app is up and talking to us, otherwise null.
+     */
+    GoogleApiClient getConnectedApiClient() {
+        return apiClientOf(mEngine.getConnectedConnection());
+    }
+
+    ConnectionStateMachine getStateMachine() {
+        return mEngine.getStateMachine();
+    }
+
+    /**
+     * Look for the route of a session saved before the process died, and select it once it shows up.
+     */
+    void resume(MediaRouter router) {
+        if (getStateMachine().getState() != ConnectionState.IDLE || mPendingResume != null) {
+            return;
+        }
+        SessionStore.Record record = mStore.load();
+        if (record == null) {
+            return;
+        }
+        if (record.isOlderThan(MAX_RESUME_AGE_MS)) {
+            Log.d(TAG, "saved session is too old to rejoin");
+            mStore.clear();
+            return;
+        }
+        mPendingResume = record;
+        for (RouteInfo route : router.getRoutes()) {
+            if (onRouteAdded(router, route)) {
+                return;
+            }
+        }
+        mHandler.postDelayed(mResumeTimeout, RESUME_ROUTE_TIMEOUT_MS);
+    }
+
+    /**
+     * @return true if this route belongs to the saved session and has been selected.
+     */
+    boolean onRouteAdded(MediaRouter router, RouteInfo route) {
+        if (mPendingResume == null || !mPendingResume.routeId.equals(route.getId())) {
+            return false;
+        }
+        mHandler.removeCallbacks(mResumeTimeout);
+        CastDevice device = CastDevice.getFromBundle(route.getExtras());
+        if (device == null || !mPendingResume.deviceId.equals(device.getDeviceId())) {
+            Log.d(TAG, "saved route now points at another device");
+            mPendingResume = null;
+            mStore.clear();
+            return false;
+        }
+        Log.d(TAG, "rejoining session on " + route.getName());
+        // Comes back to us through onRouteSelected
+        router.selectRoute(route);
+        return true;
+    }
+
+    void onRouteSelected(String routeId, CastDevice device) {
+        String joinSessionId = null;
+        if (mPendingResume != null) {
+            if (mPendingResume.routeId.equals(routeId)) {
+                joinSessionId = mPendingResume.sessionId;
+            }
+            mPendingResume = null;
+            mHandler.removeCallbacks(mResumeTimeout);
+        }
+        mSelectedDevice = device;
+        mEngine.select(routeId, device != null ? device.getDeviceId() : null, joinSessionId);
+    }
+
+    /**
+     * A screen went to the background, where the process may be killed: note the session is still live.
+     */
+    void onOwnerStopped() {
+        if (getConnectedApiClient() != null) {
+            mStore.touch();
+        }
+    }
+
+    void onRouteUnselected() {
+        teardown(false);
+    }
+
+    /**
+     * Tear down the connection to the receiver
+     */
+    void teardown(boolean selectDefaultRoute) {
+        mEngine.teardown(selectDefaultRoute);
+    }
+
+    void onReceiverUnresponsive() {
+        mEngine.onReceiverUnresponsive();
+    }
+
+    @Override
+    public ReceiverConnection open(String routeId, String deviceId, ReceiverConnection.Callbacks callbacks) {
+        // Connect to Google Play services
+        return new GmsReceiverConnection(mContext, mSelectedDevice, callbacks);
+    }
+
+    @Override
+    public void onConnect(boolean isReconnect) {
+        GoogleApiClient apiClient = getApiClient();
+        mRoutes.attach(apiClient);
+        if (mMediaServer != null) mMediaServer.start(getDevice());
+        mHandler.removeCallbacks(mKeepAlive);
+        mKeepAlive.run();
+        for (CastLogic owner : new ArrayList<>(mOwners)) {
+            owner.dispatchConnect(apiClient, isReconnect);
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+        GoogleApiClient apiClient = getApiClient();
+        for (CastLogic owner : new ArrayList<>(mOwners)) {
+            owner.dispatchDisconnect(apiClient);
+        }
+        mRoutes.detach();
+        mHandler.removeCallbacks(mKeepAlive);
+        mStore.touch();
+    }
+
+    @Override
+    public void onSessionStarted(String routeId, String deviceId, String sessionId) {
+        mStore.save(routeId, deviceId, sessionId);
+    }
+
+    @Override
+    public void onSessionForgotten() {
+        mStore.clear();
+    }
+
+    @Override
+    public void onTeardown(boolean selectDefaultRoute) {
+        if (mAssets != null) mAssets.releaseAll();
+        if (mMediaServer != null) mMediaServer.stop();
+        if (selectDefaultRoute) {
+            MediaRouter mediaRouter = MediaRouter.getInstance(mContext);
+            mediaRouter.selectRoute(mediaRouter.getDefaultRoute());
+        }
+    }
+
+    @Override
+    public void onReconnectScheduled(int attempt, long delayMs, int errorCode) {
+        for (CastLogic owner : new ArrayList<>(mOwners)) {
+            owner.dispatchReconnectScheduled(attempt, delayMs, errorCode);
+        }
+    }
+
+    @Override
+    public void onReconnected(int attempts, long elapsedMs) {
+        for (CastLogic owner : new ArrayList<>(mOwners)) {
+            owner.dispatchReconnected(attempts, elapsedMs);
+        }
+    }
+
+    @Override
+    public void onReconnectAbandoned(int attempts, long elapsedMs, int errorCode) {
+        for (CastLogic owner : new ArrayList<>(mOwners)) {
+            owner.dispatchReconnectAbandoned(attempts, elapsedMs, errorCode);
+        }
+    }
+
+    private static GoogleApiClient apiClientOf(ReceiverConnection connection) {
+        return connection != null ? ((GmsReceiverConnection) connection).getApiClient() : null;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+
+/**
+ * Keeps a {@link StateSync} mirrored on the receiver over a {@link CastChannel}.
+ *
+ * Call {@link #onConnect()} from onCastConnect, connect or reconnect alike, to send a full snapshot,
+ * then {@link #tick()} whenever the game has updated its fields, e.g. once per frame, to send what
+ * changed. When the receiver reports a gap in the versions it gets a new snapshot.
+ *
+ * Register it on the channel's namespace with the {@link NamespaceRouter}. Call it on the main thread.
+ */
+public class CastStateSync implements Cast.MessageReceivedCallback {
+
+    private static final String TAG = CastStateSync.class.getSimpleName();
+
+    private static final ThreadLocal<JsonReader> sReaders = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    private final CastChannel mChannel;
+    private final StateSync mState = new StateSync();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mFrame = new StringBuilder(256);
+    private boolean mConnected;
+    private boolean mSnapshotPending;
+    private volatile Cast.MessageReceivedCallback mFallback;
+
+    private final Runnable mResync = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "receiver missed a delta, resending the snapshot");
+            sendSnapshot();
+        }
+    };
+
+    public CastStateSync(CastChannel channel) {
+        mChannel = channel;
+    }
+
+    public final String getNamespace() {
+        return mChannel.getNamespace();
+    }
+
+    /**
+     * The fields to mirror. Set them freely; nothing is sent until the next {@link #tick()}.
+     */
+    public StateSync getState() {
+        return mState;
+    }
+
+    /**
+     * Gets every message on the namespace that isn't a resync request.
+     */
+    public void setFallback(Cast.MessageReceivedCallback fallback) {
+        mFallback = fallback;
+    }
+
+    /**
+     * Send a full snapshot. Call it from onCastConnect, whether or not it is a reconnect.
+     */
+    public void onConnect() {
+        mConnected = true;
+        sendSnapshot();
+    }
+
+    /**
+     * Stop sending until the next {@link #onConnect()}. Call it from onCastDisconnect.
+     */
+    public void onDisconnect() {
+        mConnected = false;
+        mHandler.removeCallbacks(mResync);
+    }
+
+    /**
+     * Send the fields that changed since the last frame, if any.
+     */
+    public void tick() {
+        if (!mConnected) {
+            return;
+        }
+        if (mSnapshotPending) {
+            sendSnapshot();
+            return;
+        }
+        mFrame.setLength(0);
+        if (mState.writeDelta(mFrame) && !mChannel.send(mFrame.toString())) {
+            // The receiver would see a gap anyway
+            mSnapshotPending = true;
+        }
+    }
+
+    private void sendSnapshot() {
+        if (!mConnected) {
+            return;
+        }
+        mFrame.setLength(0);
+        mState.writeSnapshot(mFrame);
+        mSnapshotPending = !mChannel.send(mFrame.toString());
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        boolean resync;
+        try {
+            resync = StateSync.isResyncRequest(sReaders.get().reset(message));
+        } catch (IllegalArgumentException e) {
+            resync = false;
+        }
+        if (resync) {
+            mHandler.removeCallbacks(mResync);
+            mHandler.post(mResync);
+            return;
+        }
+        Cast.MessageReceivedCallback fallback = mFallback;
+        if (fallback != null) fallback.onMessageReceived(castDevice, namespace, message);
+    }
+}
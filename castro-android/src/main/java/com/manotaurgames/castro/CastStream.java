@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sends payloads too big for one cast message, such as level data or save games, as a stream of
+ * numbered chunks over a {@link CastChannel}.
+ *
+ * Each chunk goes out as {@code {"stream":3,"seq":0,"count":12,"name":"level","data":"<base64>"}}; only
+ * the first one carries the name. The receiver answers {@code {"stream":3,"ack":5}} once it holds every
+ * chunk below 5, and at most a window's worth of chunks is sent ahead of the last ack. Streams go out
+ * one after the other, in the channel's bulk lane. See receiver/castro-stream.js for the receiving end.
+ *
+ * Stream ids come from {@link CastSession}, so they never repeat when a screen, and with it its
+ * CastStream, is recreated, and the receiver keys its state by them rather than by sender.
+ *
+ * After a reconnect, {@link #resume()} sends everything past the last ack again, so chunks already
+ * confirmed are not resent. If the receiver lost track of a stream it acks 0 and the stream starts over.
+ *
+ * Register it on the channel's namespace with the {@link NamespaceRouter}. Call it on the main thread;
+ * {@link Callback}s arrive there too.
+ */
+public class CastStream implements Cast.MessageReceivedCallback {
+
+    private static final String TAG = CastStream.class.getSimpleName();
+
+    /** The receiver stopped acking, even after retries. */
+    public static final int ERROR_TIMEOUT = -1;
+    /** Cancelled, or dropped with {@link #failPending()}. */
+    public static final int ERROR_CANCELLED = -2;
+
+    /**
+     * Payload bytes per chunk by default. Leaves room for base64 and the envelope under the message cap.
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 32 * 1024;
+
+    private static final int MAX_RETRIES = 3;
+
+    private static final ThreadLocal<JsonReader> sReaders = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    /**
+     * Follows one stream on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param acked chunks the receiver has confirmed, out of count.
+         */
+        void onProgress(int stream, int acked, int count);
+
+        void onComplete(int stream);
+
+        /**
+         * @param error one of the ERROR_ constants.
+         */
+        void onFailure(int stream, int error);
+    }
+
+    private final CastChannel mChannel;
+    private final int mChunkBytes;
+    private final int mWindow;
+    private final long mAckTimeoutMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Transfer> mQueue = new ArrayDeque<>();
+    private final Map<Integer, Transfer> mById = new HashMap<>();
+    private final StringBuilder mFrame = new StringBuilder(DEFAULT_CHUNK_BYTES / 3 * 4 + 128);
+    private final JsonWriter mWriter = new JsonWriter();
+    private volatile Cast.MessageReceivedCallback mFallback;
+
+    public CastStream(CastChannel channel) {
+        this(channel, DEFAULT_CHUNK_BYTES, 4, 10 * 1000);
+    }
+
+    /**
+     * @param chunkBytes payload bytes per chunk, at most {@link BinaryCodec#MAX_PAYLOAD_BYTES} less the envelope.
+     * @param window chunks that may be sent ahead of the receiver's last ack.
+     * @param ackTimeoutMs how long to wait for an ack before resending from the last one.
+     */
+    public CastStream(CastChannel channel, int chunkBytes, int window, long ackTimeoutMs) {
+        if (chunkBytes <= 0 || chunkBytes > BinaryCodec.MAX_PAYLOAD_BYTES - 1024) {
+            throw new IllegalArgumentException("chunkBytes out of range: " + chunkBytes);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        mChannel = channel;
+        mChunkBytes = chunkBytes;
+        mWindow = window;
+        mAckTimeoutMs = ackTimeoutMs;
+    }
+
+    public final String getNamespace() {
+        return mChannel.getNamespace();
+    }
+
+    /**
+     * Gets every message on the namespace that isn't an ack.
+     */
+    public void setFallback(Cast.MessageReceivedCallback fallback) {
+        mFallback = fallback;
+    }
+
+    /**
+     * Queue a payload. The array is not copied, so leave it alone until the stream completes.
+     * @param callback may be null.
+     * @return the stream id, unique across every CastStream in the process.
+     */
+    public int send(String name, byte[] data, Callback callback) {
+        Transfer transfer = new Transfer(CastSession.nextStreamId(), name, data, callback);
+        mQueue.add(transfer);
+        mById.put(transfer.id, transfer);
+        if (mQueue.peek() == transfer) {
+            pump(transfer);
+        }
+        return transfer.id;
+    }
+
+    /**
+     * Stop sending a stream. The receiver drops what it has of it when this sender's next stream starts.
+     */
+    public void cancel(int stream) {
+        Transfer transfer = mById.get(stream);
+        if (transfer != null) {
+            finish(transfer, ERROR_CANCELLED);
+        }
+    }
+
+    /**
+     * @return streams not yet complete, including the one being sent.
+     */
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Send everything past the last ack again. Call it from onCastConnect when isReconnect is true.
+     */
+    public void resume() {
+        Transfer transfer = mQueue.peek();
+        if (transfer != null) {
+            transfer.next = transfer.acked;
+            transfer.retries = 0;
+            pump(transfer);
+        }
+    }
+
+    /**
+     * Fail every stream, e.g. from onCastDisconnect when the session has ended for good.
+     */
+    public void failPending() {
+        while (!mQueue.isEmpty()) {
+            finish(mQueue.peek(), ERROR_CANCELLED);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        JsonReader reader = sReaders.get().reset(message);
+        int stream = -1;
+        int ack = -1;
+        try {
+            if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("stream") && reader.peek() == JsonReader.Token.NUMBER) {
+                        stream = reader.nextInt();
+                    } else if (name.equals("ack") && reader.peek() == JsonReader.Token.NUMBER) {
+                        ack = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Malformed message on " + namespace, e);
+        }
+        if (stream == -1 || ack == -1) {
+            Cast.MessageReceivedCallback fallback = mFallback;
+            if (fallback != null) fallback.onMessageReceived(castDevice, namespace, message);
+            return;
+        }
+        final int ackedStream = stream;
+        final int acked = ack;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onAck(ackedStream, acked);
+            }
+        });
+    }
+
+    private void onAck(int stream, int ack) {
+        Transfer transfer = mById.get(stream);
+        if (transfer == null || mQueue.peek() != transfer) {
+            return;
+        }
+        ack = Math.min(ack, transfer.count);
+        if (ack < transfer.acked) {
+            Log.d(TAG, "receiver lost stream " + stream + ", restarting it at " + ack);
+            transfer.next = ack;
+        } else if (ack == transfer.acked) {
+            return;
+        }
+        transfer.acked = ack;
+        transfer.next = Math.max(transfer.next, ack);
+        transfer.retries = 0;
+        if (transfer.callback != null) {
+            transfer.callback.onProgress(stream, ack, transfer.count);
+        }
+        if (ack == transfer.count) {
+            finish(transfer, 0);
+        } else {
+            pump(transfer);
+        }
+    }
+
+    /**
+     * Send as many chunks as the window allows, and restart the ack timer.
+     */
+    private void pump(Transfer transfer) {
+        while (transfer.next < transfer.count && transfer.next < transfer.acked + mWindow) {
+            if (!mChannel.send(encodeChunk(transfer, transfer.next), CastChannel.Priority.BULK)) {
+                // Channel is full; the ack timer tries again
+                break;
+            }
+            transfer.next++;
+        }
+        mHandler.removeCallbacks(transfer);
+        mHandler.postDelayed(transfer, mAckTimeoutMs);
+    }
+
+    private String encodeChunk(Transfer transfer, int seq) {
+        int offset = seq * mChunkBytes;
+        int length = Math.min(mChunkBytes, transfer.data.length - offset);
+        mFrame.setLength(0);
+        JsonWriter writer = mWriter.reset(mFrame);
+        writer.beginObject()
+                .name("stream").value(transfer.id)
+                .name("seq").value(seq)
+                .name("count").value(transfer.count);
+        if (seq == 0) {
+            writer.name("name").value(transfer.name);
+        }
+        writer.name("data").base64Value(ByteBuffer.wrap(transfer.data, offset, length))
+                .endObject();
+        return mFrame.toString();
+    }
+
+    private void finish(Transfer transfer, int error) {
+        mHandler.removeCallbacks(transfer);
+        mById.remove(transfer.id);
+        boolean wasCurrent = mQueue.peek() == transfer;
+        mQueue.remove(transfer);
+        if (transfer.callback != null) {
+            if (error == 0) {
+                transfer.callback.onComplete(transfer.id);
+            } else {
+                transfer.callback.onFailure(transfer.id, error);
+            }
+        }
+        Transfer next = mQueue.peek();
+        if (wasCurrent && next != null) {
+            pump(next);
+        }
+    }
+
+    /**
+     * One payload on its way out. Runs as its own ack timeout.
+     */
+    private final class Transfer implements Runnable {
+
+        final int id;
+        final String name;
+        final byte[] data;
+        final int count;
+        final Callback callback;
+        // Chunks below acked are confirmed; chunks from acked to next are in flight
+        int acked;
+        int next;
+        int retries;
+
+        Transfer(int id, String name, byte[] data, Callback callback) {
+            this.id = id;
+            this.name = name;
+            this.data = data;
+            this.count = Math.max(1, (data.length + mChunkBytes - 1) / mChunkBytes);
+            this.callback = callback;
+        }
+
+        /**
+         * Ack timeout
+         */
+        @Override
+        public void run() {
+            if (++retries > MAX_RETRIES) {
+                Log.e(TAG, "stream " + id + " stalled at " + acked + "/" + count);
+                finish(this, ERROR_TIMEOUT);
+                return;
+            }
+            Log.d(TAG, "no ack for stream " + id + ", resending from " + acked);
+            next = acked;
+            pump(this);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+/**
+ * Keeps a {@link ClockEstimator} of the receiver's clock up to date with pings on a reserved namespace.
+ *
+ * A few quick pings after each connect get a first estimate, and then one every few seconds tracks
+ * drift. The sender pings {@code {"ping":3,"t0":123}} and the receiver answers
+ * {@code {"pong":3,"t0":123,"t1":<received>,"t2":<replied>}}, on its own monotonic clock, e.g.
+ * performance.now(). See receiver/castro-clock.js.
+ *
+ * {@link CastLogic#getClockSync()} runs one for the session. Call it on the main thread.
+ */
+public class ClockSync implements Cast.MessageReceivedCallback {
+
+    public static final String NAMESPACE = "urn:x-cast:com.manotaurgames.castro.clock";
+
+    private static final int BURST_PINGS = 5;
+    private static final long BURST_INTERVAL_MS = 100;
+    private static final long DEFAULT_INTERVAL_MS = 5 * 1000;
+
+    private static final ThreadLocal<JsonReader> sReaders = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    private final ClockEstimator mEstimator = new ClockEstimator();
+    private final CastChannel mChannel = new CastChannel.Builder(NAMESPACE)
+            .setMaxQueuedMessages(BURST_PINGS)
+            .build();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final StringBuilder mFrame = new StringBuilder(48);
+    private final JsonWriter mWriter = new JsonWriter();
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private int mNextSeq;
+    // Pongs to pings from before the last start are ignored
+    private volatile int mFirstSeq;
+    private int mBurstLeft;
+    private boolean mRunning;
+
+    private final Runnable mPing = new Runnable() {
+        @Override
+        public void run() {
+            ping();
+        }
+    };
+
+    /**
+     * @param intervalMs time between pings once the first estimate is in.
+     */
+    public void setInterval(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public ClockEstimator getEstimator() {
+        return mEstimator;
+    }
+
+    /**
+     * @return the receiver's clock right now, or the local clock if there is no estimate yet.
+     */
+    public long getReceiverTime() {
+        return mEstimator.toReceiverTime(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Run task when the receiver's clock reads receiverTimeMs, right away if that has passed.
+     */
+    public void postAtReceiverTime(Runnable task, long receiverTimeMs) {
+        long delay = mEstimator.toSenderTime(receiverTimeMs) - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(task, Math.max(0, delay));
+    }
+
+    /**
+     * Start pinging on a connected client.
+     * @param isReconnect true to keep the estimate; a new session may have a new receiver clock.
+     */
+    public void start(GoogleApiClient apiClient, boolean isReconnect) {
+        if (!isReconnect) {
+            mEstimator.reset();
+        }
+        mChannel.attach(apiClient);
+        mFirstSeq = mNextSeq + 1;
+        mBurstLeft = BURST_PINGS;
+        mRunning = true;
+        mHandler.removeCallbacks(mPing);
+        ping();
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mPing);
+        mChannel.detach();
+        mChannel.clear();
+    }
+
+    private void ping() {
+        if (!mRunning) {
+            return;
+        }
+        mFrame.setLength(0);
+        mWriter.reset(mFrame).beginObject()
+                .name("ping").value(++mNextSeq)
+                .name("t0").value(SystemClock.elapsedRealtime())
+                .endObject();
+        mChannel.send(mFrame.toString(), CastChannel.Priority.REALTIME);
+        long delay = mIntervalMs;
+        if (mBurstLeft > 0) {
+            mBurstLeft--;
+            delay = BURST_INTERVAL_MS;
+        }
+        mHandler.postDelayed(mPing, delay);
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        long t3 = SystemClock.elapsedRealtime();
+        int seq = -1;
+        long t0 = -1;
+        long t1 = -1;
+        long t2 = -1;
+        JsonReader reader = sReaders.get().reset(message);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "pong": seq = reader.nextInt(); break;
+                    case "t0": t0 = reader.nextLong(); break;
+                    // Receivers may report fractional ms from performance.now()
+                    case "t1": t1 = (long) reader.nextDouble(); break;
+                    case "t2": t2 = (long) reader.nextDouble(); break;
+                    default: reader.skipValue(); break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (seq >= mFirstSeq && t0 >= 0 && t1 >= 0 && t2 >= 0) {
+            mEstimator.addSample(t0, t1, t2, t3);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.support.v7.media.MediaRouter;
+
+/**
+ * Decides how hard {@link CastLogic} looks for cast devices while its screen is started.
+ *
+ * A policy returns the flags CastLogic registers its MediaRouter callback with. Zero means we only
+ * listen: routes found by someone else, like the route chooser dialog, are still reported.
+ * {@link MediaRouter#CALLBACK_FLAG_REQUEST_DISCOVERY} asks for discovery, and adding
+ * {@link MediaRouter#CALLBACK_FLAG_PERFORM_ACTIVE_SCAN} asks for an aggressive scan.
+ */
+public abstract class DiscoveryPolicy {
+
+    private static final int DISCOVER = MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY;
+    private static final int SCAN = MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY
+            | MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN;
+
+    /**
+     * @param routeMenuOpen whether the route chooser dialog is showing.
+     * @param connected whether there is a session with a receiver.
+     * @param startedMs how long the screen has been started.
+     * @return MediaRouter callback flags.
+     */
+    public abstract int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs);
+
+    /**
+     * @return how long until {@link #getCallbackFlags} should be asked again even if nothing else
+     * changes, or -1 if the answer only depends on the menu and connection state.
+     */
+    public long getReevaluationDelay(boolean routeMenuOpen, boolean connected, long startedMs) {
+        return -1;
+    }
+
+    /**
+     * Request discovery the whole time the screen is started. This is what Castro has always done.
+     */
+    public static DiscoveryPolicy always() {
+        return new DiscoveryPolicy() {
+            @Override
+            public int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return DISCOVER;
+            }
+        };
+    }
+
+    /**
+     * Never request discovery, only listen for routes found by others.
+     */
+    public static DiscoveryPolicy passive() {
+        return new DiscoveryPolicy() {
+            @Override
+            public int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Scan only while the route chooser dialog is showing.
+     */
+    public static DiscoveryPolicy whileRouteMenuOpen() {
+        return new DiscoveryPolicy() {
+            @Override
+            public int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return routeMenuOpen ? SCAN : 0;
+            }
+        };
+    }
+
+    /**
+     * Scan for the first durationMs after the screen starts, then only listen.
+     * The route chooser dialog still scans while it is showing.
+     */
+    public static DiscoveryPolicy burst(final long durationMs) {
+        return new DiscoveryPolicy() {
+            @Override
+            public int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return routeMenuOpen || startedMs < durationMs ? SCAN : 0;
+            }
+
+            @Override
+            public long getReevaluationDelay(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return startedMs < durationMs ? durationMs - startedMs : -1;
+            }
+        };
+    }
+
+    /**
+     * Only listen while connected to a receiver, otherwise defer to another policy.
+     */
+    public static DiscoveryPolicy offWhileConnected(final DiscoveryPolicy whenIdle) {
+        return new DiscoveryPolicy() {
+            @Override
+            public int getCallbackFlags(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return connected ? 0 : whenIdle.getCallbackFlags(routeMenuOpen, false, startedMs);
+            }
+
+            @Override
+            public long getReevaluationDelay(boolean routeMenuOpen, boolean connected, long startedMs) {
+                return connected ? -1 : whenIdle.getReevaluationDelay(routeMenuOpen, false, startedMs);
+            }
+        };
+    }
+}
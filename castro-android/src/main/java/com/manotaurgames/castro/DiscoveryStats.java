@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.support.v7.media.MediaRouter;
+
+/**
+ * How much of a screen's started time was spent discovering cast devices.
+ * Use it to tune a {@link DiscoveryPolicy}.
+ */
+public final class DiscoveryStats {
+
+    private long mStartedMs;
+    private long mDiscoveryMs;
+    private long mActiveScanMs;
+
+    private int mFlags;
+    private long mSince = -1;
+
+    DiscoveryStats() {
+    }
+
+    private DiscoveryStats(long startedMs, long discoveryMs, long activeScanMs) {
+        mStartedMs = startedMs;
+        mDiscoveryMs = discoveryMs;
+        mActiveScanMs = activeScanMs;
+    }
+
+    /**
+     * Record that the callback flags changed, or that tracking started.
+     */
+    void update(long now, int flags) {
+        close(now);
+        mFlags = flags;
+        mSince = now;
+    }
+
+    /**
+     * Record that the screen stopped.
+     */
+    void stop(long now) {
+        close(now);
+        mSince = -1;
+    }
+
+    DiscoveryStats snapshot(long now) {
+        DiscoveryStats snapshot = new DiscoveryStats(mStartedMs, mDiscoveryMs, mActiveScanMs);
+        if (mSince >= 0) {
+            snapshot.mFlags = mFlags;
+            snapshot.mSince = mSince;
+            snapshot.close(now);
+            snapshot.mSince = -1;
+        }
+        return snapshot;
+    }
+
+    private void close(long now) {
+        if (mSince < 0) {
+            return;
+        }
+        long elapsed = now - mSince;
+        mStartedMs += elapsed;
+        if ((mFlags & MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY) != 0) {
+            mDiscoveryMs += elapsed;
+        }
+        if ((mFlags & MediaRouter.CALLBACK_FLAG_PERFORM_ACTIVE_SCAN) != 0) {
+            mActiveScanMs += elapsed;
+        }
+        mSince = now;
+    }
+
+    /**
+     * @return total time the screen was started.
+     */
+    public long getStartedMillis() {
+        return mStartedMs;
+    }
+
+    /**
+     * @return time spent requesting discovery, including active scans.
+     */
+    public long getDiscoveryMillis() {
+        return mDiscoveryMs;
+    }
+
+    /**
+     * @return time spent actively scanning.
+     */
+    public long getActiveScanMillis() {
+        return mActiveScanMs;
+    }
+
+    /**
+     * @return the fraction of started time spent requesting discovery.
+     */
+    public float getDutyCycle() {
+        return mStartedMs == 0 ? 0f : (float) mDiscoveryMs / mStartedMs;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryStats{started=" + mStartedMs + "ms"
+                + ", discovery=" + mDiscoveryMs + "ms"
+                + ", activeScan=" + mActiveScanMs + "ms"
+                + ", dutyCycle=" + getDutyCycle() + "}";
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+/**
+ * {@link MessageSender} over a GoogleApiClient.
+ */
+final class GmsMessageSender implements MessageSender {
+
+    private final GoogleApiClient mApiClient;
+
+    GmsMessageSender(GoogleApiClient apiClient) {
+        mApiClient = apiClient;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mApiClient.isConnected();
+    }
+
+    @Override
+    public void sendMessage(String namespace, String message, final Callback callback) {
+        Cast.CastApi.sendMessage(mApiClient, namespace, message).setResultCallback(
+                new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(Status result) {
+                        callback.onResult(result.getStatusCode());
+                    }
+                });
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.google.android.gms.cast.ApplicationMetadata;
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.Cast.ApplicationConnectionResult;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+/**
+ * {@link ReceiverConnection} backed by a GoogleApiClient with the Cast API.
+ */
+final class GmsReceiverConnection implements ReceiverConnection {
+
+    private static final String TAG = GmsReceiverConnection.class.getSimpleName();
+
+    private final GoogleApiClient mApiClient;
+    private final Callbacks mCallbacks;
+
+    GmsReceiverConnection(Context context, CastDevice device, final Callbacks callbacks) {
+        mCallbacks = callbacks;
+        Cast.Listener castListener = new Cast.Listener() {
+
+            @Override
+            public void onApplicationDisconnected(int errorCode) {
+                callbacks.onApplicationDisconnected(errorCode);
+            }
+
+        };
+        Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
+                .builder(device, castListener);
+        mApiClient = new GoogleApiClient.Builder(context)
+                .addApi(Cast.API, apiOptionsBuilder.build())
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(Bundle connectionHint) {
+                        callbacks.onConnected(connectionHint != null
+                                && connectionHint.getBoolean(Cast.EXTRA_APP_NO_LONGER_RUNNING));
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int cause) {
+                        callbacks.onConnectionSuspended(cause == CAUSE_NETWORK_LOST
+                                ? ConnectionResult.NETWORK_ERROR : ConnectionResult.INTERNAL_ERROR);
+                    }
+                })
+                .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener() {
+                    @Override
+                    public void onConnectionFailed(ConnectionResult result) {
+                        callbacks.onConnectionFailed(result.getErrorCode());
+                    }
+                })
+                .build();
+    }
+
+    GoogleApiClient getApiClient() {
+        return mApiClient;
+    }
+
+    @Override
+    public void connect() {
+        mApiClient.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mApiClient.disconnect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mApiClient.isConnected();
+    }
+
+    @Override
+    public boolean isConnecting() {
+        return mApiClient.isConnecting();
+    }
+
+    @Override
+    public void launchApplication(String appId) {
+        Cast.CastApi.launchApplication(mApiClient, appId, false)
+                .setResultCallback(new ApplicationConnectionCallback());
+    }
+
+    @Override
+    public void joinApplication(String appId, String sessionId) {
+        Cast.CastApi.joinApplication(mApiClient, appId, sessionId)
+                .setResultCallback(new ApplicationConnectionCallback());
+    }
+
+    @Override
+    public void stopApplication(String sessionId) {
+        Cast.CastApi.stopApplication(mApiClient, sessionId);
+    }
+
+    /**
+     * Result of launching or joining the receiver app
+     */
+    private class ApplicationConnectionCallback implements ResultCallback<ApplicationConnectionResult> {
+
+        @Override
+        public void onResult(ApplicationConnectionResult result) {
+            Status status = result.getStatus();
+            Log.d(TAG, "ApplicationConnectionResultCallback.onResult:" + status.getStatusCode());
+            if (status.isSuccess()) {
+                ApplicationMetadata applicationMetadata = result.getApplicationMetadata();
+                Log.d(TAG, "application name: " + applicationMetadata.getName()
+                        + ", status: " + result.getApplicationStatus()
+                        + ", wasLaunched: " + result.getWasLaunched());
+                mCallbacks.onApplicationConnected(result.getSessionId());
+            } else {
+                mCallbacks.onApplicationFailed(status.getStatusCode());
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * {@link Scheduler} on the main thread, and the logcat {@link CastLog.Sink}.
+ */
+final class MainThreadScheduler implements Scheduler {
+
+    private static MainThreadScheduler sInstance;
+
+    static synchronized MainThreadScheduler get() {
+        if (sInstance == null) {
+            CastLog.setSink(new CastLog.Sink() {
+                @Override
+                public void d(String tag, String message) {
+                    Log.d(tag, message);
+                }
+
+                @Override
+                public void e(String tag, String message, Throwable tr) {
+                    Log.e(tag, message, tr);
+                }
+            });
+            sInstance = new MainThreadScheduler();
+        }
+        return sInstance;
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private MainThreadScheduler() {
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mHandler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+}
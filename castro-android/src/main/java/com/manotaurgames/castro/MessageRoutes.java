@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The session's half of message routing. Play services allows one callback per namespace on a client,
+ * and every screen shares the session's client, so this installs one callback per namespace and fans
+ * messages out to every registration for it: those of each screen's {@link NamespaceRouter}, and those
+ * of Castro's own services. A namespace is only removed from the client once its last registration goes.
+ *
+ * Registrations without a router are delivered directly on the main thread, where Play services calls
+ * us; a router's registrations go through that router's executor.
+ *
+ * Owned by {@link CastSession}, or by a {@link CastGroup} member. Call it on the main thread.
+ */
+final class MessageRoutes {
+
+    private static final String TAG = MessageRoutes.class.getSimpleName();
+
+    private final Map<String, Route> mRoutes = new HashMap<>();
+    // Told of every message
+    private final CopyOnWriteArrayList<HeartbeatMonitor> mHeartbeats = new CopyOnWriteArrayList<>();
+    private GoogleApiClient mApiClient;
+
+    /**
+     * Deliver messages on namespace to a library service, directly on the main thread.
+     */
+    void register(String namespace, Cast.MessageReceivedCallback callback) {
+        add(namespace, callback, null);
+    }
+
+    void unregister(String namespace, Cast.MessageReceivedCallback callback) {
+        remove(namespace, callback, null);
+    }
+
+    /**
+     * @param owner the router whose executor delivers the messages, null to deliver directly.
+     */
+    void add(String namespace, Cast.MessageReceivedCallback callback, NamespaceRouter owner) {
+        Route route = mRoutes.get(namespace);
+        if (route == null) {
+            route = new Route(namespace);
+            mRoutes.put(namespace, route);
+            install(route);
+        }
+        route.registrations.addIfAbsent(new Registration(callback, owner));
+    }
+
+    void remove(String namespace, Cast.MessageReceivedCallback callback, NamespaceRouter owner) {
+        Route route = mRoutes.get(namespace);
+        if (route == null) {
+            return;
+        }
+        route.registrations.remove(new Registration(callback, owner));
+        if (route.registrations.isEmpty()) {
+            mRoutes.remove(namespace);
+            uninstall(namespace);
+        }
+    }
+
+    void addHeartbeat(HeartbeatMonitor heartbeat) {
+        mHeartbeats.addIfAbsent(heartbeat);
+    }
+
+    void removeHeartbeat(HeartbeatMonitor heartbeat) {
+        mHeartbeats.remove(heartbeat);
+    }
+
+    /**
+     * Install every registered namespace on a freshly connected client.
+     */
+    void attach(GoogleApiClient apiClient) {
+        mApiClient = apiClient;
+        for (Route route : mRoutes.values()) {
+            install(route);
+        }
+    }
+
+    /**
+     * Take the namespaces off the client. Registrations stay for the next {@link #attach}.
+     */
+    void detach() {
+        for (String namespace : mRoutes.keySet()) {
+            uninstall(namespace);
+        }
+        mApiClient = null;
+    }
+
+    private void install(Route route) {
+        if (mApiClient == null) {
+            return;
+        }
+        try {
+            Cast.CastApi.setMessageReceivedCallbacks(mApiClient, route.namespace, route);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Exception while registering " + route.namespace, e);
+        }
+    }
+
+    private void uninstall(String namespace) {
+        if (mApiClient == null || !mApiClient.isConnected()) {
+            return;
+        }
+        try {
+            Cast.CastApi.removeMessageReceivedCallbacks(mApiClient, namespace);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Exception while removing " + namespace, e);
+        }
+    }
+
+    /**
+     * A callback and the router it came through.
+     */
+    private static final class Registration {
+
+        final Cast.MessageReceivedCallback callback;
+        final NamespaceRouter owner;
+
+        Registration(Cast.MessageReceivedCallback callback, NamespaceRouter owner) {
+            this.callback = callback;
+            this.owner = owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Registration)) {
+                return false;
+            }
+            Registration other = (Registration) o;
+            return callback == other.callback && owner == other.owner;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(callback) * 31 + System.identityHashCode(owner);
+        }
+    }
+
+    /**
+     * The one callback installed for a namespace.
+     */
+    private final class Route implements Cast.MessageReceivedCallback {
+
+        final String namespace;
+        final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+        Route(String namespace) {
+            this.namespace = namespace;
+        }
+
+        @Override
+        public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+            for (HeartbeatMonitor heartbeat : mHeartbeats) {
+                heartbeat.onHeard();
+            }
+            for (Registration registration : registrations) {
+                if (registration.owner != null) {
+                    registration.owner.dispatch(registration.callback, castDevice, namespace, message);
+                } else {
+                    deliver(registration.callback, castDevice, namespace, message);
+                }
+            }
+        }
+    }
+
+    static void deliver(Cast.MessageReceivedCallback callback, CastDevice castDevice, String namespace,
+                        String message) {
+        try {
+            callback.onMessageReceived(castDevice, namespace, message);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Callback for " + namespace + " failed", e);
+        }
+    }
+}
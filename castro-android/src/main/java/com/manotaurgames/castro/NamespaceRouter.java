@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * One screen's view of the messages on every custom namespace. Each {@link CastLogic} has its own
+ * router; they all share their session's single installed callback per namespace, so two screens can
+ * listen to the same namespace, and destroying one leaves the other's registrations in place.
+ *
+ * Registrations outlive the connection: the session re-installs them with
+ * {@link Cast.CastApi#setMessageReceivedCallbacks} on every connect and reconnect. Messages are
+ * handed to this router's {@link Executor}, so parsing can stay off the main thread. With per-namespace
+ * ordering, each namespace sees its messages one at a time and in arrival order even on a pool.
+ * Castro's own services don't go through here and always run on the main thread.
+ *
+ * Register and unregister on the main thread.
+ */
+public final class NamespaceRouter {
+
+    private static final String TAG = NamespaceRouter.class.getSimpleName();
+
+    private final MessageRoutes mRoutes;
+    // This screen's registrations, dropped when it goes
+    private final Map<String, List<Cast.MessageReceivedCallback>> mCallbacks = new HashMap<>();
+    private final Map<String, Feed> mFeeds = new HashMap<>();
+    // Ordered queues, rebuilt whenever the executor changes
+    private final Map<String, SerialExecutor> mSerials = new ConcurrentHashMap<>();
+    private Handler mMainHandler;
+    private Executor mMainExecutor;
+    private volatile Executor mExecutor;
+    private volatile boolean mOrdered = true;
+
+    NamespaceRouter(MessageRoutes routes) {
+        mRoutes = routes;
+    }
+
+    /**
+     * Executor that runs everything on a new {@link HandlerThread}, for keeping message handling
+     * off the main thread without a pool. Quit its looper when you're done with it.
+     */
+    public static Executor newHandlerThreadExecutor(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return handlerExecutor(thread.getLooper());
+    }
+
+    public static Executor handlerExecutor(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!handler.post(command)) {
+                    Log.e(TAG, "Dropping message, looper has quit");
+                }
+            }
+        };
+    }
+
+    /**
+     * Where callbacks run. Null, the default, runs them directly on the main thread.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @param ordered true, the default, to deliver each namespace's messages one at a time in
+     *                arrival order. False lets a multi-threaded executor handle them concurrently.
+     */
+    public void setOrderedPerNamespace(boolean ordered) {
+        mOrdered = ordered;
+    }
+
+    /**
+     * Deliver messages on namespace to callback, from now until it is unregistered.
+     */
+    public void register(String namespace, Cast.MessageReceivedCallback callback) {
+        List<Cast.MessageReceivedCallback> callbacks = mCallbacks.get(namespace);
+        if (callbacks == null) {
+            callbacks = new ArrayList<>();
+            mCallbacks.put(namespace, callbacks);
+        }
+        if (!callbacks.contains(callback)) {
+            callbacks.add(callback);
+            mRoutes.add(namespace, callback, this);
+        }
+    }
+
+    public void unregister(String namespace, Cast.MessageReceivedCallback callback) {
+        List<Cast.MessageReceivedCallback> callbacks = mCallbacks.get(namespace);
+        if (callbacks == null || !callbacks.remove(callback)) {
+            return;
+        }
+        if (callbacks.isEmpty()) {
+            mCallbacks.remove(namespace);
+            mSerials.remove(namespace);
+        }
+        mRoutes.remove(namespace, callback, this);
+    }
+
+    /**
+     * Drop every registration and subscription made through this router. Other screens' stay.
+     */
+    public void unregisterAll() {
+        for (Map.Entry<String, List<Cast.MessageReceivedCallback>> entry : mCallbacks.entrySet()) {
+            for (Cast.MessageReceivedCallback callback : entry.getValue()) {
+                mRoutes.remove(entry.getKey(), callback, this);
+            }
+        }
+        mCallbacks.clear();
+        mSerials.clear();
+        for (Map.Entry<String, Feed> entry : mFeeds.entrySet()) {
+            mRoutes.remove(entry.getKey(), entry.getValue(), null);
+        }
+        mFeeds.clear();
+    }
+
+    /**
+     * Deliver messages on namespace to subscriber on the main thread until the subscription is
+     * cancelled. Each subscriber has its own queue, so one that falls behind a busy namespace only
+     * loses its own messages, as its backpressure says. Once a namespace's last subscription is
+     * cancelled, its messages stop coming here at all.
+     */
+    public Publisher.Subscription subscribe(String namespace, Publisher.Subscriber<String> subscriber,
+                                            Publisher.Backpressure backpressure, int capacity) {
+        Feed feed = mFeeds.get(namespace);
+        if (feed == null) {
+            feed = new Feed(namespace);
+            mFeeds.put(namespace, feed);
+            // Feeds hand off to each subscriber's queue, so they don't need this router's executor
+            mRoutes.add(namespace, feed, null);
+        }
+        if (mMainHandler == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+            mMainExecutor = handlerExecutor(Looper.getMainLooper());
+        }
+        return new FeedSubscription(feed,
+                feed.publisher.subscribe(subscriber, mMainExecutor, backpressure, capacity));
+    }
+
+    /**
+     * Unregister a feed nobody is subscribed to any more. Main thread only.
+     */
+    private void onFeedCancelled(Feed feed) {
+        if (feed.publisher.getSubscriberCount() == 0 && mFeeds.get(feed.namespace) == feed) {
+            mFeeds.remove(feed.namespace);
+            mRoutes.remove(feed.namespace, feed, null);
+        }
+    }
+
+    /**
+     * Hand a message for one of this router's callbacks to its executor.
+     */
+    void dispatch(final Cast.MessageReceivedCallback callback, final CastDevice castDevice,
+                  final String namespace, final String message) {
+        Executor executor = mExecutor;
+        if (executor == null) {
+            MessageRoutes.deliver(callback, castDevice, namespace, message);
+            return;
+        }
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                MessageRoutes.deliver(callback, castDevice, namespace, message);
+            }
+        };
+        try {
+            (mOrdered ? serial(namespace, executor) : executor).execute(delivery);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Executor rejected messages for " + namespace, e);
+        }
+    }
+
+    private Executor serial(String namespace, Executor executor) {
+        SerialExecutor serial = mSerials.get(namespace);
+        if (serial == null || serial.getDelegate() != executor) {
+            serial = new SerialExecutor(executor);
+            mSerials.put(namespace, serial);
+        }
+        return serial;
+    }
+
+    /**
+     * Publishes one namespace's messages to its subscribers.
+     */
+    private static final class Feed implements Cast.MessageReceivedCallback {
+
+        final String namespace;
+        final Publisher<String> publisher = new Publisher<>(false);
+
+        Feed(String namespace) {
+            this.namespace = namespace;
+        }
+
+        @Override
+        public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+            publisher.publish(message);
+        }
+    }
+
+    /**
+     * A subscription to a feed that unregisters the feed when it was the last one. May be cancelled
+     * from any thread.
+     */
+    private final class FeedSubscription implements Publisher.Subscription, Runnable {
+
+        private final Feed mFeed;
+        private final Publisher.Subscription mSubscription;
+
+        FeedSubscription(Feed feed, Publisher.Subscription subscription) {
+            mFeed = feed;
+            mSubscription = subscription;
+        }
+
+        @Override
+        public void cancel() {
+            mSubscription.cancel();
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                run();
+            } else {
+                mMainHandler.post(this);
+            }
+        }
+
+        @Override
+        public int getDroppedCount() {
+            return mSubscription.getDroppedCount();
+        }
+
+        @Override
+        public void run() {
+            onFeedCancelled(mFeed);
+        }
+    }
+}
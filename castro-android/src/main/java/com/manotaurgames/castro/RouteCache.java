@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recently seen cast routes, least recently seen first, kept across launches so the cast button
+ * can show up before MediaRouter has rediscovered anything. Entries expire after a TTL, not when
+ * MediaRouter loses sight of a route, since that happens every time discovery stops. Queries only
+ * filter by age; expired entries are dropped from storage the next time it's written.
+ *
+ * Nothing is read until the cache is first queried or written, so creating one costs no disk access
+ * on the cold-start path.
+ *
+ * Main thread only.
+ */
+final class RouteCache {
+
+    private static final String TAG = RouteCache.class.getSimpleName();
+
+    static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * Re-seeing a route more often than this doesn't rewrite the preferences.
+     */
+    private static final long SAVE_INTERVAL_MS = 60 * 1000;
+
+    static final class Route {
+        final String routeId;
+        final String deviceId;
+        final String name;
+        long lastSeen;
+
+        Route(String routeId, String deviceId, String name, long lastSeen) {
+            this.routeId = routeId;
+            this.deviceId = deviceId;
+            this.name = name;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private final Context mContext;
+    private final String mPrefsName;
+    private final String mKey;
+    private final int mCapacity;
+    private final LinkedHashMap<String, Route> mRoutes;
+    private long mTtlMs = DEFAULT_TTL_MS;
+    // Null until the first query or write
+    private SharedPreferences mPrefs;
+
+    RouteCache(Context context, String prefsName, String key, final int capacity) {
+        mContext = context;
+        mPrefsName = prefsName;
+        mKey = key;
+        mCapacity = capacity;
+        mRoutes = new LinkedHashMap<String, Route>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    void setTtl(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Record that a route is reachable right now.
+     */
+    void put(String routeId, String deviceId, String name) {
+        load();
+        long now = System.currentTimeMillis();
+        Route route = mRoutes.get(routeId);
+        if (route != null && route.deviceId.equals(deviceId) && now - route.lastSeen < SAVE_INTERVAL_MS) {
+            route.lastSeen = now;
+            return;
+        }
+        mRoutes.put(routeId, new Route(routeId, deviceId, name, now));
+        save();
+    }
+
+    /**
+     * Drop every route that hasn't been seen since the given wall clock time.
+     * @return true if anything was dropped.
+     */
+    boolean removeNotSeenSince(long time) {
+        load();
+        boolean removed = false;
+        for (Iterator<Route> it = mRoutes.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastSeen < time) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            save();
+        }
+        return removed;
+    }
+
+    /**
+     * @return routes seen within the TTL, most recently seen last.
+     */
+    List<Route> getLiveRoutes() {
+        load();
+        long oldest = System.currentTimeMillis() - mTtlMs;
+        List<Route> live = new ArrayList<>(mRoutes.size());
+        for (Route route : mRoutes.values()) {
+            if (route.lastSeen >= oldest) {
+                live.add(route);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Cheap enough for UI queries: reads memory only, once loaded.
+     */
+    boolean hasLiveRoutes() {
+        load();
+        long oldest = System.currentTimeMillis() - mTtlMs;
+        for (Route route : mRoutes.values()) {
+            if (route.lastSeen >= oldest) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load() {
+        if (mPrefs != null) {
+            return;
+        }
+        mPrefs = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
+        String json = mPrefs.getString(mKey, null);
+        if (json == null) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject o = array.getJSONObject(i);
+                Route route = new Route(o.getString("routeId"), o.getString("deviceId"),
+                        o.optString("name", null), o.getLong("lastSeen"));
+                mRoutes.put(route.routeId, route);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Discarding unreadable route cache", e);
+            mRoutes.clear();
+        }
+    }
+
+    private void save() {
+        long oldest = System.currentTimeMillis() - mTtlMs;
+        for (Iterator<Route> it = mRoutes.values().iterator(); it.hasNext(); ) {
+            if (it.next().lastSeen < oldest) {
+                it.remove();
+            }
+        }
+        JSONArray array = new JSONArray();
+        try {
+            for (Route route : mRoutes.values()) {
+                array.put(new JSONObject()
+                        .put("routeId", route.routeId)
+                        .put("deviceId", route.deviceId)
+                        .put("name", route.name)
+                        .put("lastSeen", route.lastSeen));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to save route cache", e);
+            return;
+        }
+        mPrefs.edit().putString(mKey, array.toString()).apply();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.support.v7.app.MediaRouteChooserDialogFragment;
+
+/**
+ * The stock route chooser, but it tells {@link CastLogic} when it is showing so a
+ * {@link DiscoveryPolicy} can scan only while the user is picking a device.
+ */
+public class RouteChooserDialogFragment extends MediaRouteChooserDialogFragment {
+
+    interface Listener {
+        void onRouteMenuVisibilityChanged(boolean visible);
+    }
+
+    // Not restored if the dialog is recreated, the chooser still does its own scanning then
+    private Listener mListener;
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (mListener != null) mListener.onRouteMenuVisibilityChanged(true);
+    }
+
+    @Override
+    public void onStop() {
+        if (mListener != null) mListener.onRouteMenuVisibilityChanged(false);
+        super.onStop();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the last live session so it can be rejoined after the process is killed. Its age counts
+ * from the last time it was known to be live, not from when it started, so a long session is
+ * rejoined as readily as a short one.
+ */
+final class SessionStore {
+
+    static final String PREFS_NAME = "com.manotaurgames.castro";
+
+    private static final String KEY_ROUTE_ID = "routeId";
+    private static final String KEY_DEVICE_ID = "deviceId";
+    private static final String KEY_SESSION_ID = "sessionId";
+    private static final String KEY_SAVED_AT = "savedAt";
+
+    static final class Record {
+        final String routeId;
+        final String deviceId;
+        final String sessionId;
+        // Wall clock time the session was last known to be live
+        final long savedAt;
+
+        Record(String routeId, String deviceId, String sessionId, long savedAt) {
+            this.routeId = routeId;
+            this.deviceId = deviceId;
+            this.sessionId = sessionId;
+            this.savedAt = savedAt;
+        }
+
+        boolean isOlderThan(long maxAgeMs) {
+            long age = System.currentTimeMillis() - savedAt;
+            return age < 0 || age > maxAgeMs;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final String mPrefix;
+
+    SessionStore(Context context, String castAppId) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefix = castAppId + ".";
+    }
+
+    Record load() {
+        String routeId = mPrefs.getString(mPrefix + KEY_ROUTE_ID, null);
+        String deviceId = mPrefs.getString(mPrefix + KEY_DEVICE_ID, null);
+        String sessionId = mPrefs.getString(mPrefix + KEY_SESSION_ID, null);
+        if (routeId == null || deviceId == null || sessionId == null) {
+            return null;
+        }
+        return new Record(routeId, deviceId, sessionId, mPrefs.getLong(mPrefix + KEY_SAVED_AT, 0));
+    }
+
+    void save(String routeId, String deviceId, String sessionId) {
+        mPrefs.edit()
+                .putString(mPrefix + KEY_ROUTE_ID, routeId)
+                .putString(mPrefix + KEY_DEVICE_ID, deviceId)
+                .putString(mPrefix + KEY_SESSION_ID, sessionId)
+                .putLong(mPrefix + KEY_SAVED_AT, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Note that the saved session is still live, if there is one.
+     */
+    void touch() {
+        if (mPrefs.contains(mPrefix + KEY_SESSION_ID)) {
+            mPrefs.edit().putLong(mPrefix + KEY_SAVED_AT, System.currentTimeMillis()).apply();
+        }
+    }
+
+    void clear() {
+        mPrefs.edit()
+                .remove(mPrefix + KEY_ROUTE_ID)
+                .remove(mPrefix + KEY_DEVICE_ID)
+                .remove(mPrefix + KEY_SESSION_ID)
+                .remove(mPrefix + KEY_SAVED_AT)
+                .apply();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import android.util.Log;
+
+import com.google.android.gms.cast.Cast;
+import com.google.android.gms.cast.CastDevice;
+
+/**
+ * Typed messages on top of a {@link CastChannel}. Outgoing messages are encoded with a
+ * {@link MessageCodec} into a builder pooled per thread. Register the channel as the namespace's
+ * {@link Cast.MessageReceivedCallback} to get incoming messages decoded the same way.
+ *
+ * Frames that fail to decode are logged and dropped.
+ */
+public class TypedChannel<T> implements Cast.MessageReceivedCallback {
+
+    private static final String TAG = TypedChannel.class.getSimpleName();
+
+    // Dropped instead of reused once a huge message has grown it past this
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> sBuilders = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    public interface Listener<T> {
+        void onMessage(TypedChannel<T> channel, CastDevice castDevice, T message);
+    }
+
+    private final CastChannel mChannel;
+    private final MessageCodec<T> mCodec;
+    private volatile Listener<T> mListener;
+
+    public TypedChannel(CastChannel channel, MessageCodec<T> codec) {
+        if (channel == null || codec == null) {
+            throw new NullPointerException();
+        }
+        mChannel = channel;
+        mCodec = codec;
+    }
+
+    public final CastChannel getChannel() {
+        return mChannel;
+    }
+
+    public final String getNamespace() {
+        return mChannel.getNamespace();
+    }
+
+    public final MessageCodec<T> getCodec() {
+        return mCodec;
+    }
+
+    public void setListener(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Encode and queue a message. May be called from any thread.
+     * @return false if the channel refused it, see {@link CastChannel#send(String)}.
+     */
+    public boolean send(T message) {
+        StringBuilder builder = sBuilders.get();
+        builder.setLength(0);
+        mCodec.encode(message, builder);
+        String frame = builder.toString();
+        if (builder.capacity() > MAX_POOLED_CAPACITY) {
+            sBuilders.remove();
+        }
+        return mChannel.send(frame);
+    }
+
+    @Override
+    public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        T decoded;
+        try {
+            decoded = mCodec.decode(message);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Dropping undecodable message on " + namespace, e);
+            return;
+        }
+        Listener<T> listener = mListener;
+        if (listener != null) listener.onMessage(this, castDevice, decoded);
+    }
+}
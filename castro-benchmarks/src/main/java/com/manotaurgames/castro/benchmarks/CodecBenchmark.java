@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.benchmarks;
+
+import com.manotaurgames.castro.BinaryCodec;
+import com.manotaurgames.castro.JsonCodec;
+import com.manotaurgames.castro.JsonReader;
+import com.manotaurgames.castro.JsonWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput of the JSON and binary codecs on a typical game input frame. Run with
+ * {@code -prof gc} to check that steady-state encoding stays allocation-free apart from the result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /**
+     * A player's input for one frame.
+     */
+    static final class Input {
+        int player;
+        long frame;
+        double x;
+        double y;
+        boolean fire;
+        String action;
+    }
+
+    static final JsonCodec<Input> JSON = new JsonCodec<Input>() {
+        @Override
+        protected void write(JsonWriter writer, Input input) {
+            writer.beginObject()
+                    .name("player").value(input.player)
+                    .name("frame").value(input.frame)
+                    .name("x").value(input.x)
+                    .name("y").value(input.y)
+                    .name("fire").value(input.fire)
+                    .name("action").value(input.action)
+                    .endObject();
+        }
+
+        @Override
+        protected Input read(JsonReader reader) {
+            Input input = new Input();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "player": input.player = reader.nextInt(); break;
+                    case "frame": input.frame = reader.nextLong(); break;
+                    case "x": input.x = reader.nextDouble(); break;
+                    case "y": input.y = reader.nextDouble(); break;
+                    case "fire": input.fire = reader.nextBoolean(); break;
+                    case "action": input.action = reader.nextString(); break;
+                    default: reader.skipValue(); break;
+                }
+            }
+            reader.endObject();
+            return input;
+        }
+    };
+
+    static final BinaryCodec<Input> BINARY = new BinaryCodec<Input>() {
+        @Override
+        protected void write(Input input, ByteBuffer buffer) {
+            buffer.put((byte) input.player)
+                    .putLong(input.frame)
+                    .putFloat((float) input.x)
+                    .putFloat((float) input.y)
+                    .put((byte) (input.fire ? 1 : 0))
+                    .put((byte) input.action.charAt(0));
+        }
+
+        @Override
+        protected Input read(ByteBuffer buffer) {
+            Input input = new Input();
+            input.player = buffer.get();
+            input.frame = buffer.getLong();
+            input.x = buffer.getFloat();
+            input.y = buffer.getFloat();
+            input.fire = buffer.get() != 0;
+            input.action = buffer.get() == 'j' ? "jump" : "run";
+            return input;
+        }
+    };
+
+    private Input mInput;
+    private final StringBuilder mOut = new StringBuilder(256);
+    private String mJsonFrame;
+    private String mBinaryFrame;
+
+    @Setup
+    public void setup() {
+        mInput = new Input();
+        mInput.player = 3;
+        mInput.frame = 123456789L;
+        mInput.x = 0.25;
+        mInput.y = -0.75;
+        mInput.fire = true;
+        mInput.action = "jump";
+        JSON.encode(mInput, mOut);
+        mJsonFrame = mOut.toString();
+        mOut.setLength(0);
+        BINARY.encode(mInput, mOut);
+        mBinaryFrame = mOut.toString();
+    }
+
+    @Benchmark
+    public StringBuilder jsonEncode() {
+        mOut.setLength(0);
+        JSON.encode(mInput, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public Input jsonDecode() {
+        return JSON.decode(mJsonFrame);
+    }
+
+    @Benchmark
+    public StringBuilder binaryEncode() {
+        mOut.setLength(0);
+        BINARY.encode(mInput, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public Input binaryDecode() {
+        return BINARY.decode(mBinaryFrame);
+    }
+}
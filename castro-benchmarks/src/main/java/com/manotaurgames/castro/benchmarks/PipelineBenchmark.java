@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.benchmarks;
+
+import com.manotaurgames.castro.MessagePipeline;
+import com.manotaurgames.castro.MessageSender;
+import com.manotaurgames.castro.SerialExecutor;
+import com.manotaurgames.castro.fake.ManualScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound messages through the send pipeline, with and without batching, against a sender that
+ * acknowledges immediately; and inbound dispatch through the per-namespace serial executor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final String MESSAGE = "{\"player\":3,\"x\":0.25,\"y\":-0.75,\"fire\":true}";
+
+    @Param({"0", "4096"})
+    public int batchBytes;
+
+    private ManualScheduler mScheduler;
+    private MessagePipeline mPipeline;
+    private Blackhole mBlackhole;
+    private SerialExecutor mSerial;
+    private Runnable mDelivery;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mScheduler = new ManualScheduler();
+        MessagePipeline.Builder builder = new MessagePipeline.Builder("urn:x-cast:bench", mScheduler)
+                .setMaxQueuedMessages(1024);
+        if (batchBytes > 0) {
+            builder.setBatching(batchBytes, 0);
+        }
+        mPipeline = builder.build();
+        mPipeline.attach(new MessageSender() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendMessage(String namespace, String message, Callback callback) {
+                mBlackhole.consume(message);
+                callback.onResult(0);
+            }
+        });
+        mSerial = new SerialExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        mDelivery = new Runnable() {
+            @Override
+            public void run() {
+                mBlackhole.consume(MESSAGE);
+            }
+        };
+    }
+
+    /**
+     * Sixteen sends and whatever the scheduler has to run to get them out.
+     */
+    @Benchmark
+    public int sendBurst() {
+        for (int i = 0; i < 16; i++) {
+            mPipeline.send(MESSAGE);
+        }
+        return mScheduler.runPending();
+    }
+
+    @Benchmark
+    public void serialDispatch() {
+        mSerial.execute(mDelivery);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.benchmarks;
+
+import com.manotaurgames.castro.ConnectionState;
+import com.manotaurgames.castro.SessionEngine;
+import com.manotaurgames.castro.fake.FakeReceiver;
+import com.manotaurgames.castro.fake.ManualScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of the session engine's connect, drop and reconnect paths on a virtual clock. Virtual
+ * time to recover is printed once at setup, since it only depends on the reconnect policy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReconnectBenchmark {
+
+    private ManualScheduler mScheduler;
+    private FakeReceiver mReceiver;
+    private SessionEngine mEngine;
+    private long mRecoveredInMs;
+
+    @Setup
+    public void setup() {
+        mScheduler = new ManualScheduler();
+        mReceiver = new FakeReceiver(mScheduler).setLatency(20);
+        mEngine = new SessionEngine("BENCH", mReceiver, mScheduler, new SessionEngine.Listener() {
+            @Override
+            public void onConnect(boolean isReconnect) {
+            }
+
+            @Override
+            public void onDisconnect() {
+            }
+
+            @Override
+            public void onSessionStarted(String routeId, String deviceId, String sessionId) {
+            }
+
+            @Override
+            public void onSessionForgotten() {
+            }
+
+            @Override
+            public void onTeardown(boolean selectDefaultRoute) {
+            }
+
+            @Override
+            public void onReconnectScheduled(int attempt, long delayMs, int errorCode) {
+            }
+
+            @Override
+            public void onReconnected(int attempts, long elapsedMs) {
+                mRecoveredInMs = elapsedMs;
+            }
+
+            @Override
+            public void onReconnectAbandoned(int attempts, long elapsedMs, int errorCode) {
+            }
+        });
+        mEngine.select("route", "device", null);
+        mScheduler.runAll(100);
+        dropAndRecover();
+        System.out.println("recovered from 2 failed connects in " + mRecoveredInMs + "ms of virtual time");
+    }
+
+    /**
+     * Select a device, launch the app, and tear it down again.
+     */
+    @Benchmark
+    public ConnectionState connectAndTeardown() {
+        mEngine.teardown(false);
+        mEngine.select("route", "device", null);
+        mScheduler.runAll(100);
+        return mEngine.getStateMachine().getState();
+    }
+
+    /**
+     * Drop a live connection, fail the first two attempts to get it back, then recover.
+     */
+    @Benchmark
+    public ConnectionState dropAndRecover() {
+        mReceiver.failNextConnects(2, FakeReceiver.NETWORK_ERROR);
+        mReceiver.dropConnection(FakeReceiver.NETWORK_ERROR);
+        mScheduler.runAll(100);
+        return mEngine.getStateMachine().getState();
+    }
+}
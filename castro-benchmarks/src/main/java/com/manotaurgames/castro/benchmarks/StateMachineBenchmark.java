@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.benchmarks;
+
+import com.manotaurgames.castro.ConnectionState;
+import com.manotaurgames.castro.ConnectionStateMachine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a full connection cycle through the state machine, and of the reads callbacks make to
+ * check whether they are stale while another thread keeps cycling.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateMachineBenchmark {
+
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine();
+
+    private ConnectionState cycle() {
+        int generation = mMachine.connect();
+        if (generation == -1) {
+            generation = mMachine.getGeneration();
+        }
+        mMachine.moveTo(generation, ConnectionState.LAUNCHING);
+        mMachine.moveTo(generation, ConnectionState.CONNECTED);
+        mMachine.moveTo(generation, ConnectionState.TEARING_DOWN);
+        mMachine.moveTo(generation, ConnectionState.IDLE);
+        return mMachine.getState();
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    public ConnectionState cycleAlone() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public ConnectionState cycleWhileRead() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public boolean staleCheck() {
+        return mMachine.isCurrent(1);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.benchmarks;
+
+import com.manotaurgames.castro.StateSync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A game tick that moves a few players in a 40 field state, sent as a delta against sending the
+ * whole state every tick. Bytes per tick are printed at the end of each run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateSyncBenchmark {
+
+    private static final int PLAYERS = 8;
+
+    /** Players that move each tick. */
+    @Param({"1", "3", "8"})
+    public int moving;
+
+    private final StateSync mState = new StateSync();
+    private final StringBuilder mOut = new StringBuilder(2048);
+    private final String[] mX = new String[PLAYERS];
+    private final String[] mY = new String[PLAYERS];
+    private long mTick;
+    private long mBytes;
+    private long mTicks;
+
+    @Setup
+    public void setup() {
+        mState.set("phase", "playing");
+        mState.set("round", 3);
+        mState.set("timeLeft", 90);
+        mState.set("paused", false);
+        for (int i = 0; i < PLAYERS; i++) {
+            mX[i] = "p" + i + ".x";
+            mY[i] = "p" + i + ".y";
+            mState.set("p" + i + ".name", "Player " + i);
+            mState.set(mX[i], 0.0);
+            mState.set(mY[i], 0.0);
+            mState.set("p" + i + ".score", 0);
+        }
+        mOut.setLength(0);
+        mState.writeSnapshot(mOut);
+    }
+
+    private void step() {
+        mTick++;
+        for (int i = 0; i < moving; i++) {
+            mState.set(mX[i], (mTick + i) * 0.5);
+            mState.set(mY[i], (mTick - i) * 0.25);
+        }
+        mState.set("timeLeft", 90 - (mTick / 60));
+    }
+
+    @Benchmark
+    public int delta() {
+        step();
+        mOut.setLength(0);
+        mState.writeDelta(mOut);
+        mBytes += mOut.length();
+        mTicks++;
+        return mOut.length();
+    }
+
+    @Benchmark
+    public int fullState() {
+        step();
+        mOut.setLength(0);
+        mState.writeSnapshot(mOut);
+        mBytes += mOut.length();
+        mTicks++;
+        return mOut.length();
+    }
+
+    @TearDown
+    public void report() {
+        if (mTicks > 0) {
+            System.out.println(moving + " moving: " + (mBytes / mTicks) + " bytes per tick");
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU of files in a directory, for transcoded assets.
+ *
+ * Entries are written to a temporary file and renamed into place, so a reader never sees half an
+ * entry and a crash leaves nothing behind but a temporary file that is cleaned up next time. The
+ * recency order is kept in the files' modification times, so it survives the process.
+ *
+ * Entries in use, e.g. published to a receiver, can be pinned with {@link #acquire} or
+ * {@link #putAndAcquire}: eviction passes over them, and removing one only deletes its file once the
+ * last {@link #release}.
+ *
+ * Safe to call from any thread, but it touches the disk, so stay off the main thread.
+ */
+public final class AssetCache {
+
+    private static final String TAG = AssetCache.class.getSimpleName();
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes an entry's content.
+     */
+    public interface Writer {
+
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    // File name to size, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    // File name to pin count, for entries in use
+    private final Map<String, Integer> mPins = new HashMap<>();
+    private boolean mLoaded;
+    private int mNextTemp;
+
+    public AssetCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the entry's file, or null if it isn't cached.
+     */
+    public File get(String key) {
+        return get(key, false);
+    }
+
+    /**
+     * Like {@link #get}, but pins the entry until {@link #release}, so it isn't evicted while in use.
+     * @return the entry's file, or null if it isn't cached, in which case nothing is pinned.
+     */
+    public File acquire(String key) {
+        return get(key, true);
+    }
+
+    private File get(String key, boolean pin) {
+        String name = fileName(key);
+        synchronized (this) {
+            load();
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+            if (pin) {
+                pinLocked(name);
+            }
+        }
+        File file = new File(mDirectory, name);
+        if (!file.setLastModified(System.currentTimeMillis()) && !file.exists()) {
+            // Deleted behind our back
+            synchronized (this) {
+                if (pin) {
+                    unpinLocked(name);
+                }
+                removeEntry(name);
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Write an entry, replacing any entry with the same key, and evict the least recently used
+     * entries beyond the size limit.
+     * @return the entry's file.
+     */
+    public File put(String key, Writer writer) throws IOException {
+        return put(key, writer, false);
+    }
+
+    /**
+     * Like {@link #put}, but pins the new entry until {@link #release}.
+     */
+    public File putAndAcquire(String key, Writer writer) throws IOException {
+        return put(key, writer, true);
+    }
+
+    private File put(String key, Writer writer, boolean pin) throws IOException {
+        String name = fileName(key);
+        File temp;
+        synchronized (this) {
+            load();
+            temp = new File(mDirectory, name + "." + (mNextTemp++) + TEMP_SUFFIX);
+        }
+        boolean written = false;
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                writer.write(out);
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+        File file = new File(mDirectory, name);
+        synchronized (this) {
+            removeEntry(name);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp);
+            }
+            long length = file.length();
+            mEntries.put(name, length);
+            mSize += length;
+            if (pin) {
+                pinLocked(name);
+            }
+            trim(name);
+        }
+        return file;
+    }
+
+    /**
+     * Unpin an entry pinned by {@link #acquire} or {@link #putAndAcquire}.
+     */
+    public synchronized void release(String key) {
+        String name = fileName(key);
+        if (!unpinLocked(name)) {
+            return;
+        }
+        if (!mEntries.containsKey(name)) {
+            // Removed while it was in use
+            new File(mDirectory, name).delete();
+        } else {
+            trim(null);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        load();
+        removeEntry(fileName(key));
+    }
+
+    public synchronized void clear() {
+        load();
+        for (String name : mEntries.keySet()) {
+            if (!mPins.containsKey(name)) {
+                new File(mDirectory, name).delete();
+            }
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return the bytes used by entries.
+     */
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    private void pinLocked(String name) {
+        Integer pins = mPins.get(name);
+        mPins.put(name, pins == null ? 1 : pins + 1);
+    }
+
+    /**
+     * @return true if that was the last pin.
+     */
+    private boolean unpinLocked(String name) {
+        Integer pins = mPins.get(name);
+        if (pins == null) {
+            return false;
+        }
+        if (pins > 1) {
+            mPins.put(name, pins - 1);
+            return false;
+        }
+        mPins.remove(name);
+        return true;
+    }
+
+    /**
+     * Forget an entry. A pinned entry's file stays until its last release.
+     */
+    private void removeEntry(String name) {
+        Long length = mEntries.remove(name);
+        if (length != null) {
+            mSize -= length;
+            if (!mPins.containsKey(name)) {
+                new File(mDirectory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the cache fits, passing over pinned ones.
+     * @param keep an entry that must stay, e.g. the one just written however big, or null.
+     */
+    private void trim(String keep) {
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            String name = eldest.getKey();
+            if (name.equals(keep) || mPins.containsKey(name)) {
+                continue;
+            }
+            mSize -= eldest.getValue();
+            new File(mDirectory, name).delete();
+            it.remove();
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            CastLog.e(TAG, "Could not create " + mDirectory);
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (file.isFile()) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trim(null);
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
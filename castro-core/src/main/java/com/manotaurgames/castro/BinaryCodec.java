@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MessageCodec} for compact binary messages. Cast namespaces only carry strings, so the
+ * bytes travel as base64. Subclasses write into and read from a {@link ByteBuffer} that is pooled
+ * per thread; the receiver decodes with {@code atob()} or a {@code DataView}.
+ */
+public abstract class BinaryCodec<T> implements MessageCodec<T> {
+
+    /**
+     * Largest payload that still fits in one 64K cast message once base64 encoded.
+     */
+    public static final int MAX_PAYLOAD_BYTES = 65536 / 4 * 3;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        for (int i = 0; i < DECODE.length; i++) {
+            DECODE[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<ByteBuffer> sBuffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_PAYLOAD_BYTES);
+        }
+    };
+
+    /**
+     * Put message into buffer, starting at its position.
+     */
+    protected abstract void write(T message, ByteBuffer buffer);
+
+    /**
+     * Read a message from buffer, which holds exactly one payload.
+     */
+    protected abstract T read(ByteBuffer buffer);
+
+    @Override
+    public final void encode(T message, StringBuilder out) {
+        ByteBuffer buffer = sBuffers.get();
+        buffer.clear();
+        try {
+            write(message, buffer);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Message exceeds " + MAX_PAYLOAD_BYTES + " bytes");
+        }
+        buffer.flip();
+        appendBase64(buffer, out);
+    }
+
+    @Override
+    public final T decode(CharSequence frame) {
+        ByteBuffer buffer = sBuffers.get();
+        buffer.clear();
+        decodeBase64(frame, buffer);
+        buffer.flip();
+        try {
+            return read(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message");
+        }
+    }
+
+    static void appendBase64(ByteBuffer in, StringBuilder out) {
+        out.ensureCapacity(out.length() + (in.remaining() + 2) / 3 * 4);
+        while (in.remaining() >= 3) {
+            int bits = (in.get() & 0xff) << 16 | (in.get() & 0xff) << 8 | (in.get() & 0xff);
+            out.append(ALPHABET[bits >> 18])
+                    .append(ALPHABET[(bits >> 12) & 0x3f])
+                    .append(ALPHABET[(bits >> 6) & 0x3f])
+                    .append(ALPHABET[bits & 0x3f]);
+        }
+        int left = in.remaining();
+        if (left > 0) {
+            int bits = (in.get() & 0xff) << 16 | (left == 2 ? (in.get() & 0xff) << 8 : 0);
+            out.append(ALPHABET[bits >> 18])
+                    .append(ALPHABET[(bits >> 12) & 0x3f])
+                    .append(left == 2 ? ALPHABET[(bits >> 6) & 0x3f] : '=')
+                    .append('=');
+        }
+    }
+
+    static void decodeBase64(CharSequence in, ByteBuffer out) {
+        int length = in.length();
+        while (length > 0 && in.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1 || (length / 4 * 3 + Math.max(0, length % 4 - 1)) > out.remaining()) {
+            throw new IllegalArgumentException("Invalid base64 length");
+        }
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = in.charAt(i);
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid base64 character at offset " + i);
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out.put((byte) (bits >> 16)).put((byte) (bits >> 8)).put((byte) bits);
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 3) {
+            out.put((byte) (bits >> 10)).put((byte) (bits >> 2));
+        } else if (count == 2) {
+            out.put((byte) (bits >> 4));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Logging for the core, which can't see android.util.Log. Silent until a {@link Sink} is installed;
+ * castro-android installs one that writes to logcat.
+ */
+public final class CastLog {
+
+    public interface Sink {
+        void d(String tag, String message);
+
+        void e(String tag, String message, Throwable tr);
+    }
+
+    private static volatile Sink sSink;
+
+    private CastLog() {
+    }
+
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void d(String tag, String message) {
+        Sink sink = sSink;
+        if (sink != null) sink.d(tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        e(tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable tr) {
+        Sink sink = sSink;
+        if (sink != null) sink.e(tag, message, tr);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Where cast time goes. Override the callbacks you care about and forward them to your own
+ * telemetry, or use a {@link MetricsRecorder} to aggregate them.
+ *
+ * On Android, install it with {@code CastLogic.setMetrics}, {@code CastChannel.Builder.setMetrics} and
+ * {@code CastRpc.setMetrics}. Callbacks may arrive on any thread and should return quickly.
+ */
+public abstract class CastMetrics {
+
+    /**
+     * Milestones of connection setup, in order.
+     */
+    public enum Stage {
+        /** The user, or a resumed session, picked a route. */
+        ROUTE_SELECTED,
+        /** {@code GoogleApiClient.connect()} completed. */
+        API_CONNECTED,
+        /** The receiver app was launched or joined. */
+        APPLICATION_CONNECTED,
+        /** The session was handed to the app, e.g. {@code onCastConnect} returned. */
+        CAST_CONNECT_DELIVERED
+    }
+
+    /**
+     * @param elapsedMs time since the route was selected.
+     */
+    public void onConnectStage(Stage stage, long elapsedMs) {
+    }
+
+    /**
+     * The connection was torn down before it was delivered.
+     * @param lastStage the last stage reached.
+     */
+    public void onConnectAbandoned(Stage lastStage, long elapsedMs) {
+    }
+
+    /**
+     * @param messageCount how many messages the frame carried, more than one when batching.
+     * @param queuedMs how long the oldest message in the frame waited in the queue.
+     * @param sendMs time from handing the frame to the Cast API to its result.
+     * @param statusCode the CastStatusCodes result of the send.
+     */
+    public void onFrameSent(String namespace, int messageCount, long queuedMs, long sendMs, int statusCode) {
+    }
+
+    /**
+     * Gets called after every frame leaves the queue.
+     */
+    public void onQueueDepth(String namespace, int depth) {
+    }
+
+    /**
+     * @param errorCode 0 on success, otherwise a {@code CastRpc} ERROR_ constant or the receiver's code.
+     */
+    public void onRoundTrip(String method, long rttMs, int errorCode) {
+    }
+
+    /**
+     * @param recovered false if the reconnect was abandoned.
+     */
+    public void onReconnect(int attempts, long elapsedMs, boolean recovered) {
+    }
+
+    public void onTeardown(long durationMs) {
+    }
+}
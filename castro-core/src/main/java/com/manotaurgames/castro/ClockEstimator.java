@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Running estimate of the receiver's clock offset and the round trip time, from NTP-style exchanges.
+ *
+ * Each sample is four timestamps: the sender's send time t0, the receiver's receive time t1 and reply
+ * time t2, and the sender's receive time t3. The offset comes from the sample with the lowest round
+ * trip among the last few, since queueing delay is what skews it; round trip and jitter are smoothed
+ * like TCP's RTT estimator.
+ *
+ * Thread-safe.
+ */
+public final class ClockEstimator {
+
+    private static final int WINDOW = 8;
+
+    private final long[] mOffsets = new long[WINDOW];
+    private final long[] mRtts = new long[WINDOW];
+    private int mCount;
+    private int mNext;
+    private long mOffsetMs;
+    private double mSmoothedRttMs;
+    private double mJitterMs;
+
+    /**
+     * Add one exchange. Times are in ms; t0 and t3 on the sender's clock, t1 and t2 on the receiver's.
+     * @return false if the sample was discarded as impossible.
+     */
+    public synchronized boolean addSample(long t0, long t1, long t2, long t3) {
+        long rtt = (t3 - t0) - (t2 - t1);
+        if (t3 < t0 || t2 < t1 || rtt < 0) {
+            return false;
+        }
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+        mOffsets[mNext] = offset;
+        mRtts[mNext] = rtt;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount == 0) {
+            mSmoothedRttMs = rtt;
+            mJitterMs = rtt / 2.0;
+        } else {
+            mJitterMs += (Math.abs(rtt - mSmoothedRttMs) - mJitterMs) / 4;
+            mSmoothedRttMs += (rtt - mSmoothedRttMs) / 8;
+        }
+        mCount = Math.min(mCount + 1, WINDOW);
+
+        int best = 0;
+        for (int i = 1; i < mCount; i++) {
+            if (mRtts[i] < mRtts[best]) {
+                best = i;
+            }
+        }
+        mOffsetMs = mOffsets[best];
+        return true;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return mCount > 0;
+    }
+
+    /**
+     * @return receiver time minus sender time.
+     */
+    public synchronized long getOffsetMs() {
+        return mOffsetMs;
+    }
+
+    public synchronized long getRttMs() {
+        return Math.round(mSmoothedRttMs);
+    }
+
+    /**
+     * @return mean deviation of the round trip time.
+     */
+    public synchronized long getJitterMs() {
+        return Math.round(mJitterMs);
+    }
+
+    /**
+     * @return roughly how long a message takes to reach the receiver.
+     */
+    public synchronized long getOneWayDelayMs() {
+        return Math.round(mSmoothedRttMs / 2);
+    }
+
+    public synchronized long toReceiverTime(long senderTimeMs) {
+        return senderTimeMs + mOffsetMs;
+    }
+
+    public synchronized long toSenderTime(long receiverTimeMs) {
+        return receiverTimeMs - mOffsetMs;
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+        mOffsetMs = 0;
+        mSmoothedRttMs = 0;
+        mJitterMs = 0;
+    }
+}
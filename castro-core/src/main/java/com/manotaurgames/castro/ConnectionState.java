@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Where the connection to the receiver is in its lifecycle.
+ */
+public enum ConnectionState {
+
+    /** No device selected. */
+    IDLE,
+    /** Connecting to Google Play services for the selected device. */
+    CONNECTING,
+    /** Connected, launching or joining the receiver app. */
+    LAUNCHING,
+    /** The receiver app is running and messages can be sent. */
+    CONNECTED,
+    /** The connection dropped and is being retried. */
+    SUSPENDED,
+    /** Stopping the receiver app and releasing the client. */
+    TEARING_DOWN;
+
+    /**
+     * Gets told about every state change.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread that made the transition, which is the main thread for everything Castro does.
+         */
+        void onConnectionStateChanged(ConnectionState oldState, ConnectionState newState);
+    }
+
+    boolean canMoveTo(ConnectionState next) {
+        switch (this) {
+            case IDLE:
+                return next == CONNECTING || next == TEARING_DOWN;
+            case CONNECTING:
+                return next == LAUNCHING || next == TEARING_DOWN;
+            case LAUNCHING:
+                return next == CONNECTED || next == CONNECTING || next == TEARING_DOWN;
+            case CONNECTED:
+                return next == SUSPENDED || next == TEARING_DOWN;
+            case SUSPENDED:
+                return next == CONNECTED || next == LAUNCHING || next == TEARING_DOWN;
+            case TEARING_DOWN:
+                return next == IDLE;
+            default:
+                return false;
+        }
+    }
+}
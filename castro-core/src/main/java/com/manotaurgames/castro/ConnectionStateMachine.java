@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free {@link ConnectionState} holder.
+ *
+ * The state and a generation number share one atomic word. Every connection attempt starts a new
+ * generation, and callbacks hold on to the generation they were created for, so anything arriving
+ * late from an old connection fails its transition and can be dropped with a single read.
+ */
+public final class ConnectionStateMachine {
+
+    private static final ConnectionState[] STATES = ConnectionState.values();
+
+    private final AtomicLong mPacked = new AtomicLong(pack(0, ConnectionState.IDLE));
+    private final CopyOnWriteArrayList<ConnectionState.Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private static long pack(int generation, ConnectionState state) {
+        return ((long) generation << 32) | state.ordinal();
+    }
+
+    private static int generationOf(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static ConnectionState stateOf(long packed) {
+        return STATES[(int) packed];
+    }
+
+    public ConnectionState getState() {
+        return stateOf(mPacked.get());
+    }
+
+    public int getGeneration() {
+        return generationOf(mPacked.get());
+    }
+
+    public boolean isCurrent(int generation) {
+        return generationOf(mPacked.get()) == generation;
+    }
+
+    /**
+     * Start a new connection attempt, moving from IDLE to CONNECTING.
+     * @return the new generation, or -1 if we weren't idle.
+     */
+    public int connect() {
+        while (true) {
+            long packed = mPacked.get();
+            if (stateOf(packed) != ConnectionState.IDLE) {
+                return -1;
+            }
+            int generation = generationOf(packed) + 1;
+            if (mPacked.compareAndSet(packed, pack(generation, ConnectionState.CONNECTING))) {
+                notifyListeners(ConnectionState.IDLE, ConnectionState.CONNECTING);
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Start a new generation in the same state, e.g. when a dead client is swapped for a fresh one, so
+     * callbacks from the old client are ignored from now on.
+     * @return the new generation, or -1 if generation wasn't current.
+     */
+    public int renew(int generation) {
+        while (true) {
+            long packed = mPacked.get();
+            if (generationOf(packed) != generation) {
+                return -1;
+            }
+            if (mPacked.compareAndSet(packed, pack(generation + 1, stateOf(packed)))) {
+                return generation + 1;
+            }
+        }
+    }
+
+    /**
+     * Move to the next state, if the generation is still current and the move is legal from where we are.
+     * @return the state we moved from, or null if nothing changed.
+     */
+    public ConnectionState moveTo(int generation, ConnectionState next) {
+        while (true) {
+            long packed = mPacked.get();
+            ConnectionState current = stateOf(packed);
+            if (generationOf(packed) != generation || !current.canMoveTo(next)) {
+                return null;
+            }
+            if (mPacked.compareAndSet(packed, pack(generation, next))) {
+                notifyListeners(current, next);
+                return current;
+            }
+        }
+    }
+
+    public void addListener(ConnectionState.Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(ConnectionState.Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners(ConnectionState oldState, ConnectionState newState) {
+        for (ConnectionState.Listener listener : mListeners) {
+            listener.onConnectionStateChanged(oldState, newState);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Notices a receiver that has stopped answering long before Play services does.
+ *
+ * Anything heard from the receiver counts as a sign of life, so while it is talking no pings are
+ * sent. Once it has been quiet for half the timeout a ping goes out, and the pings come faster as the
+ * silence approaches the timeout, each halfway to it. If nothing is heard for the whole timeout the
+ * receiver is declared dead and the monitor stops.
+ *
+ * Call {@link #onHeard()} from any thread; everything else on the scheduler's thread.
+ */
+public final class HeartbeatMonitor {
+
+    private static final String TAG = HeartbeatMonitor.class.getSimpleName();
+
+    private static final long DEFAULT_TIMEOUT_MS = 6 * 1000;
+    private static final long MIN_INTERVAL_MS = 250;
+
+    /**
+     * Sends pings and handles a dead receiver.
+     */
+    public interface Listener {
+
+        /**
+         * Ask the receiver for an answer; any message heard back will do.
+         */
+        void onPing(int seq);
+
+        void onDead(long silenceMs);
+    }
+
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private long mTimeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile long mLastHeard;
+    private int mNextSeq;
+    private boolean mRunning;
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    public HeartbeatMonitor(Scheduler scheduler, Listener listener) {
+        mScheduler = scheduler;
+        mListener = listener;
+    }
+
+    /**
+     * @param timeoutMs silence after which the receiver is declared dead, the bound on detection time.
+     */
+    public void setTimeout(long timeoutMs) {
+        if (timeoutMs < 2 * MIN_INTERVAL_MS) {
+            throw new IllegalArgumentException("Timeout too short: " + timeoutMs);
+        }
+        mTimeoutMs = timeoutMs;
+    }
+
+    public long getTimeout() {
+        return mTimeoutMs;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Start watching a freshly connected receiver.
+     */
+    public void start() {
+        mLastHeard = mScheduler.now();
+        mRunning = true;
+        mScheduler.cancel(mCheck);
+        mScheduler.postDelayed(mCheck, mTimeoutMs / 2);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mScheduler.cancel(mCheck);
+    }
+
+    /**
+     * The receiver said something.
+     */
+    public void onHeard() {
+        mLastHeard = mScheduler.now();
+    }
+
+    private void check() {
+        if (!mRunning) {
+            return;
+        }
+        long silence = mScheduler.now() - mLastHeard;
+        if (silence >= mTimeoutMs) {
+            CastLog.d(TAG, "receiver silent for " + silence + "ms");
+            stop();
+            mListener.onDead(silence);
+            return;
+        }
+        long delay;
+        if (silence >= mTimeoutMs / 2) {
+            mListener.onPing(++mNextSeq);
+            delay = Math.max(MIN_INTERVAL_MS, (mTimeoutMs - silence) / 2);
+        } else {
+            delay = mTimeoutMs / 2 - silence;
+        }
+        mScheduler.postDelayed(mCheck, Math.min(delay, mTimeoutMs - silence));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latest value of every input key, for sending controller input once per frame instead of once per event.
+ *
+ * Axes snap to zero inside their dead zone, and a key only goes out again once its value has moved
+ * since it was last written. A button pressed and released within one frame still goes out as
+ * pressed, and as released in the frame after. Frames look like {@code {"input":{"x":0.42,"fire":true},"seq":17}}.
+ *
+ * Thread-safe, so sensor and touch events can come from any thread.
+ */
+public final class InputCoalescer {
+
+    private final Map<String, Key> mKeys = new HashMap<>();
+    private final List<Key> mChanged = new ArrayList<>();
+    private final JsonWriter mWriter = new JsonWriter();
+    private double mDefaultDeadZone;
+    private int mSequence;
+    private long mEvents;
+    private long mFrames;
+
+    /**
+     * @param deadZone axes closer to zero than this read as zero, unless their key has its own.
+     */
+    public synchronized void setDefaultDeadZone(double deadZone) {
+        mDefaultDeadZone = deadZone;
+    }
+
+    public synchronized void setDeadZone(String key, double deadZone) {
+        key(key).deadZone = deadZone;
+    }
+
+    /**
+     * @return true if the value changed what the next frame will carry.
+     */
+    public synchronized boolean set(String key, double value) {
+        mEvents++;
+        Key k = key(key);
+        double deadZone = Double.isNaN(k.deadZone) ? mDefaultDeadZone : k.deadZone;
+        if (Math.abs(value) < deadZone || Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        return k.update(false, value);
+    }
+
+    /**
+     * @return true if the value changed what the next frame will carry.
+     */
+    public synchronized boolean set(String key, boolean pressed) {
+        mEvents++;
+        return key(key).update(true, pressed ? 1 : 0);
+    }
+
+    /**
+     * Make the next frame carry every key that has a value, not just the ones that changed, e.g. for
+     * a receiver that just connected or may have missed a frame.
+     */
+    public synchronized void resync() {
+        for (Key key : mKeys.values()) {
+            if (key.set) {
+                // Differs from anything update() compares it with until it is written
+                key.sent = Double.NaN;
+                if (!key.changed) {
+                    key.changed = true;
+                    mChanged.add(key);
+                }
+            }
+        }
+    }
+
+    public synchronized boolean hasChanges() {
+        return !mChanged.isEmpty();
+    }
+
+    /**
+     * @return how many set calls were folded into how many frames, for checking the savings.
+     */
+    public synchronized long getEventCount() {
+        return mEvents;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Write every key that changed since the last frame.
+     * @return false, writing nothing, if none did.
+     */
+    public synchronized boolean writeFrame(StringBuilder out) {
+        int count = mChanged.size();
+        if (count == 0) {
+            return false;
+        }
+        JsonWriter writer = mWriter.reset(out);
+        writer.beginObject().name("input").beginObject();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            Key key = mChanged.get(i);
+            writer.name(key.name);
+            if (key.button) {
+                key.sent = key.pressed || key.value != 0 ? 1 : 0;
+                writer.value(key.sent != 0);
+            } else {
+                key.sent = key.value;
+                writer.value(key.value);
+            }
+            key.pressed = false;
+            if (key.value != key.sent) {
+                // Released within the frame, so the release goes in the next one
+                mChanged.set(kept++, key);
+            } else {
+                key.changed = false;
+            }
+        }
+        mChanged.subList(kept, count).clear();
+        writer.endObject().name("seq").value(++mSequence).endObject();
+        mFrames++;
+        return true;
+    }
+
+    private Key key(String name) {
+        Key key = mKeys.get(name);
+        if (key == null) {
+            key = new Key(name);
+            mKeys.put(name, key);
+        }
+        return key;
+    }
+
+    /**
+     * One input, its latest value and what was last written for it.
+     */
+    private final class Key {
+
+        final String name;
+        double deadZone = Double.NaN;
+        boolean button;
+        double value;
+        double sent = Double.NaN;
+        // Has had a value, as opposed to only a dead zone
+        boolean set;
+        // Pressed at some point since the last frame
+        boolean pressed;
+        boolean changed;
+
+        Key(String name) {
+            this.name = name;
+        }
+
+        boolean update(boolean button, double value) {
+            this.button = button;
+            this.value = value;
+            set = true;
+            if (button && value != 0) {
+                pressed = true;
+            }
+            // Back where it was last sent, e.g. an axis that wobbled within one frame: nothing to send
+            boolean differs = value != sent || pressed;
+            if (differs && !changed) {
+                changed = true;
+                mChanged.add(this);
+            } else if (!differs && changed) {
+                changed = false;
+                mChanged.remove(this);
+            }
+            return differs;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * {@link MessageCodec} for JSON messages. Subclasses stream their fields through a
+ * {@link JsonWriter} and {@link JsonReader} that are pooled per thread, so encoding and decoding
+ * only allocate the output string and the values you read.
+ */
+public abstract class JsonCodec<T> implements MessageCodec<T> {
+
+    private static final ThreadLocal<JsonWriter> sWriters = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
+        }
+    };
+
+    private static final ThreadLocal<JsonReader> sReaders = new ThreadLocal<JsonReader>() {
+        @Override
+        protected JsonReader initialValue() {
+            return new JsonReader();
+        }
+    };
+
+    /**
+     * Write exactly one JSON value for message.
+     */
+    protected abstract void write(JsonWriter writer, T message);
+
+    /**
+     * Read exactly one JSON value.
+     */
+    protected abstract T read(JsonReader reader);
+
+    @Override
+    public final void encode(T message, StringBuilder out) {
+        write(sWriters.get().reset(out), message);
+    }
+
+    @Override
+    public final T decode(CharSequence frame) {
+        JsonReader reader = sReaders.get().reset(frame);
+        T message = read(reader);
+        if (reader.peek() != JsonReader.Token.END_DOCUMENT) {
+            throw new IllegalArgumentException("Trailing data after message");
+        }
+        return message;
+    }
+}
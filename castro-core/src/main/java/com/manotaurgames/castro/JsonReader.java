@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Pull parser for a JSON document held in a {@link CharSequence}. Only the strings you ask for
+ * are materialized, and a reader can be {@link #reset} and reused for any number of messages.
+ *
+ * Malformed input throws {@link IllegalArgumentException}.
+ */
+public final class JsonReader {
+
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+
+    private final StringBuilder mScratch = new StringBuilder();
+    private CharSequence mIn;
+    private int mPos;
+    private int mLength;
+    private int[] mStack = new int[16];
+    private int mDepth;
+    private boolean mTopLevelRead;
+    // Already consumed by peek(). mPos is after the opening character of structural tokens and
+    // strings, and at the first character of other literals.
+    private Token mPeeked;
+
+    public JsonReader() {
+    }
+
+    public JsonReader(CharSequence in) {
+        reset(in);
+    }
+
+    public JsonReader reset(CharSequence in) {
+        mIn = in;
+        mPos = 0;
+        mLength = in.length();
+        mDepth = 0;
+        mTopLevelRead = false;
+        mPeeked = null;
+        return this;
+    }
+
+    public Token peek() {
+        if (mPeeked != null) {
+            return mPeeked;
+        }
+        if (mDepth == 0) {
+            if (mTopLevelRead) {
+                if (skipWhitespace() != -1) {
+                    throw syntaxError("Trailing characters");
+                }
+                return mPeeked = Token.END_DOCUMENT;
+            }
+            mTopLevelRead = true;
+            return mPeeked = peekValue(next());
+        }
+        int top = mStack[mDepth - 1];
+        char c = next();
+        switch (top) {
+            case EMPTY_ARRAY:
+                if (c == ']') {
+                    return mPeeked = Token.END_ARRAY;
+                }
+                mStack[mDepth - 1] = NONEMPTY_ARRAY;
+                return mPeeked = peekValue(c);
+            case NONEMPTY_ARRAY:
+                if (c == ']') {
+                    return mPeeked = Token.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                return mPeeked = peekValue(next());
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                if (c == '}') {
+                    return mPeeked = Token.END_OBJECT;
+                }
+                if (top == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = next();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name");
+                }
+                mStack[mDepth - 1] = DANGLING_NAME;
+                return mPeeked = Token.NAME;
+            case DANGLING_NAME:
+                if (c != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                mStack[mDepth - 1] = NONEMPTY_OBJECT;
+                return mPeeked = peekValue(next());
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    public boolean hasNext() {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+    }
+
+    public void beginArray() {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() {
+        expect(Token.END_ARRAY);
+        mDepth--;
+    }
+
+    public void beginObject() {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() {
+        expect(Token.END_OBJECT);
+        mDepth--;
+    }
+
+    public String nextName() {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    public String nextString() {
+        expect(Token.STRING);
+        return readString();
+    }
+
+    public boolean nextBoolean() {
+        expect(Token.BOOLEAN);
+        if (matchLiteral("true")) {
+            return true;
+        }
+        if (matchLiteral("false")) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean");
+    }
+
+    public void nextNull() {
+        expect(Token.NULL);
+        if (!matchLiteral("null")) {
+            throw syntaxError("Expected null");
+        }
+    }
+
+    public long nextLong() {
+        expect(Token.NUMBER);
+        int start = mPos;
+        int end = numberEnd();
+        boolean negative = mIn.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i < end) {
+            // Accumulated negative, since Long.MIN_VALUE has no positive counterpart
+            long value = 0;
+            for (; i < end; i++) {
+                char c = mIn.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                int digit = c - '0';
+                if (value < Long.MIN_VALUE / 10 || value * 10 < Long.MIN_VALUE + digit) {
+                    throw syntaxError("Long overflow");
+                }
+                value = value * 10 - digit;
+            }
+            if (i == end) {
+                if (!negative && value == Long.MIN_VALUE) {
+                    throw syntaxError("Long overflow");
+                }
+                mPos = end;
+                return negative ? value : -value;
+            }
+        }
+        // A fraction or exponent, e.g. 1.0 or 2e3
+        double value = parseDouble(start, end);
+        if (value != Math.rint(value) || value >= 0x1p63 || value < -0x1p63) {
+            throw syntaxError("Expected a long");
+        }
+        return (long) value;
+    }
+
+    public int nextInt() {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw syntaxError("Expected an int");
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() {
+        expect(Token.NUMBER);
+        return parseDouble(mPos, numberEnd());
+    }
+
+    /**
+     * @return the source text of the next value, for decoding later.
+     */
+    public CharSequence nextRawValue() {
+        Token token = peek();
+        int start;
+        switch (token) {
+            case NUMBER:
+            case BOOLEAN:
+            case NULL:
+                start = mPos;
+                break;
+            case BEGIN_ARRAY:
+            case BEGIN_OBJECT:
+            case STRING:
+                start = mPos - 1;
+                break;
+            default:
+                throw syntaxError("Expected a value but was " + token);
+        }
+        skipValue();
+        return mIn.subSequence(start, mPos);
+    }
+
+    /**
+     * Skip the next value, including everything nested in it. On a name, skips just the name.
+     */
+    public void skipValue() {
+        int depth = 0;
+        while (true) {
+            switch (peek()) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case NAME:
+                case STRING:
+                    mPeeked = null;
+                    skipString();
+                    break;
+                case NUMBER:
+                    mPeeked = null;
+                    mPos = numberEnd();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Nothing to skip");
+            }
+            if (depth <= 0) {
+                return;
+            }
+        }
+    }
+
+    private Token peekValue(char c) {
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                mPos--;
+                return Token.BOOLEAN;
+            case 'n':
+                mPos--;
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    mPos--;
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + c + "'");
+        }
+    }
+
+    private void expect(Token token) {
+        Token peeked = peek();
+        if (peeked != token) {
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        }
+        mPeeked = null;
+    }
+
+    private void push(int state) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = state;
+    }
+
+    private int skipWhitespace() {
+        while (mPos < mLength) {
+            char c = mIn.charAt(mPos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            mPos++;
+        }
+        return -1;
+    }
+
+    private char next() {
+        if (skipWhitespace() == -1) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return mIn.charAt(mPos++);
+    }
+
+    private String readString() {
+        int start = mPos;
+        // Fast path: no escapes, one substring
+        for (int i = start; i < mLength; i++) {
+            char c = mIn.charAt(i);
+            if (c == '"') {
+                mPos = i + 1;
+                return mIn.subSequence(start, i).toString();
+            }
+            if (c == '\\') {
+                break;
+            }
+        }
+        StringBuilder out = mScratch;
+        out.setLength(0);
+        while (mPos < mLength) {
+            char c = mIn.charAt(mPos++);
+            if (c == '"') {
+                return out.toString();
+            }
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if (mPos >= mLength) {
+                break;
+            }
+            char escaped = mIn.charAt(mPos++);
+            switch (escaped) {
+                case 'b':
+                    out.append('\b');
+                    break;
+                case 'f':
+                    out.append('\f');
+                    break;
+                case 'n':
+                    out.append('\n');
+                    break;
+                case 'r':
+                    out.append('\r');
+                    break;
+                case 't':
+                    out.append('\t');
+                    break;
+                case 'u':
+                    out.append(readHexChar());
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    out.append(escaped);
+                    break;
+                default:
+                    throw syntaxError("Invalid escape '\\" + escaped + "'");
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private char readHexChar() {
+        if (mPos + 4 > mLength) {
+            throw syntaxError("Unterminated escape");
+        }
+        int value = 0;
+        for (int end = mPos + 4; mPos < end; mPos++) {
+            char c = mIn.charAt(mPos);
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid escape digit '" + c + "'");
+            }
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+
+    private void skipString() {
+        while (mPos < mLength) {
+            char c = mIn.charAt(mPos++);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                mPos++;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private int numberEnd() {
+        int end = mPos;
+        while (end < mLength) {
+            char c = mIn.charAt(end);
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private double parseDouble(int start, int end) {
+        try {
+            double value = Double.parseDouble(mIn.subSequence(start, end).toString());
+            mPos = end;
+            return value;
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number");
+        }
+    }
+
+    private boolean matchLiteral(String literal) {
+        int n = literal.length();
+        if (mPos + n > mLength) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (mIn.charAt(mPos + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        mPos += n;
+        return true;
+    }
+
+    private IllegalArgumentException syntaxError(String message) {
+        return new IllegalArgumentException(message + " at offset " + mPos);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams JSON into a {@link StringBuilder} without building an intermediate object tree.
+ * A writer can be {@link #reset} and reused for any number of messages.
+ */
+public final class JsonWriter {
+
+    private static final int EMPTY_ARRAY = 1;
+    private static final int NONEMPTY_ARRAY = 2;
+    private static final int EMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int NONEMPTY_OBJECT = 5;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private StringBuilder mOut;
+    private int[] mStack = new int[16];
+    private int mDepth;
+
+    public JsonWriter() {
+    }
+
+    public JsonWriter(StringBuilder out) {
+        reset(out);
+    }
+
+    /**
+     * Start a new document at the end of out.
+     */
+    public JsonWriter reset(StringBuilder out) {
+        mOut = out;
+        mDepth = 0;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        beforeValue();
+        push(EMPTY_OBJECT);
+        mOut.append('{');
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        pop(EMPTY_OBJECT, NONEMPTY_OBJECT);
+        mOut.append('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        beforeValue();
+        push(EMPTY_ARRAY);
+        mOut.append('[');
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        pop(EMPTY_ARRAY, NONEMPTY_ARRAY);
+        mOut.append(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) {
+        int top = mDepth == 0 ? 0 : mStack[mDepth - 1];
+        if (top == NONEMPTY_OBJECT) {
+            mOut.append(',');
+        } else if (top != EMPTY_OBJECT) {
+            throw new IllegalStateException("name() outside of an object");
+        }
+        mStack[mDepth - 1] = DANGLING_NAME;
+        appendString(mOut, name);
+        mOut.append(':');
+        return this;
+    }
+
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        appendString(mOut, value);
+        return this;
+    }
+
+    public JsonWriter value(long value) {
+        beforeValue();
+        mOut.append(value);
+        return this;
+    }
+
+    public JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON has no " + value);
+        }
+        beforeValue();
+        if (value == (long) value && Math.abs(value) < (1L << 53)) {
+            mOut.append((long) value);
+        } else {
+            mOut.append(value);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        mOut.append(value);
+        return this;
+    }
+
+    /**
+     * Write the remaining bytes as a base64 string, without an intermediate copy.
+     */
+    public JsonWriter base64Value(ByteBuffer bytes) {
+        beforeValue();
+        mOut.append('"');
+        BinaryCodec.appendBase64(bytes, mOut);
+        mOut.append('"');
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        mOut.append("null");
+        return this;
+    }
+
+    private void beforeValue() {
+        if (mDepth == 0) {
+            return;
+        }
+        switch (mStack[mDepth - 1]) {
+            case EMPTY_ARRAY:
+                mStack[mDepth - 1] = NONEMPTY_ARRAY;
+                break;
+            case NONEMPTY_ARRAY:
+                mOut.append(',');
+                break;
+            case DANGLING_NAME:
+                mStack[mDepth - 1] = NONEMPTY_OBJECT;
+                break;
+            default:
+                throw new IllegalStateException("Expected a name before the value");
+        }
+    }
+
+    private void push(int state) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = state;
+    }
+
+    private void pop(int empty, int nonEmpty) {
+        int top = mDepth == 0 ? 0 : mStack[mDepth - 1];
+        if (top != empty && top != nonEmpty) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        mDepth--;
+    }
+
+    /**
+     * Append value as a quoted JSON string. U+2028 and U+2029 are escaped too, so the result is
+     * also a valid JavaScript literal.
+     */
+    static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.append("\\u")
+                                .append(HEX[(c >> 12) & 0xf])
+                                .append(HEX[(c >> 8) & 0xf])
+                                .append(HEX[(c >> 4) & 0xf])
+                                .append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two millisecond buckets, from under 1ms up to
+ * about 65 seconds. Percentiles are reported as the upper bound of their bucket.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 18;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long ms) {
+        if (ms < 0) {
+            ms = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(ms));
+        mCount.incrementAndGet();
+        mSum.addAndGet(ms);
+        long max;
+        while (ms > (max = mMax.get()) && !mMax.compareAndSet(max, ms)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return upper bound in ms of the bucket holding that percentile, 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @return the largest latency counted in bucket i; the last bucket is unbounded.
+     */
+    public long getBucketUpperBound(int i) {
+        return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+    }
+
+    public long getBucket(int i) {
+        return mCounts.get(i);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    private static int bucketOf(long ms) {
+        int bucket = 64 - Long.numberOfLeadingZeros(ms);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
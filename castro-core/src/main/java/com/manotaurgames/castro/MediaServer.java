@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP/1.1 server that lets the receiver pull local media from the sender.
+ *
+ * Only GET and HEAD of published sources are served, with single byte ranges so the receiver can
+ * scrub. Bodies go from the file's {@link FileChannel} straight to the socket with
+ * {@link FileChannel#transferTo}, so nothing is buffered on the heap however large the file.
+ * Connections are handled by a small pool of threads and kept alive while no other connection is
+ * waiting for a thread. Connections from anywhere but the loopback and the allowed address are closed
+ * unanswered.
+ *
+ * Published paths carry a random token, so they can't be guessed by other devices on the network.
+ */
+public final class MediaServer {
+
+    private static final String TAG = MediaServer.class.getSimpleName();
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+    private static final int KEEP_ALIVE_MS = 5 * 1000;
+    private static final int MAX_WAITING_CONNECTIONS = 32;
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Something to serve. Opened once per request.
+     */
+    public interface Source {
+
+        /**
+         * @return the size in bytes.
+         */
+        long getLength() throws IOException;
+
+        String getContentType();
+
+        /**
+         * @return a channel to read from; closed once the response is sent.
+         */
+        FileChannel open() throws IOException;
+    }
+
+    /**
+     * Serves a file.
+     */
+    public static final class FileSource implements Source {
+
+        private final File mFile;
+        private final String mContentType;
+
+        public FileSource(File file, String contentType) {
+            mFile = file;
+            mContentType = contentType;
+        }
+
+        @Override
+        public long getLength() {
+            return mFile.length();
+        }
+
+        @Override
+        public String getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public FileChannel open() throws IOException {
+            return new FileInputStream(mFile).getChannel();
+        }
+    }
+
+    private final Map<String, Source> mSources = new ConcurrentHashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ThreadPoolExecutor mExecutor;
+    private volatile InetAddress mAllowedAddress;
+    private ServerSocketChannel mServer;
+    private Thread mAcceptThread;
+
+    /**
+     * @param threads connections served at once; more wait for a free thread.
+     */
+    public MediaServer(int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_WAITING_CONNECTIONS), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Accept connections from this address besides the loopback, e.g. the receiver's. Null for none.
+     */
+    public void setAllowedAddress(InetAddress address) {
+        mAllowedAddress = address;
+    }
+
+    /**
+     * Start listening on all interfaces. Does nothing if already started.
+     * @param port 0 for any free port.
+     * @return the port listened on.
+     */
+    public synchronized int start(int port) throws IOException {
+        if (mServer == null) {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            mServer = server;
+            mAcceptThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    acceptLoop(server);
+                }
+            }, TAG + "-accept");
+            mAcceptThread.setDaemon(true);
+            mAcceptThread.start();
+            CastLog.d(TAG, "listening on port " + getPort());
+        }
+        return getPort();
+    }
+
+    /**
+     * Stop listening. Requests already being served run to completion.
+     */
+    public synchronized void stop() {
+        if (mServer == null) {
+            return;
+        }
+        closeQuietly(mServer);
+        mServer = null;
+        mAcceptThread = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return mServer != null;
+    }
+
+    /**
+     * @return the port listened on, or -1 if stopped.
+     */
+    public synchronized int getPort() {
+        return mServer != null ? mServer.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Make a source available until it is unpublished.
+     * @param name last path segment, for receivers that look at the extension.
+     * @return the path to request it at, e.g. "/3f9a.../movie.mp4".
+     */
+    public String publish(Source source, String name) {
+        byte[] bytes = new byte[8];
+        mRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(16);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        mSources.put(token.toString(), source);
+        try {
+            return "/" + token + "/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @param path as returned by {@link #publish}.
+     */
+    public void unpublish(String path) {
+        String token = tokenOf(path);
+        if (token != null) {
+            mSources.remove(token);
+        }
+    }
+
+    public void unpublishAll() {
+        mSources.clear();
+    }
+
+    /**
+     * Find our address on the network a peer is on, for building URLs the peer can reach.
+     * @return null if no interface is on the peer's subnet.
+     */
+    public static InetAddress getLocalAddress(InetAddress peer) throws SocketException {
+        byte[] target = peer.getAddress();
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nif.isUp() || nif.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress address : nif.getInterfaceAddresses()) {
+                byte[] local = address.getAddress().getAddress();
+                if (local.length == target.length && samePrefix(local, target, address.getNetworkPrefixLength())) {
+                    return address.getAddress();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean samePrefix(byte[] a, byte[] b, int bits) {
+        for (int i = 0; i < a.length && bits > 0; i++, bits -= 8) {
+            int mask = bits >= 8 ? 0xff : (0xff << (8 - bits)) & 0xff;
+            if ((a[i] & mask) != (b[i] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acceptLoop(ServerSocketChannel server) {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                CastLog.e(TAG, "accept failed", e);
+                closeQuietly(server);
+                return;
+            }
+            InetAddress remote = channel.socket().getInetAddress();
+            if (!remote.isLoopbackAddress() && !remote.equals(mAllowedAddress)) {
+                CastLog.d(TAG, "refused connection from " + remote);
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try {
+            Socket socket = channel.socket();
+            socket.setSoTimeout(KEEP_ALIVE_MS);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            byte[] header = new byte[MAX_HEADER_BYTES];
+            // Keep the connection alive unless it would hold a thread others are waiting for
+            while (serveRequest(channel, in, header) && mExecutor.getQueue().isEmpty()) {
+                // Next request
+            }
+        } catch (IOException e) {
+            // Receivers drop connections mid-response all the time when seeking
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return true to keep the connection open for another request.
+     */
+    private boolean serveRequest(SocketChannel channel, InputStream in, byte[] header) throws IOException {
+        int length = readHeader(in, header);
+        if (length <= 0) {
+            return false;
+        }
+        String[] lines = new String(header, 0, length, ASCII).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            respond(channel, "400 Bad Request", false);
+            return false;
+        }
+        String method = requestLine[0];
+        String range = null;
+        boolean keepAlive = "HTTP/1.1".equals(requestLine[2]);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if ("Range".equalsIgnoreCase(name)) {
+                range = value;
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                keepAlive = !"close".equalsIgnoreCase(value);
+            }
+        }
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            respond(channel, "405 Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+        String token = tokenOf(requestLine[1]);
+        Source source = token != null ? mSources.get(token) : null;
+        if (source == null) {
+            respond(channel, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        FileChannel file;
+        try {
+            file = source.open();
+        } catch (IOException e) {
+            CastLog.e(TAG, "could not open " + requestLine[1], e);
+            respond(channel, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        try {
+            return sendBody(channel, source, file, range, head, keepAlive);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private boolean sendBody(SocketChannel channel, Source source, FileChannel file, String rangeHeader,
+                             boolean head, boolean keepAlive) throws IOException {
+        long total = source.getLength();
+        long[] range = parseRange(rangeHeader, total);
+        if (range == UNSATISFIABLE) {
+            StringBuilder response = statusLine("416 Range Not Satisfiable", keepAlive);
+            response.append("Content-Range: bytes */").append(total).append("\r\n");
+            endHeaders(channel, response.append("Content-Length: 0\r\n"));
+            return keepAlive;
+        }
+        long start = range != null ? range[0] : 0;
+        long count = range != null ? range[1] - range[0] + 1 : total;
+        StringBuilder response = statusLine(range != null ? "206 Partial Content" : "200 OK", keepAlive);
+        String contentType = source.getContentType();
+        response.append("Content-Type: ")
+                .append(contentType != null ? contentType : "application/octet-stream").append("\r\n");
+        response.append("Content-Length: ").append(count).append("\r\n");
+        if (range != null) {
+            response.append("Content-Range: bytes ").append(range[0]).append('-').append(range[1])
+                    .append('/').append(total).append("\r\n");
+        }
+        endHeaders(channel, response);
+        if (head) {
+            return keepAlive;
+        }
+        long position = start;
+        long end = start + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, channel);
+            if (sent <= 0) {
+                // The file shrank under us; the length promised can't be kept
+                return false;
+            }
+            position += sent;
+        }
+        return keepAlive;
+    }
+
+    private static StringBuilder statusLine(String status, boolean keepAlive) {
+        StringBuilder response = new StringBuilder(256);
+        response.append("HTTP/1.1 ").append(status).append("\r\n");
+        response.append("Accept-Ranges: bytes\r\n");
+        // Receivers play through MSE, which needs CORS
+        response.append("Access-Control-Allow-Origin: *\r\n");
+        response.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        return response;
+    }
+
+    private static void endHeaders(SocketChannel channel, StringBuilder response) throws IOException {
+        response.append("\r\n");
+        ByteBuffer buffer = ByteBuffer.wrap(response.toString().getBytes(ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void respond(SocketChannel channel, String status, boolean keepAlive) throws IOException {
+        endHeaders(channel, statusLine(status, keepAlive).append("Content-Length: 0\r\n"));
+    }
+
+    /**
+     * Read up to and including the blank line ending the headers.
+     * @return the header length, 0 at the end of the stream, or -1 if the headers are too long.
+     */
+    private static int readHeader(InputStream in, byte[] header) throws IOException {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                return 0;
+            }
+            if (length == header.length) {
+                return -1;
+            }
+            header[length++] = (byte) b;
+            if (length >= 4 && header[length - 1] == '\n' && header[length - 2] == '\r'
+                    && header[length - 3] == '\n' && header[length - 4] == '\r') {
+                return length - 4;
+            }
+        }
+    }
+
+    private static String tokenOf(String path) {
+        if (path == null || !path.startsWith("/")) {
+            return null;
+        }
+        int slash = path.indexOf('/', 1);
+        return path.substring(1, slash > 0 ? slash : path.length());
+    }
+
+    /**
+     * Parse a single byte range, e.g. "bytes=100-", "bytes=100-199" or "bytes=-500".
+     * @return the first and last byte, null to send everything, or {@link #UNSATISFIABLE}.
+     */
+    static long[] parseRange(String header, long total) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            // Multiple ranges are allowed to be answered with the whole file
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max(0, total - suffix);
+                last = total - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first < 0 || last < first) {
+            return null;
+        }
+        if (first >= total) {
+            return UNSATISFIABLE;
+        }
+        return new long[] {first, Math.min(last, total - 1)};
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Turns typed messages into the strings a cast namespace carries, and back.
+ *
+ * Implementations are shared between threads and should keep any scratch state per thread.
+ * {@link JsonCodec} and {@link BinaryCodec} do the pooling for you.
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * Append the encoded message to out.
+     */
+    void encode(T message, StringBuilder out);
+
+    /**
+     * @throws IllegalArgumentException if the frame is not a valid message.
+     */
+    T decode(CharSequence frame);
+}
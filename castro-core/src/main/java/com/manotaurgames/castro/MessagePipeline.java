@@ -0,0 +1,942 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outgoing message queue for a single namespace, independent of any Cast API.
+ *
+ * Messages are handed to a {@link MessageSender} from the {@link Scheduler}'s thread with a
+ * bounded number of requests in flight. When batching is enabled, messages queued within the flush
+ * delay are coalesced into one frame, which the receiver sees as a JSON array of strings.
+ *
+ * Each {@link Priority} has its own queue. Realtime messages go out before anything else and skip the
+ * flush delay; while they are flowing, one in-flight slot is kept free for them and bulk traffic is held
+ * to the configured rate, so a big upload doesn't add to input lag.
+ *
+ * A message sent with a key replaces any queued message with the same key. With the journal on,
+ * messages stay queued until the receiver has them: a frame that fails because the connection dropped
+ * goes back to the front of its lane and is replayed in order on the next {@link #attach}, unless its
+ * messages have outlived their TTL or been replaced by a newer message with the same key.
+ *
+ * {@link #send(String)} may be called from any thread. {@link Listener} callbacks arrive on the scheduler's thread.
+ */
+public final class MessagePipeline {
+
+    private static final String TAG = MessagePipeline.class.getSimpleName();
+
+    /**
+     * Largest message a cast namespace carries, in UTF-8 bytes.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    // Mirrors of CastStatusCodes
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_INTERNAL_ERROR = 8;
+
+    /**
+     * What {@link #send(String)} does when the queue is full.
+     */
+    public enum Backpressure {
+        /** Evict the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Wait for room, up to the configured block timeout. Not allowed on the scheduler's thread. */
+        BLOCK,
+        /** Refuse the new message. */
+        REJECT
+    }
+
+    /**
+     * Which lane a message is queued in.
+     */
+    public enum Priority {
+        /** Player input and anything else that must not wait. */
+        REALTIME,
+        /** Everything else; what {@link #send(String)} uses. */
+        NORMAL,
+        /** Uploads that can be slowed down while realtime messages are flowing. */
+        BULK
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * Receives the pipeline's flow control signals.
+     */
+    public interface Listener {
+
+        void onBackpressure(boolean congested);
+
+        void onMessageDropped(String message);
+
+        void onSendFailed(String frame, int statusCode);
+    }
+
+    private final String mNamespace;
+    private final Scheduler mScheduler;
+    private final int mMaxQueued;
+    private final int mMaxInFlight;
+    private final int mMaxFrameLength;
+    private final long mFlushDelayMs;
+    private final boolean mBatching;
+    private final Backpressure mBackpressure;
+    private final long mBlockTimeoutMs;
+    private final boolean mJournal;
+    private final long mTtlMs;
+    private final int mBulkCharsPerSecond;
+    private final long mRealtimeHoldMs;
+    private final Listener mListener;
+    private final CastMetrics mMetrics;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotFull = mLock.newCondition();
+
+    // Everything below is guarded by mLock
+    private final Lane[] mLanes = new Lane[PRIORITIES.length];
+    // Newest queued or unacknowledged message for each key
+    private final Map<String, Entry> mKeyed = new HashMap<>();
+    private final ArrayDeque<Entry> mFreeEntries = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mScratch = new ArrayDeque<>();
+    private long mNextSeq;
+    private int mFrameCount;
+    private final StringBuilder mFrame = new StringBuilder();
+    private MessageSender mSender;
+    private int mGeneration;
+    private int mInFlight;
+    private boolean mFlushScheduled;
+    private boolean mCongested;
+    // Realtime traffic counts as active until this long after its last message
+    private long mRealtimeUntil = Long.MIN_VALUE;
+    // Bulk token bucket in characters; may go negative after a big frame
+    private long mBulkTokens = MAX_MESSAGE_LENGTH;
+    private long mBulkRefilledAt;
+    private boolean mBulkRetryScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private final Runnable mBulkRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mLock.lock();
+            try {
+                mBulkRetryScheduled = false;
+            } finally {
+                mLock.unlock();
+            }
+            pump();
+        }
+    };
+
+    private MessagePipeline(Builder builder) {
+        mNamespace = builder.namespace;
+        mScheduler = builder.scheduler;
+        mMaxQueued = builder.maxQueued;
+        mMaxInFlight = builder.maxInFlight;
+        mMaxFrameLength = builder.maxFrameLength;
+        mFlushDelayMs = builder.flushDelayMs;
+        mBatching = builder.batching;
+        mBackpressure = builder.backpressure;
+        mBlockTimeoutMs = builder.blockTimeoutMs;
+        mJournal = builder.journal;
+        mTtlMs = builder.ttlMs;
+        mBulkCharsPerSecond = builder.bulkCharsPerSecond;
+        mRealtimeHoldMs = builder.realtimeHoldMs;
+        mListener = builder.listener;
+        mMetrics = builder.metrics;
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane(mMaxQueued);
+        }
+        mBulkRefilledAt = mScheduler.now();
+    }
+
+    public String getNamespace() {
+        return mNamespace;
+    }
+
+    /**
+     * Start sending. Anything queued while detached goes out right away.
+     */
+    public void attach(MessageSender sender) {
+        mLock.lock();
+        try {
+            mSender = sender;
+            mGeneration++;
+            resetInFlightLocked();
+        } finally {
+            mLock.unlock();
+        }
+        mScheduler.post(mFlushRunnable);
+    }
+
+    /**
+     * Stop sending. Queued messages are kept until the next {@link #attach} or {@link #clear()}.
+     */
+    public void detach() {
+        mLock.lock();
+        try {
+            mSender = null;
+            mGeneration++;
+            resetInFlightLocked();
+        } finally {
+            mLock.unlock();
+        }
+        mScheduler.cancel(mFlushRunnable);
+    }
+
+    private void resetInFlightLocked() {
+        mInFlight = 0;
+        for (Lane lane : mLanes) {
+            lane.inFlight = 0;
+        }
+    }
+
+    /**
+     * Discard everything still waiting in the queue.
+     */
+    public void clear() {
+        mLock.lock();
+        try {
+            for (Lane lane : mLanes) {
+                while (!lane.entries.isEmpty()) {
+                    releaseLocked(lane.poll());
+                }
+            }
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        updateCongestion();
+    }
+
+    /**
+     * @return messages waiting in every lane.
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            int depth = 0;
+            for (Lane lane : mLanes) {
+                depth += lane.entries.size();
+            }
+            return depth;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getQueueDepth(Priority priority) {
+        mLock.lock();
+        try {
+            return mLanes[priority.ordinal()].entries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getInFlightCount() {
+        mLock.lock();
+        try {
+            return mInFlight;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Time from {@link #send} to the send result of the frame that carried it, for one lane.
+     */
+    public LatencyHistogram getLatency(Priority priority) {
+        return mLanes[priority.ordinal()].latency;
+    }
+
+    /**
+     * Queue a message for the receiver at {@link Priority#NORMAL}.
+     * @return false if the message was refused because the queue is full.
+     */
+    public boolean send(String message) {
+        return send(message, Priority.NORMAL);
+    }
+
+    /**
+     * Queue a message for the receiver. Each priority has its own queue of the configured size.
+     * @return false if the message was refused because its queue is full.
+     */
+    public boolean send(String message, Priority priority) {
+        return send(message, priority, null);
+    }
+
+    /**
+     * Queue a message that supersedes any earlier message with the same key, e.g. the latest
+     * position of a player. The earlier one is dropped if it is still queued, and not replayed if it
+     * was in flight when the connection dropped.
+     * @param key null for a message that replaces nothing.
+     * @return false if the message was refused because its queue is full.
+     */
+    public boolean send(String message, Priority priority, String key) {
+        if (message == null) {
+            throw new NullPointerException("message");
+        }
+        // Every char is at least one byte and at most three, so only long messages need counting
+        if (message.length() > MAX_MESSAGE_LENGTH / 3 && utf8Length(message, 0, message.length()) > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Message exceeds " + MAX_MESSAGE_LENGTH + " bytes");
+        }
+        Lane lane = mLanes[priority.ordinal()];
+        String dropped = null;
+        mLock.lock();
+        try {
+            Entry previous = key != null ? mKeyed.get(key) : null;
+            if (previous != null) {
+                if (previous.lane.remove(previous)) {
+                    releaseLocked(previous);
+                } else {
+                    // In flight: it must not be replayed over this one
+                    previous.superseded = true;
+                }
+            }
+            if (lane.entries.size() >= mMaxQueued) {
+                if (!mCongested) {
+                    mCongested = true;
+                    notifyBackpressure(true);
+                }
+                switch (mBackpressure) {
+                    case DROP_OLDEST:
+                        Entry oldest = lane.poll();
+                        dropped = oldest.message;
+                        releaseLocked(oldest);
+                        break;
+                    case BLOCK:
+                        if (!awaitRoomLocked(lane)) {
+                            return false;
+                        }
+                        break;
+                    case REJECT:
+                        return false;
+                }
+            }
+            long now = mScheduler.now();
+            Entry entry = obtainLocked(lane, message, key, now);
+            lane.add(entry);
+            if (key != null) {
+                mKeyed.put(key, entry);
+            }
+            if (priority == Priority.REALTIME) {
+                mRealtimeUntil = now + mRealtimeHoldMs;
+            }
+            scheduleFlushLocked(priority);
+        } finally {
+            mLock.unlock();
+        }
+        if (dropped != null) {
+            notifyDropped(dropped);
+        }
+        return true;
+    }
+
+    /**
+     * Send everything queued without waiting for the flush delay.
+     */
+    public void flush() {
+        mScheduler.cancel(mFlushRunnable);
+        mScheduler.post(mFlushRunnable);
+    }
+
+    private boolean awaitRoomLocked(Lane lane) {
+        if (mScheduler.isCurrentThread()) {
+            throw new IllegalStateException("Backpressure.BLOCK cannot wait on the main thread");
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(mBlockTimeoutMs);
+        try {
+            while (lane.entries.size() >= mMaxQueued) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = mNotFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleFlushLocked(Priority priority) {
+        if (!mBatching || priority == Priority.REALTIME || mLanes[priority.ordinal()].length >= mMaxFrameLength) {
+            mFlushScheduled = true;
+            mScheduler.cancel(mFlushRunnable);
+            mScheduler.post(mFlushRunnable);
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mScheduler.postDelayed(mFlushRunnable, mFlushDelayMs);
+        }
+    }
+
+    /**
+     * Send frames until the queues are empty or the in-flight cap is reached. Scheduler thread only.
+     */
+    private void pump() {
+        while (true) {
+            final MessageSender sender;
+            final String frame;
+            final int generation;
+            final int messageCount;
+            final long queuedAt;
+            final int depth;
+            final Lane lane;
+            final List<Entry> entries;
+            List<String> expired = null;
+            mLock.lock();
+            try {
+                mFlushScheduled = false;
+                sender = mSender;
+                if (sender == null || !sender.isConnected() || mInFlight >= mMaxInFlight) {
+                    return;
+                }
+                if (mTtlMs > 0) {
+                    expired = expireLocked();
+                }
+                lane = nextLaneLocked();
+                if (lane == null) {
+                    notifyDropped(expired);
+                    return;
+                }
+                queuedAt = lane.headQueuedAt();
+                entries = mJournal ? new ArrayList<Entry>(mBatching ? 8 : 1) : null;
+                frame = nextFrameLocked(lane, entries);
+                messageCount = mFrameCount;
+                if (lane == mLanes[Priority.BULK.ordinal()] && isRealtimeActiveLocked(mScheduler.now())) {
+                    // Only bulk sent alongside realtime traffic counts, or idle sends would run up a debt
+                    // the capped refill never pays back
+                    mBulkTokens -= frame.length();
+                }
+                depth = mLanes[0].entries.size() + mLanes[1].entries.size() + mLanes[2].entries.size();
+                generation = mGeneration;
+                mInFlight++;
+                lane.inFlight++;
+                mNotFull.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+            notifyDropped(expired);
+            updateCongestion();
+            if (mMetrics != null) mMetrics.onQueueDepth(mNamespace, depth);
+            sendFrame(sender, lane, entries, frame, generation, messageCount, queuedAt);
+        }
+    }
+
+    private boolean isRealtimeActiveLocked(long now) {
+        return mLanes[Priority.REALTIME.ordinal()].inFlight > 0 || now < mRealtimeUntil;
+    }
+
+    /**
+     * @return the lane to send from next, or null to wait.
+     */
+    private Lane nextLaneLocked() {
+        Lane realtime = mLanes[Priority.REALTIME.ordinal()];
+        if (!realtime.entries.isEmpty()) {
+            return realtime;
+        }
+        long now = mScheduler.now();
+        boolean realtimeActive = isRealtimeActiveLocked(now);
+        if (realtimeActive && mMaxInFlight > 1 && mInFlight >= mMaxInFlight - 1) {
+            // Keep a slot free for the next input
+            return null;
+        }
+        Lane normal = mLanes[Priority.NORMAL.ordinal()];
+        if (!normal.entries.isEmpty()) {
+            return normal;
+        }
+        Lane bulk = mLanes[Priority.BULK.ordinal()];
+        if (bulk.entries.isEmpty()) {
+            return null;
+        }
+        if (mBulkCharsPerSecond > 0) {
+            mBulkTokens = Math.min(MAX_MESSAGE_LENGTH,
+                    mBulkTokens + (now - mBulkRefilledAt) * mBulkCharsPerSecond / 1000);
+            mBulkRefilledAt = now;
+            if (realtimeActive && mBulkTokens <= 0) {
+                long waitMs = Math.min(mRealtimeUntil - now,
+                        (-mBulkTokens * 1000) / mBulkCharsPerSecond + 1);
+                if (!mBulkRetryScheduled) {
+                    mBulkRetryScheduled = true;
+                    mScheduler.postDelayed(mBulkRetryRunnable, Math.max(1, waitMs));
+                }
+                return null;
+            }
+        }
+        return bulk;
+    }
+
+    /**
+     * Take the next frame's messages off the lane.
+     * @param taken gets the entries in the frame when journaling, null to release them right away.
+     */
+    private String nextFrameLocked(Lane lane, List<Entry> taken) {
+        if (!mBatching) {
+            mFrameCount = 1;
+            return takeLocked(lane, taken);
+        }
+        StringBuilder frame = mFrame;
+        frame.setLength(0);
+        frame.append('[');
+        // Both brackets
+        int bytes = 2;
+        int count = 0;
+        while (!lane.entries.isEmpty()) {
+            String message = lane.entries.peekFirst().message;
+            int mark = frame.length();
+            if (count > 0) {
+                frame.append(',');
+            }
+            JsonWriter.appendString(frame, message);
+            int added = utf8Length(frame, mark, frame.length());
+            if (bytes + added > mMaxFrameLength) {
+                frame.setLength(mark);
+                if (count == 0) {
+                    // Too big to batch once escaped, but it fits on its own
+                    mFrameCount = 1;
+                    return takeLocked(lane, taken);
+                }
+                break;
+            }
+            bytes += added;
+            takeLocked(lane, taken);
+            count++;
+        }
+        frame.append(']');
+        mFrameCount = count;
+        return frame.toString();
+    }
+
+    /**
+     * @return how many bytes the chars from start to end take in UTF-8.
+     */
+    static int utf8Length(CharSequence s, int start, int end) {
+        int bytes = end - start;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Four bytes for the pair
+                bytes += 2;
+                i++;
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    private String takeLocked(Lane lane, List<Entry> taken) {
+        Entry entry = lane.poll();
+        String message = entry.message;
+        if (taken != null) {
+            taken.add(entry);
+        } else {
+            releaseLocked(entry);
+        }
+        return message;
+    }
+
+    /**
+     * Drop queued messages older than the TTL. Lanes are in send order, so only heads need checking.
+     * @return the dropped messages, or null if there were none.
+     */
+    private List<String> expireLocked() {
+        long oldest = mScheduler.now() - mTtlMs;
+        List<String> expired = null;
+        for (Lane lane : mLanes) {
+            Entry head;
+            while ((head = lane.entries.peekFirst()) != null && head.queuedAt < oldest) {
+                if (expired == null) {
+                    expired = new ArrayList<>();
+                }
+                expired.add(head.message);
+                releaseLocked(lane.poll());
+            }
+        }
+        return expired;
+    }
+
+    private Entry obtainLocked(Lane lane, String message, String key, long now) {
+        Entry entry = mFreeEntries.pollFirst();
+        if (entry == null) {
+            entry = new Entry();
+        }
+        entry.lane = lane;
+        entry.message = message;
+        entry.key = key;
+        entry.queuedAt = now;
+        entry.seq = mNextSeq++;
+        return entry;
+    }
+
+    private void releaseLocked(Entry entry) {
+        if (entry.key != null && mKeyed.get(entry.key) == entry) {
+            mKeyed.remove(entry.key);
+        }
+        entry.lane = null;
+        entry.message = null;
+        entry.key = null;
+        entry.superseded = false;
+        if (mFreeEntries.size() < mMaxQueued * PRIORITIES.length) {
+            mFreeEntries.addLast(entry);
+        }
+    }
+
+    private void sendFrame(MessageSender sender, final Lane lane, final List<Entry> entries, final String frame,
+                           final int generation, final int messageCount, final long queuedAt) {
+        final long sentAt = mScheduler.now();
+        try {
+            sender.sendMessage(mNamespace, frame, new MessageSender.Callback() {
+                @Override
+                public void onResult(int statusCode) {
+                    reportFrame(lane, messageCount, queuedAt, sentAt, statusCode);
+                    onFrameResult(lane, entries, frame, generation, statusCode);
+                }
+            });
+        } catch (RuntimeException e) {
+            CastLog.e(TAG, "Exception while sending message", e);
+            reportFrame(lane, messageCount, queuedAt, sentAt, STATUS_INTERNAL_ERROR);
+            onFrameResult(lane, entries, frame, generation, STATUS_INTERNAL_ERROR);
+        }
+    }
+
+    private void reportFrame(Lane lane, int messageCount, long queuedAt, long sentAt, int statusCode) {
+        long now = mScheduler.now();
+        if (statusCode == STATUS_SUCCESS) {
+            lane.latency.record(now - queuedAt);
+        }
+        if (mMetrics == null) return;
+        mMetrics.onFrameSent(mNamespace, messageCount, sentAt - queuedAt, now - sentAt, statusCode);
+    }
+
+    private void onFrameResult(Lane lane, List<Entry> entries, String frame, int generation, int statusCode) {
+        boolean replay = false;
+        List<String> dropped = null;
+        mLock.lock();
+        try {
+            if (generation == mGeneration) {
+                mInFlight--;
+                lane.inFlight--;
+            }
+            if (entries != null) {
+                // Lost to a dropped connection rather than refused by the receiver
+                replay = statusCode != STATUS_SUCCESS
+                        && (generation != mGeneration || mSender == null || !mSender.isConnected());
+                if (replay) {
+                    dropped = requeueLocked(lane, entries);
+                } else {
+                    for (int i = 0, n = entries.size(); i < n; i++) {
+                        releaseLocked(entries.get(i));
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (replay) {
+            CastLog.d(TAG, "Keeping " + entries.size() + " messages for replay, status " + statusCode);
+            notifyDropped(dropped);
+            pump();
+            return;
+        }
+        if (statusCode != STATUS_SUCCESS) {
+            CastLog.e(TAG, "Sending message failed: " + statusCode);
+            if (mListener != null) mListener.onSendFailed(frame, statusCode);
+        }
+        pump();
+    }
+
+    /**
+     * Put a failed frame's messages back in front of everything queued after them.
+     * @return the messages that made room for them, or null.
+     */
+    private List<String> requeueLocked(Lane lane, List<Entry> entries) {
+        long first = entries.get(0).seq;
+        ArrayDeque<Entry> ahead = mScratch;
+        while (!lane.entries.isEmpty() && lane.entries.peekFirst().seq < first) {
+            ahead.addLast(lane.poll());
+        }
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            if (entry.superseded) {
+                releaseLocked(entry);
+            } else {
+                lane.addFirst(entry);
+            }
+        }
+        while (!ahead.isEmpty()) {
+            lane.addFirst(ahead.pollLast());
+        }
+        if (lane.entries.size() <= mMaxQueued) {
+            return null;
+        }
+        if (!mCongested) {
+            mCongested = true;
+            notifyBackpressure(true);
+        }
+        if (mBackpressure != Backpressure.DROP_OLDEST) {
+            // Already accepted, so they stay; send() refuses or blocks until the lane drains
+            return null;
+        }
+        List<String> dropped = new ArrayList<>();
+        while (lane.entries.size() > mMaxQueued) {
+            Entry oldest = lane.poll();
+            dropped.add(oldest.message);
+            releaseLocked(oldest);
+        }
+        return dropped;
+    }
+
+    private void updateCongestion() {
+        mLock.lock();
+        try {
+            if (!mCongested) {
+                return;
+            }
+            for (Lane lane : mLanes) {
+                if (lane.entries.size() > mMaxQueued / 2) {
+                    return;
+                }
+            }
+            mCongested = false;
+        } finally {
+            mLock.unlock();
+        }
+        notifyBackpressure(false);
+    }
+
+    private void notifyBackpressure(final boolean congested) {
+        if (mListener == null) return;
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onBackpressure(congested);
+            }
+        });
+    }
+
+    private void notifyDropped(List<String> messages) {
+        if (messages == null) return;
+        for (int i = 0, n = messages.size(); i < n; i++) {
+            notifyDropped(messages.get(i));
+        }
+    }
+
+    private void notifyDropped(final String message) {
+        if (mListener == null) return;
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onMessageDropped(message);
+            }
+        });
+    }
+
+    /**
+     * The queue of one priority. Guarded by the pipeline's lock, except the histogram.
+     */
+    private static final class Lane {
+
+        final ArrayDeque<Entry> entries;
+        int length;
+        int inFlight;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Lane(int capacity) {
+            entries = new ArrayDeque<>(capacity);
+        }
+
+        void add(Entry entry) {
+            entries.addLast(entry);
+            length += entry.message.length();
+        }
+
+        void addFirst(Entry entry) {
+            entries.addFirst(entry);
+            length += entry.message.length();
+        }
+
+        long headQueuedAt() {
+            return entries.peekFirst().queuedAt;
+        }
+
+        Entry poll() {
+            Entry entry = entries.pollFirst();
+            length -= entry.message.length();
+            return entry;
+        }
+
+        boolean remove(Entry entry) {
+            if (entry.lane != this || !entries.removeFirstOccurrence(entry)) {
+                return false;
+            }
+            length -= entry.message.length();
+            return true;
+        }
+    }
+
+    /**
+     * One queued message. Recycled once it is sent, dropped or replaced.
+     */
+    private static final class Entry {
+        Lane lane;
+        String message;
+        String key;
+        long queuedAt;
+        long seq;
+        // A newer message with the same key was queued while this one was in flight
+        boolean superseded;
+    }
+
+    /**
+     * Builds a {@link MessagePipeline}. The defaults send every message as its own frame,
+     * four at a time, drop the oldest message once 64 are waiting in a lane, and hold bulk
+     * traffic to 32K characters a second while realtime messages are flowing.
+     */
+    public static class Builder {
+
+        private final String namespace;
+        private final Scheduler scheduler;
+        private int maxQueued = 64;
+        private int maxInFlight = 4;
+        private int maxFrameLength = MAX_MESSAGE_LENGTH;
+        private long flushDelayMs = 16;
+        private boolean batching;
+        private Backpressure backpressure = Backpressure.DROP_OLDEST;
+        private long blockTimeoutMs = 1000;
+        private boolean journal;
+        private long ttlMs;
+        private int bulkCharsPerSecond = 32 * 1024;
+        private long realtimeHoldMs = 500;
+        private Listener listener;
+        private CastMetrics metrics;
+
+        public Builder(String namespace, Scheduler scheduler) {
+            if (namespace == null) {
+                throw new NullPointerException("namespace");
+            }
+            if (scheduler == null) {
+                throw new NullPointerException("scheduler");
+            }
+            this.namespace = namespace;
+            this.scheduler = scheduler;
+        }
+
+        public Builder setMaxQueuedMessages(int maxQueued) {
+            if (maxQueued < 1) {
+                throw new IllegalArgumentException("maxQueued must be positive");
+            }
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        public Builder setMaxInFlight(int maxInFlight) {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be positive");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Coalesce messages queued within flushDelayMs into one JSON array frame of at most maxFrameLength
+         * UTF-8 bytes. A message too big for a frame once escaped goes out on its own, unbatched.
+         */
+        public Builder setBatching(int maxFrameLength, long flushDelayMs) {
+            if (maxFrameLength < 2 || maxFrameLength > MAX_MESSAGE_LENGTH) {
+                throw new IllegalArgumentException("maxFrameLength out of range: " + maxFrameLength);
+            }
+            this.batching = true;
+            this.maxFrameLength = maxFrameLength;
+            this.flushDelayMs = flushDelayMs;
+            return this;
+        }
+
+        public Builder setBackpressure(Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+
+        /**
+         * How long {@link Backpressure#BLOCK} waits for room before refusing a message.
+         */
+        public Builder setBlockTimeout(long blockTimeoutMs) {
+            this.blockTimeoutMs = blockTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Keep messages until their frame is delivered, and replay frames lost to a dropped connection.
+         * A replay that overfills a lane drops its oldest messages with {@link Backpressure#DROP_OLDEST},
+         * reported like any other drop; the other policies keep them and hold off new sends instead.
+         * @param ttlMs drop messages still queued this long after they were sent, 0 to keep them.
+         */
+        public Builder setJournal(long ttlMs) {
+            if (ttlMs < 0) {
+                throw new IllegalArgumentException("Negative ttl");
+            }
+            this.journal = true;
+            this.ttlMs = ttlMs;
+            return this;
+        }
+
+        /**
+         * Hold {@link Priority#BULK} to charsPerSecond for realtimeHoldMs after each realtime message.
+         * @param charsPerSecond 0 to never hold bulk back.
+         */
+        public Builder setBulkRateLimit(int charsPerSecond, long realtimeHoldMs) {
+            if (charsPerSecond < 0 || realtimeHoldMs < 0) {
+                throw new IllegalArgumentException("Negative bulk rate limit");
+            }
+            this.bulkCharsPerSecond = charsPerSecond;
+            this.realtimeHoldMs = realtimeHoldMs;
+            return this;
+        }
+
+        public Builder setListener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder setMetrics(CastMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public MessagePipeline build() {
+            return new MessagePipeline(this);
+        }
+    }
+}
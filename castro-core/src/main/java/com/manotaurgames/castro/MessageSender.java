@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Delivers frames to the receiver on a connected session.
+ */
+public interface MessageSender {
+
+    interface Callback {
+        /**
+         * @param statusCode a CastStatusCodes value, 0 on success.
+         */
+        void onResult(int statusCode);
+    }
+
+    boolean isConnected();
+
+    void sendMessage(String namespace, String message, Callback callback);
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CastMetrics} that aggregates everything into histograms and counters.
+ * {@link #snapshot()} flattens them into a map ready to hand to any telemetry pipeline.
+ */
+public class MetricsRecorder extends CastMetrics {
+
+    private final Map<Stage, LatencyHistogram> mStages = new EnumMap<>(Stage.class);
+    private final LatencyHistogram mQueued = new LatencyHistogram();
+    private final LatencyHistogram mSend = new LatencyHistogram();
+    private final LatencyHistogram mRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram mReconnect = new LatencyHistogram();
+    private final LatencyHistogram mTeardown = new LatencyHistogram();
+    private final AtomicLong mConnectsAbandoned = new AtomicLong();
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mSendFailures = new AtomicLong();
+    private final AtomicLong mRpcFailures = new AtomicLong();
+    private final AtomicLong mReconnectsRecovered = new AtomicLong();
+    private final AtomicLong mReconnectsAbandoned = new AtomicLong();
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+
+    public MetricsRecorder() {
+        for (Stage stage : Stage.values()) {
+            mStages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void onConnectStage(Stage stage, long elapsedMs) {
+        mStages.get(stage).record(elapsedMs);
+    }
+
+    @Override
+    public void onConnectAbandoned(Stage lastStage, long elapsedMs) {
+        mConnectsAbandoned.incrementAndGet();
+    }
+
+    @Override
+    public void onFrameSent(String namespace, int messageCount, long queuedMs, long sendMs, int statusCode) {
+        mMessages.addAndGet(messageCount);
+        mQueued.record(queuedMs);
+        mSend.record(sendMs);
+        if (statusCode != 0) {
+            mSendFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onQueueDepth(String namespace, int depth) {
+        long max;
+        while (depth > (max = mMaxQueueDepth.get()) && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+    }
+
+    @Override
+    public void onRoundTrip(String method, long rttMs, int errorCode) {
+        mRoundTrip.record(rttMs);
+        if (errorCode != 0) {
+            mRpcFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onReconnect(int attempts, long elapsedMs, boolean recovered) {
+        mReconnect.record(elapsedMs);
+        (recovered ? mReconnectsRecovered : mReconnectsAbandoned).incrementAndGet();
+    }
+
+    @Override
+    public void onTeardown(long durationMs) {
+        mTeardown.record(durationMs);
+    }
+
+    public LatencyHistogram getStageHistogram(Stage stage) {
+        return mStages.get(stage);
+    }
+
+    public LatencyHistogram getRoundTripHistogram() {
+        return mRoundTrip;
+    }
+
+    /**
+     * @return e.g. {@code connect.api_connected.p50 -> 180, rpc.rtt.p99 -> 63, reconnect.recovered -> 2}.
+     * Histograms contribute count, mean, p50, p90, p99 and max; latencies are in ms.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for (Map.Entry<Stage, LatencyHistogram> entry : mStages.entrySet()) {
+            put(out, "connect." + entry.getKey().name().toLowerCase(Locale.US), entry.getValue());
+        }
+        out.put("connect.abandoned", mConnectsAbandoned.get());
+        put(out, "send.queued", mQueued);
+        put(out, "send.latency", mSend);
+        out.put("send.messages", mMessages.get());
+        out.put("send.failures", mSendFailures.get());
+        out.put("send.queue_depth.max", mMaxQueueDepth.get());
+        put(out, "rpc.rtt", mRoundTrip);
+        out.put("rpc.failures", mRpcFailures.get());
+        put(out, "reconnect.duration", mReconnect);
+        out.put("reconnect.recovered", mReconnectsRecovered.get());
+        out.put("reconnect.abandoned", mReconnectsAbandoned.get());
+        put(out, "teardown.duration", mTeardown);
+        return out;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStages.values()) {
+            histogram.reset();
+        }
+        mQueued.reset();
+        mSend.reset();
+        mRoundTrip.reset();
+        mReconnect.reset();
+        mTeardown.reset();
+        mConnectsAbandoned.set(0);
+        mMessages.set(0);
+        mSendFailures.set(0);
+        mRpcFailures.set(0);
+        mReconnectsRecovered.set(0);
+        mReconnectsAbandoned.set(0);
+        mMaxQueueDepth.set(0);
+    }
+
+    private static void put(Map<String, Long> out, String prefix, LatencyHistogram histogram) {
+        out.put(prefix + ".count", histogram.getCount());
+        out.put(prefix + ".mean", histogram.getMean());
+        out.put(prefix + ".p50", histogram.getPercentile(50));
+        out.put(prefix + ".p90", histogram.getPercentile(90));
+        out.put(prefix + ".p99", histogram.getPercentile(99));
+        out.put(prefix + ".max", histogram.getMax());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Projects a media player's position between status updates.
+ *
+ * Each update pins the position reported by the player to the local time it arrived, and the position
+ * then advances at the playback rate while playing. Not thread safe.
+ */
+public final class PlaybackClock {
+
+    private long mPositionMs;
+    private long mDurationMs;
+    private double mRate;
+    private boolean mPlaying;
+    private long mUpdatedAt;
+
+    /**
+     * Take a status from the player.
+     * @param durationMs 0 or less if unknown, e.g. a live stream.
+     * @param nowMs local time the status arrived.
+     */
+    public void update(long positionMs, long durationMs, double rate, boolean playing, long nowMs) {
+        mPositionMs = positionMs;
+        mDurationMs = durationMs;
+        mRate = rate;
+        mPlaying = playing;
+        mUpdatedAt = nowMs;
+    }
+
+    /**
+     * Move to a position ahead of the player's confirmation, e.g. while a seek is on its way.
+     */
+    public void seek(long positionMs, long nowMs) {
+        mPositionMs = clamp(positionMs);
+        mUpdatedAt = nowMs;
+    }
+
+    /**
+     * Start or stop the projection ahead of the player's confirmation.
+     */
+    public void setPlaying(boolean playing, long nowMs) {
+        if (playing == mPlaying) {
+            return;
+        }
+        mPositionMs = getPosition(nowMs);
+        mUpdatedAt = nowMs;
+        mPlaying = playing;
+    }
+
+    public long getPosition(long nowMs) {
+        if (!mPlaying) {
+            return mPositionMs;
+        }
+        long elapsed = Math.max(0, nowMs - mUpdatedAt);
+        return clamp(mPositionMs + (long) (elapsed * mRate));
+    }
+
+    public long getDuration() {
+        return mDurationMs;
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    public void reset() {
+        mPositionMs = 0;
+        mDurationMs = 0;
+        mRate = 0;
+        mPlaying = false;
+        mUpdatedAt = 0;
+    }
+
+    private long clamp(long positionMs) {
+        if (positionMs < 0) {
+            return 0;
+        }
+        return mDurationMs > 0 && positionMs > mDurationMs ? mDurationMs : positionMs;
+    }
+}
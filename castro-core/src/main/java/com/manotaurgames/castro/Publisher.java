@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands values to any number of subscribers, each on its own executor.
+ *
+ * Publishing never blocks on a subscriber: values go into the subscriber's queue, which is drained on
+ * its executor. A slow subscriber to a busy stream picks what it loses. With {@link Backpressure#LATEST}
+ * only the newest value waits, as suits positions or scores. With {@link Backpressure#BUFFER} up to
+ * capacity values wait, and the oldest is dropped beyond that.
+ *
+ * A replaying publisher hands its latest value to each new subscriber, so a subscriber that comes late
+ * still starts from the current state. Safe to use from any thread.
+ */
+public final class Publisher<T> {
+
+    private static final String TAG = Publisher.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * What a subscriber that can't keep up loses.
+     */
+    public enum Backpressure {
+        /** Only the newest value waits. */
+        LATEST,
+        /** Up to capacity values wait, then the oldest is dropped. */
+        BUFFER
+    }
+
+    public interface Subscriber<T> {
+
+        void onNext(T value);
+    }
+
+    public interface Subscription {
+
+        /**
+         * Stop deliveries. Values already queued are dropped.
+         */
+        void cancel();
+
+        /**
+         * @return how many values were dropped because the subscriber fell behind.
+         */
+        int getDroppedCount();
+    }
+
+    private final CopyOnWriteArrayList<Sub<T>> mSubs = new CopyOnWriteArrayList<>();
+    private final boolean mReplay;
+    // Orders replays against publishes, only used when replaying
+    private final Object mReplayLock = new Object();
+    private volatile T mLatest;
+
+    /**
+     * @param replay hand the latest value to new subscribers.
+     */
+    public Publisher(boolean replay) {
+        mReplay = replay;
+    }
+
+    /**
+     * Subscribe with a buffer of {@link #DEFAULT_CAPACITY} values.
+     */
+    public Subscription subscribe(Subscriber<T> subscriber, Executor executor) {
+        return subscribe(subscriber, executor, Backpressure.BUFFER, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param executor runs deliveries, one at a time and in order.
+     * @param capacity values kept waiting with {@link Backpressure#BUFFER}.
+     */
+    public Subscription subscribe(Subscriber<T> subscriber, Executor executor, Backpressure backpressure,
+                                  int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        Sub<T> sub = new Sub<>(this, subscriber, executor, backpressure, capacity);
+        if (!mReplay) {
+            mSubs.add(sub);
+            return sub;
+        }
+        synchronized (mReplayLock) {
+            mSubs.add(sub);
+            T latest = mLatest;
+            if (latest != null) {
+                sub.offer(latest);
+            }
+        }
+        return sub;
+    }
+
+    public void publish(T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        if (!mReplay) {
+            deliver(value);
+            return;
+        }
+        synchronized (mReplayLock) {
+            mLatest = value;
+            deliver(value);
+        }
+    }
+
+    /**
+     * @return the last value published, or null. Only kept when replaying.
+     */
+    public T getLatest() {
+        return mLatest;
+    }
+
+    public int getSubscriberCount() {
+        return mSubs.size();
+    }
+
+    private void deliver(T value) {
+        for (Sub<T> sub : mSubs) {
+            sub.offer(value);
+        }
+    }
+
+    /**
+     * One subscriber's queue, drained on its executor.
+     */
+    private static final class Sub<T> implements Subscription, Runnable {
+
+        private final Publisher<T> mPublisher;
+        private final Subscriber<T> mSubscriber;
+        private final Executor mExecutor;
+        private final Backpressure mBackpressure;
+        private final int mCapacity;
+        // Guarded by itself
+        private final ArrayDeque<T> mQueue = new ArrayDeque<>();
+        private boolean mScheduled;
+        private int mDropped;
+        private volatile boolean mCancelled;
+
+        Sub(Publisher<T> publisher, Subscriber<T> subscriber, Executor executor, Backpressure backpressure,
+            int capacity) {
+            mPublisher = publisher;
+            mSubscriber = subscriber;
+            mExecutor = executor;
+            mBackpressure = backpressure;
+            mCapacity = capacity;
+        }
+
+        void offer(T value) {
+            synchronized (mQueue) {
+                if (mCancelled) {
+                    return;
+                }
+                if (mBackpressure == Backpressure.LATEST) {
+                    mDropped += mQueue.size();
+                    mQueue.clear();
+                } else if (mQueue.size() >= mCapacity) {
+                    mQueue.pollFirst();
+                    mDropped++;
+                }
+                mQueue.addLast(value);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                CastLog.e(TAG, "Executor rejected deliveries", e);
+                synchronized (mQueue) {
+                    mScheduled = false;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                T value;
+                synchronized (mQueue) {
+                    value = mQueue.pollFirst();
+                    if (value == null || mCancelled) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    mSubscriber.onNext(value);
+                } catch (RuntimeException e) {
+                    CastLog.e(TAG, "Subscriber failed", e);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mPublisher.mSubs.remove(this);
+            synchronized (mQueue) {
+                mCancelled = true;
+                mQueue.clear();
+            }
+        }
+
+        @Override
+        public int getDroppedCount() {
+            synchronized (mQueue) {
+                return mDropped;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * One connection to a receiver device, and the app running on it. On Android it wraps a
+ * GoogleApiClient; every call and callback happens on the {@link Scheduler}'s thread.
+ */
+public interface ReceiverConnection {
+
+    /**
+     * Opens connections for a {@link SessionEngine}.
+     */
+    interface Factory {
+        ReceiverConnection open(String routeId, String deviceId, Callbacks callbacks);
+    }
+
+    /**
+     * Error codes are ConnectionResult values, status codes CastStatusCodes values.
+     */
+    interface Callbacks {
+
+        /**
+         * @param appNoLongerRunning true if this is a reconnect and the receiver app has stopped meanwhile.
+         */
+        void onConnected(boolean appNoLongerRunning);
+
+        /**
+         * @param errorCode NETWORK_ERROR if the network was lost, INTERNAL_ERROR otherwise.
+         */
+        void onConnectionSuspended(int errorCode);
+
+        void onConnectionFailed(int errorCode);
+
+        /**
+         * The app was launched or joined.
+         */
+        void onApplicationConnected(String sessionId);
+
+        void onApplicationFailed(int statusCode);
+
+        void onApplicationDisconnected(int statusCode);
+    }
+
+    void connect();
+
+    void disconnect();
+
+    boolean isConnected();
+
+    boolean isConnecting();
+
+    void launchApplication(String appId);
+
+    void joinApplication(String appId, String sessionId);
+
+    void stopApplication(String sessionId);
+}
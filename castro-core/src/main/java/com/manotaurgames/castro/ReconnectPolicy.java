@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * How a {@link SessionEngine} retries a dropped or failed connection: exponential backoff with jitter,
+ * bounded by a number of attempts and a total time budget.
+ *
+ * Errors that usually clear up on their own, like a network blip, get their first retry almost
+ * immediately. Errors no retry can fix end the session right away.
+ */
+public final class ReconnectPolicy {
+
+    /**
+     * Reports each step of a reconnect, e.g. to measure time-to-recover.
+     */
+    public interface Listener {
+
+        /**
+         * @param attempt 1 for the first retry.
+         * @param delayMs how long until the attempt is made.
+         * @param errorCode the {@code ConnectionResult} code that triggered it. A suspension is
+         *                  reported as NETWORK_ERROR or INTERNAL_ERROR depending on its cause.
+         */
+        void onReconnectScheduled(int attempt, long delayMs, int errorCode);
+
+        /**
+         * @param attempts how many attempts it took.
+         * @param elapsedMs time from the connection dropping to it being back.
+         */
+        void onReconnected(int attempts, long elapsedMs);
+
+        /**
+         * Gets called when the attempt or time budget runs out, or the error can't be retried. The session is torn down.
+         */
+        void onReconnectAbandoned(int attempts, long elapsedMs, int errorCode);
+    }
+
+    // Mirrors of com.google.android.gms.common.ConnectionResult, so the policy runs off-device
+    static final int SERVICE_MISSING = 1;
+    static final int SERVICE_VERSION_UPDATE_REQUIRED = 2;
+    static final int SERVICE_DISABLED = 3;
+    static final int NETWORK_ERROR = 7;
+    static final int INTERNAL_ERROR = 8;
+    static final int SERVICE_INVALID = 9;
+    static final int DEVELOPER_ERROR = 10;
+    static final int TIMEOUT = 14;
+    static final int INTERRUPTED = 15;
+    static final int API_UNAVAILABLE = 16;
+
+    private static final int[] DEFAULT_TRANSIENT_CODES = {
+            NETWORK_ERROR,
+            INTERNAL_ERROR,
+            TIMEOUT,
+            INTERRUPTED,
+    };
+
+    private static final int[] DEFAULT_FATAL_CODES = {
+            SERVICE_MISSING,
+            SERVICE_VERSION_UPDATE_REQUIRED,
+            SERVICE_DISABLED,
+            SERVICE_INVALID,
+            DEVELOPER_ERROR,
+            API_UNAVAILABLE,
+    };
+
+    /**
+     * Never retry: a failed connection is torn down right away, and a suspended one is left to Play
+     * services to bring back, as before reconnect policies existed.
+     */
+    public static final ReconnectPolicy NONE = new Builder().setMaxAttempts(0).build();
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final long mTimeBudgetMs;
+    private final long mFastRetryDelayMs;
+    private final int[] mTransientCodes;
+    private final int[] mFatalCodes;
+
+    private ReconnectPolicy(Builder builder) {
+        mBaseDelayMs = builder.baseDelayMs;
+        mMaxDelayMs = builder.maxDelayMs;
+        mMultiplier = builder.multiplier;
+        mJitter = builder.jitter;
+        mMaxAttempts = builder.maxAttempts;
+        mTimeBudgetMs = builder.timeBudgetMs;
+        mFastRetryDelayMs = builder.fastRetryDelayMs;
+        mTransientCodes = builder.transientCodes.clone();
+        mFatalCodes = builder.fatalCodes.clone();
+        Arrays.sort(mTransientCodes);
+        Arrays.sort(mFatalCodes);
+    }
+
+    /**
+     * @return false if the policy never retries, leaving suspended connections to Play services.
+     */
+    public boolean retries() {
+        return mMaxAttempts > 0;
+    }
+
+    public boolean isTransient(int errorCode) {
+        return Arrays.binarySearch(mTransientCodes, errorCode) >= 0;
+    }
+
+    public boolean isFatal(int errorCode) {
+        return Arrays.binarySearch(mFatalCodes, errorCode) >= 0;
+    }
+
+    /**
+     * @param attempt the attempt about to be scheduled, starting at 1.
+     * @param elapsedMs time since the connection dropped.
+     * @param errorCode the error that ended the previous attempt.
+     * @return how long to wait before the attempt, or -1 to give up.
+     */
+    public long getDelay(int attempt, long elapsedMs, int errorCode, Random random) {
+        if (attempt > mMaxAttempts || elapsedMs >= mTimeBudgetMs || isFatal(errorCode)) {
+            return -1;
+        }
+        if (attempt == 1 && isTransient(errorCode)) {
+            return Math.min(mFastRetryDelayMs, mTimeBudgetMs - elapsedMs);
+        }
+        double delay = mBaseDelayMs * Math.pow(mMultiplier, attempt - 1);
+        delay = Math.min(delay, mMaxDelayMs);
+        delay += delay * mJitter * (random.nextDouble() * 2 - 1);
+        long remaining = mTimeBudgetMs - elapsedMs;
+        return Math.max(0, Math.min((long) delay, remaining));
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectPolicy{base=" + mBaseDelayMs + "ms, max=" + mMaxDelayMs + "ms"
+                + ", multiplier=" + mMultiplier + ", jitter=" + mJitter
+                + ", maxAttempts=" + mMaxAttempts + ", budget=" + mTimeBudgetMs + "ms}";
+    }
+
+    /**
+     * Builds a {@link ReconnectPolicy}. The defaults retry up to 8 times within 30 seconds,
+     * starting at 500ms and doubling up to 8 seconds with 20% jitter.
+     */
+    public static class Builder {
+
+        private long baseDelayMs = 500;
+        private long maxDelayMs = 8000;
+        private double multiplier = 2;
+        private double jitter = 0.2;
+        private int maxAttempts = 8;
+        private long timeBudgetMs = 30 * 1000;
+        private long fastRetryDelayMs = 50;
+        private int[] transientCodes = DEFAULT_TRANSIENT_CODES;
+        private int[] fatalCodes = DEFAULT_FATAL_CODES;
+
+        public Builder setBackoff(long baseDelayMs, long maxDelayMs, double multiplier) {
+            if (baseDelayMs < 0 || maxDelayMs < baseDelayMs || multiplier < 1) {
+                throw new IllegalArgumentException("Invalid backoff");
+            }
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * @param jitter fraction of each delay to randomly add or subtract, between 0 and 1.
+         */
+        public Builder setJitter(double jitter) {
+            if (jitter < 0 || jitter > 1) {
+                throw new IllegalArgumentException("jitter must be between 0 and 1");
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        public Builder setMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder setTimeBudget(long timeBudgetMs) {
+            this.timeBudgetMs = timeBudgetMs;
+            return this;
+        }
+
+        /**
+         * @param fastRetryDelayMs delay before the first retry of a transient error.
+         * @param transientCodes error codes that get the fast first retry.
+         */
+        public Builder setFastRetry(long fastRetryDelayMs, int... transientCodes) {
+            this.fastRetryDelayMs = fastRetryDelayMs;
+            this.transientCodes = transientCodes;
+            return this;
+        }
+
+        /**
+         * @param fatalCodes error codes that end the session without retrying.
+         */
+        public Builder setFatalCodes(int... fatalCodes) {
+            this.fatalCodes = fatalCodes;
+            return this;
+        }
+
+        public ReconnectPolicy build() {
+            return new ReconnectPolicy(this);
+        }
+    }
+}
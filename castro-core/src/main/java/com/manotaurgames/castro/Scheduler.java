@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+/**
+ * Runs the core's timers and callbacks. On Android this is the main thread's Handler; off-device
+ * it can be a manual clock.
+ */
+public interface Scheduler {
+
+    /**
+     * @return monotonic time in milliseconds.
+     */
+    long now();
+
+    void post(Runnable task);
+
+    void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Remove every pending run of task.
+     */
+    void cancel(Runnable task);
+
+    /**
+     * @return true on the thread that runs the tasks, where blocking is not allowed.
+     */
+    boolean isCurrentThread();
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in submission order, on another executor. Backs the per-namespace
+ * ordering of the namespace router.
+ */
+public final class SerialExecutor implements Executor {
+
+    private final Executor mDelegate;
+
+    // Guarded by itself
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mDraining;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (mTasks) {
+                    next = mTasks.poll();
+                    if (next == null) {
+                        mDraining = false;
+                        return;
+                    }
+                }
+                boolean completed = false;
+                try {
+                    next.run();
+                    completed = true;
+                } finally {
+                    if (!completed) {
+                        // Let the exception through, but don't strand the tasks behind it
+                        resume();
+                    }
+                }
+            }
+        }
+    };
+
+    public SerialExecutor(Executor delegate) {
+        mDelegate = delegate;
+    }
+
+    public Executor getDelegate() {
+        return mDelegate;
+    }
+
+    private void resume() {
+        synchronized (mTasks) {
+            if (mTasks.isEmpty()) {
+                mDraining = false;
+                return;
+            }
+        }
+        mDelegate.execute(mDrain);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the delegate refuses; everything queued is dropped.
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (mTasks) {
+            mTasks.add(task);
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            mDelegate.execute(mDrain);
+        } catch (RejectedExecutionException e) {
+            synchronized (mTasks) {
+                mTasks.clear();
+                mDraining = false;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.Random;
+
+/**
+ * The receiver connection lifecycle, independent of Android: connect, launch or join the receiver
+ * app, retry dropped connections according to a {@link ReconnectPolicy}, and tear down.
+ *
+ * The lifecycle is tracked by a {@link ConnectionStateMachine}. Callbacks remember the generation
+ * they were registered for, so late events from a connection we already dropped are ignored.
+ *
+ * All methods except the getters must be called on the {@link Scheduler}'s thread, which is also
+ * where {@link ReceiverConnection} callbacks are expected.
+ */
+public final class SessionEngine {
+
+    private static final String TAG = SessionEngine.class.getSimpleName();
+
+    /**
+     * Everything the engine needs its host to do. Called on the scheduler's thread.
+     */
+    public interface Listener extends ReconnectPolicy.Listener {
+
+        /**
+         * The receiver app is up and talking to us.
+         */
+        void onConnect(boolean isReconnect);
+
+        /**
+         * A session that was delivered with {@link #onConnect} is going away.
+         */
+        void onDisconnect();
+
+        /**
+         * Persist this, so the session can be rejoined after the process dies.
+         */
+        void onSessionStarted(String routeId, String deviceId, String sessionId);
+
+        /**
+         * Forget whatever {@link #onSessionStarted} persisted.
+         */
+        void onSessionForgotten();
+
+        /**
+         * The connection is being torn down.
+         * @param selectDefaultRoute true if the route should be deselected as well.
+         */
+        void onTeardown(boolean selectDefaultRoute);
+    }
+
+    private final String mCastAppId;
+    private final ReceiverConnection.Factory mFactory;
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine();
+
+    private ReconnectPolicy mReconnectPolicy = new ReconnectPolicy.Builder().build();
+    private final Random mRandom = new Random();
+    private int mReconnectAttempts;
+    private int mReconnectErrorCode;
+    // When the connection dropped, -1 when not reconnecting
+    private long mReconnectStartedAt = -1;
+    // Whether onConnect has been delivered for the current selection, so only later ones are reconnects
+    private boolean mHasConnected;
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            attemptReconnect();
+        }
+    };
+
+    private String mJoinSessionId;
+    private boolean mJoining;
+    private long mConnectStartedAt;
+    // When the route of the connection being set up was selected, -1 once it's delivered
+    private long mRouteSelectedAt = -1;
+    private CastMetrics.Stage mLastStage;
+    private volatile CastMetrics mMetrics;
+
+    private String mRouteId;
+    private String mDeviceId;
+    private volatile ReceiverConnection mConnection;
+    private volatile String mSessionId;
+
+    public SessionEngine(String castAppId, ReceiverConnection.Factory factory, Scheduler scheduler, Listener listener) {
+        mCastAppId = castAppId;
+        mFactory = factory;
+        mScheduler = scheduler;
+        mListener = listener;
+    }
+
+    public ConnectionStateMachine getStateMachine() {
+        return mMachine;
+    }
+
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    public void setMetrics(CastMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public ReceiverConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * @return the connection if the receiver app is up and talking to us, otherwise null.
+     */
+    public ReceiverConnection getConnectedConnection() {
+        return mMachine.getState() == ConnectionState.CONNECTED ? mConnection : null;
+    }
+
+    public String getSessionId() {
+        return mSessionId;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * Connect to a device and start the receiver app on it, replacing any current connection.
+     * @param joinSessionId a session to rejoin instead of launching, or null.
+     */
+    public void select(String routeId, String deviceId, String joinSessionId) {
+        boolean idle = mMachine.getState() == ConnectionState.IDLE;
+        if (!idle && deviceId != null && deviceId.equals(mDeviceId)) {
+            CastLog.d(TAG, "already connected to " + deviceId);
+            return;
+        }
+        if (!idle) {
+            teardown(false);
+        }
+        mJoinSessionId = joinSessionId;
+        mHasConnected = false;
+        mRouteId = routeId;
+        mDeviceId = deviceId;
+        mRouteSelectedAt = mScheduler.now();
+        reportStage(CastMetrics.Stage.ROUTE_SELECTED);
+        launchReceiver();
+    }
+
+    private void scheduleReconnect(int errorCode) {
+        long now = mScheduler.now();
+        if (mReconnectStartedAt == -1) {
+            mReconnectStartedAt = now;
+            mReconnectAttempts = 0;
+        }
+        int attempt = mReconnectAttempts + 1;
+        long elapsed = now - mReconnectStartedAt;
+        long delay = mReconnectPolicy.getDelay(attempt, elapsed, errorCode, mRandom);
+        if (delay < 0) {
+            abandonReconnect(errorCode);
+            return;
+        }
+        CastLog.d(TAG, "reconnect attempt " + attempt + " in " + delay + "ms, error " + errorCode);
+        mReconnectAttempts = attempt;
+        mReconnectErrorCode = errorCode;
+        mScheduler.cancel(mReconnect);
+        mScheduler.postDelayed(mReconnect, delay);
+        mListener.onReconnectScheduled(attempt, delay, errorCode);
+    }
+
+    private void attemptReconnect() {
+        ReceiverConnection connection = mConnection;
+        if (connection == null || connection.isConnected()) {
+            return;
+        }
+        if (connection.isConnecting()) {
+            // Play services is still trying on its own, check back after the next backoff step
+            scheduleReconnect(mReconnectErrorCode);
+            return;
+        }
+        connection.connect();
+    }
+
+    /**
+     * The session is usable again. Report how long it took.
+     */
+    private void finishReconnect() {
+        if (mReconnectStartedAt == -1) {
+            return;
+        }
+        int attempts = mReconnectAttempts;
+        long elapsed = mScheduler.now() - mReconnectStartedAt;
+        CastLog.d(TAG, "reconnected after " + attempts + " attempts in " + elapsed + "ms");
+        resetReconnect();
+        mListener.onReconnected(attempts, elapsed);
+        CastMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onReconnect(attempts, elapsed, true);
+    }
+
+    private void abandonReconnect(int errorCode) {
+        int attempts = mReconnectAttempts;
+        long elapsed = mReconnectStartedAt == -1 ? 0 : mScheduler.now() - mReconnectStartedAt;
+        CastLog.d(TAG, "giving up reconnecting after " + attempts + " attempts, error " + errorCode);
+        resetReconnect();
+        mListener.onReconnectAbandoned(attempts, elapsed, errorCode);
+        CastMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onReconnect(attempts, elapsed, false);
+        teardown(false);
+    }
+
+    private void resetReconnect() {
+        mScheduler.cancel(mReconnect);
+        mReconnectStartedAt = -1;
+        mReconnectAttempts = 0;
+    }
+
+    /**
+     * Start the receiver app
+     */
+    private void launchReceiver() {
+        int generation = mMachine.connect();
+        if (generation == -1) {
+            CastLog.e(TAG, "launchReceiver while " + mMachine.getState());
+            return;
+        }
+        try {
+            mConnectStartedAt = mScheduler.now();
+            mConnection = mFactory.open(mRouteId, mDeviceId, new ConnectionCallbacks(generation));
+            mConnection.connect();
+        } catch (RuntimeException e) {
+            CastLog.e(TAG, "Failed launchReceiver", e);
+            teardown(false);
+        }
+    }
+
+    /**
+     * Tear down the connection to the receiver
+     */
+    public void teardown(boolean selectDefaultRoute) {
+        int generation = mMachine.getGeneration();
+        ConnectionState from = mMachine.moveTo(generation, ConnectionState.TEARING_DOWN);
+        if (from == null) {
+            // Already tearing down, e.g. selecting the default route brings us back here
+            return;
+        }
+        CastLog.d(TAG, "teardown from " + from);
+        long startedAt = mScheduler.now();
+        CastMetrics metrics = mMetrics;
+        if (metrics != null && mRouteSelectedAt != -1) {
+            metrics.onConnectAbandoned(mLastStage, startedAt - mRouteSelectedAt);
+        }
+        mRouteSelectedAt = -1;
+        resetReconnect();
+        ReceiverConnection connection = mConnection;
+        if (connection != null) {
+            boolean hadSession = from == ConnectionState.CONNECTED || from == ConnectionState.SUSPENDED;
+            if (connection.isConnected() || connection.isConnecting()) {
+                if (hadSession && mSessionId != null) {
+                    connection.stopApplication(mSessionId);
+                }
+                connection.disconnect();
+            }
+            if (hadSession) {
+                mListener.onDisconnect();
+            }
+            mConnection = null;
+        }
+        mListener.onSessionForgotten();
+        mListener.onTeardown(selectDefaultRoute);
+        mRouteId = null;
+        mDeviceId = null;
+        mSessionId = null;
+        mJoinSessionId = null;
+        mHasConnected = false;
+        if (metrics != null && connection != null) {
+            metrics.onTeardown(mScheduler.now() - startedAt);
+        }
+        mMachine.moveTo(generation, ConnectionState.IDLE);
+    }
+
+    /**
+     * The receiver stopped answering, e.g. it lost power, while Play services still thinks it is there
+     * or is waiting for it. Drop the connection and rejoin according to the reconnect policy, which
+     * tears the session down if it gives up.
+     */
+    public void onReceiverUnresponsive() {
+        int generation = mMachine.getGeneration();
+        ConnectionState state = mMachine.getState();
+        if (state != ConnectionState.CONNECTED && state != ConnectionState.SUSPENDED) {
+            return;
+        }
+        CastLog.d(TAG, "receiver is unresponsive");
+        if (state == ConnectionState.CONNECTED) {
+            mMachine.moveTo(generation, ConnectionState.SUSPENDED);
+        }
+        mJoinSessionId = mSessionId;
+        // The fresh client gets a generation of its own, so callbacks from the dead one, including those
+        // fired by disconnecting it, are ignored
+        generation = mMachine.renew(generation);
+        ReceiverConnection connection = mConnection;
+        if (connection != null && (connection.isConnected() || connection.isConnecting())) {
+            connection.disconnect();
+        }
+        // A fresh client, for the scheduled reconnect to connect and rejoin with
+        try {
+            mConnection = mFactory.open(mRouteId, mDeviceId, new ConnectionCallbacks(generation));
+        } catch (RuntimeException e) {
+            CastLog.e(TAG, "Failed to reopen connection", e);
+            teardown(false);
+            return;
+        }
+        scheduleReconnect(ReconnectPolicy.TIMEOUT);
+    }
+
+    /**
+     * Report the session usable. It's a reconnect only if it was usable before, not when a first
+     * connect needed retries.
+     */
+    private void dispatchConnect() {
+        finishReconnect();
+        boolean isReconnect = mHasConnected;
+        mHasConnected = true;
+        mListener.onConnect(isReconnect);
+        reportStage(CastMetrics.Stage.CAST_CONNECT_DELIVERED);
+        mRouteSelectedAt = -1;
+    }
+
+    private void reportStage(CastMetrics.Stage stage) {
+        if (mRouteSelectedAt == -1) {
+            return;
+        }
+        mLastStage = stage;
+        CastMetrics metrics = mMetrics;
+        if (metrics != null) metrics.onConnectStage(stage, mScheduler.now() - mRouteSelectedAt);
+    }
+
+    private void launchOrJoin() {
+        mJoining = mJoinSessionId != null;
+        if (mJoining) {
+            // Rejoin the receiver app we were talking to before the connection or process died
+            mConnection.joinApplication(mCastAppId, mJoinSessionId);
+        } else {
+            // Launch the receiver app
+            mConnection.launchApplication(mCastAppId);
+        }
+    }
+
+    /**
+     * Callbacks of one connection attempt
+     */
+    private class ConnectionCallbacks implements ReceiverConnection.Callbacks {
+
+        private final int mGeneration;
+
+        ConnectionCallbacks(int generation) {
+            mGeneration = generation;
+        }
+
+        @Override
+        public void onConnected(boolean appNoLongerRunning) {
+            CastLog.d(TAG, "onConnected");
+            if (!mMachine.isCurrent(mGeneration)) {
+                // We got disconnected while this was pending
+                return;
+            }
+            try {
+                ConnectionState state = mMachine.getState();
+                if (state == ConnectionState.SUSPENDED && mJoinSessionId == null) {
+                    // Check if the receiver app is still running
+                    if (appNoLongerRunning) {
+                        CastLog.d(TAG, "App  is no longer running");
+                        teardown(true);
+                    } else if (mMachine.moveTo(mGeneration, ConnectionState.CONNECTED) != null) {
+                        dispatchConnect();
+                    }
+                } else if (mMachine.moveTo(mGeneration, ConnectionState.LAUNCHING) != null) {
+                    reportStage(CastMetrics.Stage.API_CONNECTED);
+                    launchOrJoin();
+                }
+            } catch (RuntimeException e) {
+                CastLog.e(TAG, "Failed to launch application", e);
+            }
+        }
+
+        @Override
+        public void onConnectionSuspended(int errorCode) {
+            CastLog.d(TAG, "onConnectionSuspended");
+            if (!mMachine.isCurrent(mGeneration)) {
+                return;
+            }
+            if (mMachine.getState() == ConnectionState.LAUNCHING) {
+                // The launch result is lost with the connection, start over once we're back
+                mMachine.moveTo(mGeneration, ConnectionState.CONNECTING);
+            } else {
+                mMachine.moveTo(mGeneration, ConnectionState.SUSPENDED);
+            }
+            if (!mReconnectPolicy.retries()) {
+                // Leave it to Play services, which reconnects by itself
+                return;
+            }
+            // Play services reconnects by itself, but only we know how long we're willing to wait
+            scheduleReconnect(errorCode);
+        }
+
+        @Override
+        public void onConnectionFailed(int errorCode) {
+            CastLog.e(TAG, "onConnectionFailed " + errorCode);
+            if (!mMachine.isCurrent(mGeneration)) {
+                return;
+            }
+            switch (mMachine.getState()) {
+                case CONNECTED:
+                case SUSPENDED:
+                    // The app connection is gone with the client, join it again once we're back
+                    mMachine.moveTo(mGeneration, ConnectionState.SUSPENDED);
+                    mJoinSessionId = mSessionId;
+                    break;
+                case LAUNCHING:
+                    mMachine.moveTo(mGeneration, ConnectionState.CONNECTING);
+                    break;
+                default:
+                    break;
+            }
+            scheduleReconnect(errorCode);
+        }
+
+        @Override
+        public void onApplicationConnected(String sessionId) {
+            if (!mMachine.isCurrent(mGeneration) || mMachine.getState() != ConnectionState.LAUNCHING) {
+                return;
+            }
+            mSessionId = sessionId;
+            CastLog.d(TAG, "sessionId: " + sessionId + ", " + (mJoining ? "joined" : "launched") + " in "
+                    + (mScheduler.now() - mConnectStartedAt) + "ms");
+            mJoinSessionId = null;
+            mListener.onSessionStarted(mRouteId, mDeviceId, sessionId);
+            mMachine.moveTo(mGeneration, ConnectionState.CONNECTED);
+            reportStage(CastMetrics.Stage.APPLICATION_CONNECTED);
+            dispatchConnect();
+        }
+
+        @Override
+        public void onApplicationFailed(int statusCode) {
+            if (!mMachine.isCurrent(mGeneration) || mMachine.getState() != ConnectionState.LAUNCHING) {
+                return;
+            }
+            if (mJoining && mReconnectStartedAt != -1) {
+                CastLog.d(TAG, "receiver app stopped while we were reconnecting");
+                abandonReconnect(statusCode);
+            } else if (mJoining) {
+                CastLog.d(TAG, "saved session is gone, launching a new one");
+                mJoinSessionId = null;
+                mListener.onSessionForgotten();
+                launchOrJoin();
+            } else {
+                CastLog.e(TAG, "application could not launch");
+                teardown(true);
+            }
+        }
+
+        @Override
+        public void onApplicationDisconnected(int statusCode) {
+            if (!mMachine.isCurrent(mGeneration)) {
+                return;
+            }
+            CastLog.d(TAG, "application has stopped");
+            teardown(true);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat game state mirrored on the receiver with one snapshot and then field-level deltas.
+ *
+ * Fields are set as often as the game likes; only those whose value actually changed since the last
+ * frame go into the next delta. Frames look like
+ * {@code {"sync":"snapshot","v":7,"state":{"phase":"lobby","round":1}}} and
+ * {@code {"sync":"delta","v":8,"set":{"round":2},"del":["bonus"]}}. A receiver that sees a version
+ * other than its own plus one answers {@code {"sync":"resync","v":7}}, and gets a new snapshot.
+ *
+ * Not thread-safe; call it from one thread, the main thread on Android.
+ */
+public final class StateSync {
+
+    private static final int STRING = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int BOOLEAN = 3;
+
+    private final Map<String, Field> mFields = new LinkedHashMap<>();
+    private final List<Field> mDirty = new ArrayList<>();
+    private final List<String> mRemoved = new ArrayList<>();
+    private final JsonWriter mWriter = new JsonWriter();
+    private int mVersion;
+
+    /**
+     * @return the version of the last frame written.
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return true if there are changes for the next delta.
+     */
+    public boolean hasChanges() {
+        return !mDirty.isEmpty() || !mRemoved.isEmpty();
+    }
+
+    public void set(String name, String value) {
+        if (value == null) {
+            remove(name);
+            return;
+        }
+        Field field = field(name, STRING);
+        if (field.dirtyIfChanged(!value.equals(field.string))) {
+            field.string = value;
+        }
+    }
+
+    public void set(String name, long value) {
+        Field field = field(name, LONG);
+        if (field.dirtyIfChanged(field.bits != value)) {
+            field.bits = value;
+        }
+    }
+
+    public void set(String name, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON has no " + value);
+        }
+        long bits = Double.doubleToLongBits(value);
+        Field field = field(name, DOUBLE);
+        if (field.dirtyIfChanged(field.bits != bits)) {
+            field.bits = bits;
+        }
+    }
+
+    public void set(String name, boolean value) {
+        long bits = value ? 1 : 0;
+        Field field = field(name, BOOLEAN);
+        if (field.dirtyIfChanged(field.bits != bits)) {
+            field.bits = bits;
+        }
+    }
+
+    public void remove(String name) {
+        Field field = mFields.remove(name);
+        if (field == null) {
+            return;
+        }
+        if (field.dirty) {
+            mDirty.remove(field);
+        }
+        if (field.sent) {
+            mRemoved.add(name);
+        }
+    }
+
+    private Field field(String name, int type) {
+        Field field = mFields.get(name);
+        if (field == null) {
+            field = new Field(name);
+            mFields.put(name, field);
+            // Its del hasn't gone out yet, so the receiver still has it
+            field.sent = mRemoved.remove(name);
+        }
+        if (field.type != type) {
+            // A new type always counts as a change
+            field.type = type;
+            field.string = null;
+            field.bits = Long.MIN_VALUE;
+            field.markDirty();
+        }
+        return field;
+    }
+
+    /**
+     * Write every field as a new snapshot, which replaces whatever the receiver had.
+     */
+    public void writeSnapshot(StringBuilder out) {
+        mVersion++;
+        JsonWriter writer = mWriter.reset(out);
+        writer.beginObject()
+                .name("sync").value("snapshot")
+                .name("v").value(mVersion)
+                .name("state").beginObject();
+        for (Field field : mFields.values()) {
+            field.write(writer.name(field.name));
+            field.dirty = false;
+            field.sent = true;
+        }
+        writer.endObject().endObject();
+        mDirty.clear();
+        mRemoved.clear();
+    }
+
+    /**
+     * Write what changed since the last frame.
+     * @return false, writing nothing, if nothing changed.
+     */
+    public boolean writeDelta(StringBuilder out) {
+        if (!hasChanges()) {
+            return false;
+        }
+        mVersion++;
+        JsonWriter writer = mWriter.reset(out);
+        writer.beginObject()
+                .name("sync").value("delta")
+                .name("v").value(mVersion);
+        if (!mDirty.isEmpty()) {
+            writer.name("set").beginObject();
+            for (int i = 0, n = mDirty.size(); i < n; i++) {
+                Field field = mDirty.get(i);
+                field.write(writer.name(field.name));
+                field.dirty = false;
+                field.sent = true;
+            }
+            writer.endObject();
+            mDirty.clear();
+        }
+        if (!mRemoved.isEmpty()) {
+            writer.name("del").beginArray();
+            for (int i = 0, n = mRemoved.size(); i < n; i++) {
+                writer.value(mRemoved.get(i));
+            }
+            writer.endArray();
+            mRemoved.clear();
+        }
+        writer.endObject();
+        return true;
+    }
+
+    /**
+     * @return true if the message is a resync request, which the caller answers with a snapshot.
+     */
+    public static boolean isResyncRequest(JsonReader reader) {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            return false;
+        }
+        boolean resync = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("sync") && reader.peek() == JsonReader.Token.STRING) {
+                resync = reader.nextString().equals("resync");
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return resync;
+    }
+
+    /**
+     * One field, and whether it has changed since it was last written.
+     */
+    private final class Field {
+
+        final String name;
+        int type = -1;
+        String string;
+        long bits;
+        boolean dirty;
+        // Whether the receiver knows the field, so removing it needs a del
+        boolean sent;
+
+        Field(String name) {
+            this.name = name;
+        }
+
+        boolean dirtyIfChanged(boolean changed) {
+            if (changed) {
+                markDirty();
+            }
+            return changed;
+        }
+
+        void markDirty() {
+            if (!dirty) {
+                dirty = true;
+                mDirty.add(this);
+            }
+        }
+
+        void write(JsonWriter writer) {
+            switch (type) {
+                case STRING:
+                    writer.value(string);
+                    break;
+                case LONG:
+                    writer.value(bits);
+                    break;
+                case DOUBLE:
+                    writer.value(Double.longBitsToDouble(bits));
+                    break;
+                default:
+                    writer.value(bits != 0);
+                    break;
+            }
+        }
+    }
+}
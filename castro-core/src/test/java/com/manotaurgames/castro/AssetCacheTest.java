@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AssetCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private AssetCache mCache;
+
+    @Before
+    public void setUp() {
+        // Room for two 10 byte entries
+        mCache = new AssetCache(mFolder.getRoot(), 20);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        mCache.put("a", bytes(10));
+        mCache.put("b", bytes(10));
+        assertNotNull(mCache.get("a"));
+        mCache.put("c", bytes(10));
+        assertNotNull(mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertEquals(20, mCache.getSize());
+    }
+
+    @Test
+    public void pinnedEntriesSurviveEviction() throws IOException {
+        File a = mCache.putAndAcquire("a", bytes(10));
+        mCache.put("b", bytes(10));
+        mCache.put("c", bytes(10));
+        assertTrue(a.exists());
+        assertNull(mCache.get("b"));
+
+        mCache.release("a");
+        mCache.put("d", bytes(10));
+        assertNull(mCache.get("a"));
+        assertFalse(a.exists());
+    }
+
+    @Test
+    public void removedPinnedEntryIsDeletedOnLastRelease() throws IOException {
+        mCache.put("a", bytes(10));
+        File a = mCache.acquire("a");
+        assertNotNull(mCache.acquire("a"));
+        mCache.remove("a");
+        assertNull(mCache.get("a"));
+        assertTrue(a.exists());
+        mCache.release("a");
+        assertTrue(a.exists());
+        mCache.release("a");
+        assertFalse(a.exists());
+    }
+
+    @Test
+    public void acquireOfMissingEntryPinsNothing() throws IOException {
+        assertNull(mCache.acquire("a"));
+        mCache.release("a");
+        mCache.put("a", bytes(10));
+        mCache.put("b", bytes(10));
+        mCache.put("c", bytes(10));
+        assertNull(mCache.get("a"));
+    }
+
+    private static AssetCache.Writer bytes(final int count) {
+        return new AssetCache.Writer() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(new byte[count]);
+            }
+        };
+    }
+}
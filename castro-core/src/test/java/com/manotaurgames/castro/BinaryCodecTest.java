@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BinaryCodecTest {
+
+    private final BytesCodec mCodec = new BytesCodec();
+
+    @Test
+    public void roundTripsEveryPaddingLength() {
+        for (int length = 0; length < 8; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (i * 97 - 128);
+            }
+            String frame = encode(bytes);
+            assertEquals((length + 2) / 3 * 4, frame.length());
+            assertArrayEquals(bytes, mCodec.decode(frame));
+        }
+        assertEquals("AAEC/w==", encode(new byte[] {0, 1, 2, -1}));
+    }
+
+    @Test
+    public void largestPayloadFitsOneMessage() {
+        byte[] bytes = new byte[BinaryCodec.MAX_PAYLOAD_BYTES];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        String frame = encode(bytes);
+        assertEquals(65536, frame.length());
+        assertArrayEquals(bytes, mCodec.decode(frame));
+    }
+
+    @Test
+    public void rejectsOversizePayload() {
+        try {
+            encode(new byte[BinaryCodec.MAX_PAYLOAD_BYTES + 1]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        StringBuilder frame = new StringBuilder();
+        for (int i = 0; i < 65540; i++) {
+            frame.append('A');
+        }
+        assertMalformed(frame);
+    }
+
+    @Test
+    public void rejectsMalformedBase64() {
+        assertMalformed("A");
+        assertMalformed("AAA*");
+        assertMalformed("AA\u00e9A");
+    }
+
+    @Test
+    public void truncatedPayloadIsMalformed() {
+        try {
+            new IntCodec().decode("AAA=");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(-2, (int) new IntCodec().decode(encode(new IntCodec(), -2)));
+    }
+
+    private String encode(byte[] bytes) {
+        StringBuilder out = new StringBuilder();
+        mCodec.encode(bytes, out);
+        return out.toString();
+    }
+
+    private static <T> String encode(BinaryCodec<T> codec, T message) {
+        StringBuilder out = new StringBuilder();
+        codec.encode(message, out);
+        return out.toString();
+    }
+
+    private void assertMalformed(CharSequence frame) {
+        try {
+            mCodec.decode(frame);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static final class BytesCodec extends BinaryCodec<byte[]> {
+
+        @Override
+        protected void write(byte[] message, ByteBuffer buffer) {
+            buffer.put(message);
+        }
+
+        @Override
+        protected byte[] read(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+
+    private static final class IntCodec extends BinaryCodec<Integer> {
+
+        @Override
+        protected void write(Integer message, ByteBuffer buffer) {
+            buffer.putInt(message);
+        }
+
+        @Override
+        protected Integer read(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    }
+}
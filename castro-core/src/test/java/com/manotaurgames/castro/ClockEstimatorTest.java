@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockEstimatorTest {
+
+    // The receiver's clock runs this far ahead of the sender's
+    private static final long OFFSET_MS = 5000;
+
+    private final ClockEstimator mClock = new ClockEstimator();
+
+    @Test
+    public void discardsImpossibleSamples() {
+        // Answered before it was asked
+        assertFalse(mClock.addSample(1000, 6010, 6010, 990));
+        // Replied before it was received
+        assertFalse(mClock.addSample(1000, 6010, 6005, 1020));
+        // Held by the receiver longer than the whole round trip
+        assertFalse(mClock.addSample(1000, 6010, 6050, 1020));
+        assertFalse(mClock.hasEstimate());
+        assertEquals(0, mClock.getOffsetMs());
+    }
+
+    @Test
+    public void symmetricDelaysGiveTheExactOffset() {
+        assertTrue(sample(1000, 20, 20));
+        assertTrue(mClock.hasEstimate());
+        assertEquals(OFFSET_MS, mClock.getOffsetMs());
+        assertEquals(40, mClock.getRttMs());
+        assertEquals(20, mClock.getOneWayDelayMs());
+        assertEquals(6000, mClock.toReceiverTime(1000));
+        assertEquals(1000, mClock.toSenderTime(6000));
+    }
+
+    @Test
+    public void asymmetricDelaysSkewByHalfTheDifference() {
+        sample(1000, 90, 10);
+        assertEquals(OFFSET_MS + 40, mClock.getOffsetMs());
+    }
+
+    @Test
+    public void offsetComesFromTheLowestRoundTripInTheWindow() {
+        sample(1000, 5, 5);
+        // Queued on the way out, which skews their offsets
+        for (int i = 1; i < 8; i++) {
+            sample(1000 + i * 100, 200, 10);
+        }
+        assertEquals(OFFSET_MS, mClock.getOffsetMs());
+
+        // The clean sample falls out of the window
+        sample(2000, 200, 10);
+        assertEquals(OFFSET_MS + 95, mClock.getOffsetMs());
+    }
+
+    @Test
+    public void smoothsRoundTripAndJitter() {
+        sample(1000, 50, 50);
+        assertEquals(100, mClock.getRttMs());
+        assertEquals(50, mClock.getJitterMs());
+
+        sample(2000, 10, 10);
+        // Jitter moves a quarter of the way to |20 - 100|, using the round trip from before this sample
+        assertEquals(58, mClock.getJitterMs());
+        // Round trip moves an eighth of the way to 20
+        assertEquals(90, mClock.getRttMs());
+        assertEquals(45, mClock.getOneWayDelayMs());
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        sample(1000, 20, 20);
+        mClock.reset();
+        assertFalse(mClock.hasEstimate());
+        assertEquals(0, mClock.getOffsetMs());
+        assertEquals(0, mClock.getRttMs());
+        sample(1000, 5, 5);
+        assertEquals(10, mClock.getRttMs());
+    }
+
+    /**
+     * One exchange started at sender time t0, with the receiver taking 2ms to reply.
+     */
+    private boolean sample(long t0, long outMs, long backMs) {
+        long t1 = t0 + outMs + OFFSET_MS;
+        long t2 = t1 + 2;
+        long t3 = t2 - OFFSET_MS + backMs;
+        return mClock.addSample(t0, t1, t2, t3);
+    }
+}
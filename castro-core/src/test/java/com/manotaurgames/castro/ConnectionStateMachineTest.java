@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+
+    private ConnectionStateMachine mMachine;
+    private final List<String> mTransitions = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mMachine = new ConnectionStateMachine();
+        mMachine.addListener(new ConnectionState.Listener() {
+            @Override
+            public void onConnectionStateChanged(ConnectionState oldState, ConnectionState newState) {
+                mTransitions.add(oldState + "->" + newState);
+            }
+        });
+    }
+
+    @Test
+    public void connectStartsNewGenerationOnlyFromIdle() {
+        int generation = mMachine.connect();
+        assertEquals(ConnectionState.CONNECTING, mMachine.getState());
+        assertTrue(mMachine.isCurrent(generation));
+        assertEquals(-1, mMachine.connect());
+        assertEquals(1, mTransitions.size());
+    }
+
+    @Test
+    public void followsLegalMovesOnly() {
+        int generation = mMachine.connect();
+        assertNull(mMachine.moveTo(generation, ConnectionState.CONNECTED));
+        assertEquals(ConnectionState.CONNECTING, mMachine.moveTo(generation, ConnectionState.LAUNCHING));
+        assertEquals(ConnectionState.LAUNCHING, mMachine.moveTo(generation, ConnectionState.CONNECTED));
+        assertEquals(ConnectionState.CONNECTED, mMachine.moveTo(generation, ConnectionState.SUSPENDED));
+        assertEquals(ConnectionState.SUSPENDED, mMachine.moveTo(generation, ConnectionState.TEARING_DOWN));
+        assertEquals(ConnectionState.TEARING_DOWN, mMachine.moveTo(generation, ConnectionState.IDLE));
+        assertEquals(6, mTransitions.size());
+    }
+
+    @Test
+    public void ignoresStaleGenerations() {
+        int first = mMachine.connect();
+        mMachine.moveTo(first, ConnectionState.TEARING_DOWN);
+        mMachine.moveTo(first, ConnectionState.IDLE);
+        int second = mMachine.connect();
+        assertFalse(mMachine.isCurrent(first));
+        assertNull(mMachine.moveTo(first, ConnectionState.LAUNCHING));
+        assertEquals(ConnectionState.CONNECTING, mMachine.getState());
+        assertEquals(ConnectionState.CONNECTING, mMachine.moveTo(second, ConnectionState.LAUNCHING));
+    }
+
+    @Test
+    public void renewKeepsStateAndRetiresOldGeneration() {
+        int generation = mMachine.connect();
+        mMachine.moveTo(generation, ConnectionState.LAUNCHING);
+        mTransitions.clear();
+        int renewed = mMachine.renew(generation);
+        assertEquals(generation + 1, renewed);
+        assertEquals(ConnectionState.LAUNCHING, mMachine.getState());
+        assertTrue(mTransitions.isEmpty());
+        assertNull(mMachine.moveTo(generation, ConnectionState.CONNECTED));
+        assertEquals(-1, mMachine.renew(generation));
+        assertEquals(ConnectionState.LAUNCHING, mMachine.moveTo(renewed, ConnectionState.CONNECTED));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.manotaurgames.castro.fake.FakeReceiver;
+import com.manotaurgames.castro.fake.ManualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A {@link HeartbeatMonitor} watching a {@link FakeReceiver} through a {@link SessionEngine}, the way
+ * CastHeartbeat wires them up.
+ */
+public class HeartbeatMonitorTest {
+
+    private static final long LATENCY_MS = 20;
+
+    private ManualScheduler mScheduler;
+    private FakeReceiver mReceiver;
+    private SessionEngine mEngine;
+    private HeartbeatMonitor mMonitor;
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<ReceiverConnection.Callbacks> mOpened = new ArrayList<>();
+    private boolean mAnswering = true;
+    private long mLastAnswerAt = -1;
+    private long mDeadAt = -1;
+    private long mSilence = -1;
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mReceiver = new FakeReceiver(mScheduler).setLatency(LATENCY_MS);
+        ReceiverConnection.Factory factory = new ReceiverConnection.Factory() {
+            @Override
+            public ReceiverConnection open(String routeId, String deviceId, ReceiverConnection.Callbacks callbacks) {
+                mOpened.add(callbacks);
+                return mReceiver.open(routeId, deviceId, callbacks);
+            }
+        };
+        mEngine = new SessionEngine("APP", factory, mScheduler, new SessionEngineTest.RecordingListener(mEvents));
+        mMonitor = new HeartbeatMonitor(mScheduler, new HeartbeatMonitor.Listener() {
+            @Override
+            public void onPing(int seq) {
+                if (mAnswering) {
+                    mScheduler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLastAnswerAt = mScheduler.now();
+                            mMonitor.onHeard();
+                        }
+                    }, 2 * LATENCY_MS);
+                }
+            }
+
+            @Override
+            public void onDead(long silenceMs) {
+                mDeadAt = mScheduler.now();
+                mSilence = silenceMs;
+                mEngine.onReceiverUnresponsive();
+            }
+        });
+        mEngine.select("route", "device", null);
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        mMonitor.start();
+        mEvents.clear();
+    }
+
+    @Test
+    public void answeringReceiverStaysConnected() {
+        mScheduler.advance(60 * 1000);
+        assertEquals(-1, mDeadAt);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+    }
+
+    @Test
+    public void silentReceiverDetectedWithinSixSeconds() {
+        mScheduler.advance(30 * 1000);
+        mAnswering = false;
+        long diedAt = mScheduler.now();
+        mScheduler.advance(10 * 1000);
+        assertTrue("never declared dead", mDeadAt != -1);
+        assertEquals(6000, mSilence);
+        assertEquals(6000, mDeadAt - mLastAnswerAt);
+        assertTrue("detected " + (mDeadAt - diedAt) + "ms after dying", mDeadAt - diedAt <= 6000);
+        assertTrue(mEvents.toString(), mEvents.contains("scheduled 1"));
+    }
+
+    @Test
+    public void receiverThatComesBackIsRejoined() {
+        mAnswering = false;
+        mReceiver.failNextConnects(2, FakeReceiver.TIMEOUT);
+        mScheduler.advance(6000);
+        assertEquals(ConnectionState.SUSPENDED, mEngine.getStateMachine().getState());
+        mScheduler.advance(30 * 1000);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        assertEquals("fake-session-1", mEngine.getSessionId());
+        assertTrue(mEvents.toString(), mEvents.contains("reconnected 3"));
+        assertEquals("connect true", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void receiverThatStaysDeadIsTornDown() {
+        mAnswering = false;
+        mReceiver.failNextConnects(1000, FakeReceiver.TIMEOUT);
+        mScheduler.advance(5 * 60 * 1000);
+        assertEquals(ConnectionState.IDLE, mEngine.getStateMachine().getState());
+        assertTrue(mEvents.toString(), mEvents.contains("disconnect"));
+        assertTrue(mEvents.toString(), mEvents.contains("teardown false"));
+    }
+
+    @Test
+    public void deadClientCallbacksAreIgnored() {
+        mAnswering = false;
+        mScheduler.advance(6000);
+        assertEquals(2, mOpened.size());
+        mEvents.clear();
+        ReceiverConnection.Callbacks dead = mOpened.get(0);
+        dead.onConnectionFailed(FakeReceiver.NETWORK_ERROR);
+        dead.onApplicationDisconnected(FakeReceiver.STATUS_SUCCESS);
+        assertTrue(mEvents.toString(), mEvents.isEmpty());
+        assertEquals(ConnectionState.SUSPENDED, mEngine.getStateMachine().getState());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InputCoalescerTest {
+
+    private final InputCoalescer mInput = new InputCoalescer();
+
+    @Test
+    public void sendsOnlyWhatChanged() {
+        mInput.set("x", 0.5);
+        mInput.set("fire", true);
+        assertEquals("{\"input\":{\"x\":0.5,\"fire\":true},\"seq\":1}", frame());
+        mInput.set("x", 0.25);
+        assertEquals("{\"input\":{\"x\":0.25},\"seq\":2}", frame());
+        assertFalse(mInput.set("x", 0.25));
+        assertFalse(mInput.hasChanges());
+    }
+
+    @Test
+    public void tapGoesOutAsPressThenRelease() {
+        mInput.set("fire", true);
+        mInput.set("fire", false);
+        assertEquals("{\"input\":{\"fire\":true},\"seq\":1}", frame());
+        assertEquals("{\"input\":{\"fire\":false},\"seq\":2}", frame());
+        assertFalse(mInput.hasChanges());
+    }
+
+    @Test
+    public void resyncSendsEveryKey() {
+        mInput.setDeadZone("y", 0.1);
+        mInput.set("x", 0.5);
+        mInput.set("fire", true);
+        mInput.set("fire", false);
+        frame();
+        frame();
+
+        mInput.resync();
+        assertTrue(mInput.hasChanges());
+        // Setting a key to what it already was doesn't take it back out
+        mInput.set("fire", false);
+        String frame = frame();
+        assertTrue(frame, frame.contains("\"x\":0.5"));
+        assertTrue(frame, frame.contains("\"fire\":false"));
+        assertFalse(frame, frame.contains("\"y\""));
+        assertFalse(mInput.hasChanges());
+    }
+
+    private String frame() {
+        StringBuilder out = new StringBuilder();
+        assertTrue(mInput.writeFrame(out));
+        return out.toString();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonReaderTest {
+
+    @Test
+    public void readsWhatTheWriterWrote() {
+        StringBuilder out = new StringBuilder();
+        new JsonWriter(out).beginObject()
+                .name("s").value("text")
+                .name("n").value(-42)
+                .name("d").value(0.5)
+                .name("b").value(true)
+                .name("z").nullValue()
+                .name("a").beginArray().value(1).value(2).endArray()
+                .endObject();
+        assertEquals("{\"s\":\"text\",\"n\":-42,\"d\":0.5,\"b\":true,\"z\":null,\"a\":[1,2]}", out.toString());
+
+        JsonReader reader = new JsonReader(out);
+        reader.beginObject();
+        assertEquals("s", reader.nextName());
+        assertEquals("text", reader.nextString());
+        assertEquals("n", reader.nextName());
+        assertEquals(-42, reader.nextInt());
+        assertEquals("d", reader.nextName());
+        assertEquals(0.5, reader.nextDouble(), 0);
+        assertEquals("b", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("z", reader.nextName());
+        reader.nextNull();
+        assertEquals("a", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextLong());
+        assertEquals(2, reader.nextLong());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.endObject();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void escapesRoundTrip() {
+        String value = "quote\" backslash\\ slash/ \b\f\n\r\t \u0001 \u2028\u2029 caf\u00e9";
+        String json = write(value);
+        assertFalse(json, json.contains("\u2028"));
+        assertEquals(value, new JsonReader(json).nextString());
+        assertEquals("a/b", new JsonReader("\"a\\/b\"").nextString());
+        assertEquals("\u00e9", new JsonReader("\"\\u00E9\"").nextString());
+    }
+
+    @Test
+    public void surrogatePairsRoundTrip() {
+        String value = "dice \ud83c\udfb2";
+        assertEquals(value, new JsonReader(write(value)).nextString());
+        // Escaped one half at a time, as JSON.stringify leaves it for lone halves
+        assertEquals(value, new JsonReader("\"dice \\ud83c\\udfb2\"").nextString());
+    }
+
+    @Test
+    public void longsRoundTripAtTheEdges() {
+        long[] values = {0, -1, 999999999999999999L, 1000000000000000000L, 1234567890123456789L,
+                Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            StringBuilder out = new StringBuilder();
+            new JsonWriter(out).value(value);
+            assertEquals(value, new JsonReader(out).nextLong());
+        }
+        assertEquals(1000, new JsonReader("1e3").nextLong());
+        assertEquals(2, new JsonReader("2.0").nextLong());
+    }
+
+    @Test
+    public void rejectsLongsOutOfRange() {
+        assertMalformedLong("9223372036854775808");
+        assertMalformedLong("-9223372036854775809");
+        assertMalformedLong("12345678901234567890");
+        assertMalformedLong("9.223372036854775807e18");
+        assertMalformedLong("1e19");
+        assertMalformedLong("1.5");
+        assertMalformedLong("-");
+    }
+
+    @Test
+    public void rejectsIntsOutOfRange() {
+        assertEquals(Integer.MIN_VALUE, new JsonReader("-2147483648").nextInt());
+        try {
+            new JsonReader("2147483648").nextInt();
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void skipsAndCapturesRawValues() {
+        JsonReader reader = new JsonReader("{\"skip\":{\"a\":[1,{\"b\":\"}\"}]},\"raw\":[true,null],\"x\":1}");
+        reader.beginObject();
+        reader.nextName();
+        reader.skipValue();
+        assertEquals("raw", reader.nextName());
+        assertEquals("[true,null]", reader.nextRawValue().toString());
+        assertEquals("x", reader.nextName());
+        assertEquals(1, reader.nextInt());
+        reader.endObject();
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] documents = {"", "{", "[1,]x", "{\"a\" 1}", "{\"a\":1,}", "[1 2]", "\"unterminated",
+                "\"bad \\q escape\"", "\"\\u12\"", "\"\\u12g4\"", "tru", "nul", "{1:2}", "1 2", "@"};
+        for (String document : documents) {
+            try {
+                readAll(new JsonReader(document));
+                fail(document);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void readerCanBeReused() {
+        JsonReader reader = new JsonReader();
+        assertEquals("a", reader.reset("\"a\"").nextString());
+        assertEquals(7, reader.reset("7").nextInt());
+    }
+
+    /**
+     * Read every token with the typed methods, so strings and literals are checked, not skipped.
+     */
+    private static void readAll(JsonReader reader) {
+        while (true) {
+            switch (reader.peek()) {
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    break;
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    break;
+                case NAME:
+                    reader.nextName();
+                    break;
+                case STRING:
+                    reader.nextString();
+                    break;
+                case NUMBER:
+                    reader.nextDouble();
+                    break;
+                case BOOLEAN:
+                    reader.nextBoolean();
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    break;
+                case END_DOCUMENT:
+                    return;
+            }
+        }
+    }
+
+    private static String write(String value) {
+        StringBuilder out = new StringBuilder();
+        new JsonWriter(out).value(value);
+        return out.toString();
+    }
+
+    private static void assertMalformedLong(String json) {
+        try {
+            long value = new JsonReader(json).nextLong();
+            fail(json + " read as " + value);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class MediaServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MediaServer mServer;
+    private int mPort;
+    private String mPath;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = mFolder.newFile("clip.mp4");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("0123456789".getBytes(ASCII));
+        } finally {
+            out.close();
+        }
+        mServer = new MediaServer(2);
+        mPort = mServer.start(0);
+        mPath = mServer.publish(new MediaServer.FileSource(file, "video/mp4"), "my clip.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void servesTheWholeFile() throws IOException {
+        assertTrue(mPath, mPath.endsWith("/my%20clip.mp4"));
+        Response response = get(mPath, null);
+        assertEquals(200, response.status);
+        assertEquals("10", response.header("Content-Length"));
+        assertEquals("video/mp4", response.header("Content-Type"));
+        assertEquals("bytes", response.header("Accept-Ranges"));
+        assertEquals("0123456789", response.body);
+    }
+
+    @Test
+    public void servesByteRanges() throws IOException {
+        Response response = get(mPath, "bytes=2-5");
+        assertEquals(206, response.status);
+        assertEquals("bytes 2-5/10", response.header("Content-Range"));
+        assertEquals("2345", response.body);
+
+        response = get(mPath, "bytes=7-");
+        assertEquals(206, response.status);
+        assertEquals("bytes 7-9/10", response.header("Content-Range"));
+        assertEquals("789", response.body);
+
+        // Past the end is clipped to it
+        assertEquals("89", get(mPath, "bytes=8-100").body);
+    }
+
+    @Test
+    public void servesSuffixRanges() throws IOException {
+        Response response = get(mPath, "bytes=-3");
+        assertEquals(206, response.status);
+        assertEquals("bytes 7-9/10", response.header("Content-Range"));
+        assertEquals("789", response.body);
+
+        response = get(mPath, "bytes=-50");
+        assertEquals("bytes 0-9/10", response.header("Content-Range"));
+        assertEquals("0123456789", response.body);
+    }
+
+    @Test
+    public void refusesRangesPastTheEnd() throws IOException {
+        Response response = get(mPath, "bytes=10-");
+        assertEquals(416, response.status);
+        assertEquals("bytes */10", response.header("Content-Range"));
+        assertEquals("", response.body);
+        assertEquals(416, get(mPath, "bytes=-0").status);
+    }
+
+    @Test
+    public void ignoresRangesItDoesNotServe() throws IOException {
+        Response response = get(mPath, "bytes=0-1,4-5");
+        assertEquals(200, response.status);
+        assertEquals("0123456789", response.body);
+        assertEquals(200, get(mPath, "bytes=5-2").status);
+        assertEquals(200, get(mPath, "items=0-1").status);
+    }
+
+    @Test
+    public void headSendsHeadersOnly() throws IOException {
+        Response response = request("HEAD " + mPath + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertEquals(200, response.status);
+        assertEquals("10", response.header("Content-Length"));
+        assertEquals("", response.body);
+    }
+
+    @Test
+    public void needsTheToken() throws IOException {
+        String guessed = "/0000000000000000/my%20clip.mp4";
+        assertEquals(404, get(guessed, null).status);
+        assertEquals(404, get("/", null).status);
+        assertEquals(404, get("my%20clip.mp4", null).status);
+        mServer.unpublish(mPath);
+        assertEquals(404, get(mPath, null).status);
+    }
+
+    @Test
+    public void unpublishAllForgetsEverything() throws IOException {
+        mServer.unpublishAll();
+        assertEquals(404, get(mPath, null).status);
+    }
+
+    @Test
+    public void onlyGetAndHeadAreAllowed() throws IOException {
+        assertEquals(405, request("POST " + mPath + " HTTP/1.1\r\nConnection: close\r\n\r\n").status);
+        assertEquals(400, request("GET\r\n\r\n").status);
+    }
+
+    @Test
+    public void keepsConnectionsAlive() throws IOException {
+        Socket socket = connect(InetAddress.getLoopbackAddress());
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET " + mPath + " HTTP/1.1\r\nRange: bytes=0-1\r\n\r\n").getBytes(ASCII));
+            Response first = Response.read(in, true);
+            assertEquals("keep-alive", first.header("Connection"));
+            assertEquals("01", first.body);
+            out.write(("GET " + mPath + " HTTP/1.1\r\nRange: bytes=2-3\r\n\r\n").getBytes(ASCII));
+            assertEquals("23", Response.read(in, true).body);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void refusesAddressesOtherThanTheAllowedOne() throws IOException {
+        InetAddress local = siteAddress();
+        assumeNotNull(local);
+        Socket socket = connect(local);
+        try {
+            socket.getOutputStream().write(("GET " + mPath + " HTTP/1.1\r\n\r\n").getBytes(ASCII));
+            // Closed unanswered
+            assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException e) {
+            // Reset rather than closed, just as unanswered
+        } finally {
+            socket.close();
+        }
+
+        mServer.setAllowedAddress(local);
+        socket = connect(local);
+        try {
+            socket.getOutputStream().write(("GET " + mPath + " HTTP/1.1\r\nConnection: close\r\n\r\n")
+                    .getBytes(ASCII));
+            assertEquals("0123456789", Response.read(socket.getInputStream(), false).body);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void parsesRanges() {
+        assertArrayEquals(new long[] {0, 9}, MediaServer.parseRange("bytes=0-", 10));
+        assertArrayEquals(new long[] {3, 9}, MediaServer.parseRange("bytes= 3-", 10));
+        assertArrayEquals(new long[] {0, 0}, MediaServer.parseRange("bytes=-1", 1));
+        assertNull(MediaServer.parseRange(null, 10));
+        assertNull(MediaServer.parseRange("bytes=", 10));
+        assertNull(MediaServer.parseRange("bytes=x-y", 10));
+        assertNull(MediaServer.parseRange("bytes=4", 10));
+        assertEquals(0, MediaServer.parseRange("bytes=0-", 0).length);
+    }
+
+    private Response get(String path, String range) throws IOException {
+        return request("GET " + path + " HTTP/1.1\r\n"
+                + (range != null ? "Range: " + range + "\r\n" : "")
+                + "Connection: close\r\n\r\n");
+    }
+
+    private Response request(String request) throws IOException {
+        Socket socket = connect(InetAddress.getLoopbackAddress());
+        try {
+            socket.getOutputStream().write(request.getBytes(ASCII));
+            return Response.read(socket.getInputStream(), false);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect(InetAddress address) throws IOException {
+        Socket socket = new Socket();
+        socket.setSoTimeout(5000);
+        socket.connect(new InetSocketAddress(address, mPort), 5000);
+        return socket;
+    }
+
+    /**
+     * An address of this machine that isn't the loopback, or null if it has none.
+     */
+    private static InetAddress siteAddress() throws IOException {
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nif.isUp() || nif.isLoopback()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(nif.getInetAddresses())) {
+                if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
+                    return address;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class Response {
+
+        int status;
+        String headers;
+        String body;
+
+        String header(String name) {
+            for (String line : headers.split("\r\n")) {
+                if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @param sized read just Content-Length bytes of body, else up to the end of the stream.
+         */
+        static Response read(InputStream in, boolean sized) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("Connection closed in the headers");
+                }
+                head.write(b);
+                matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            Response response = new Response();
+            response.headers = new String(head.toByteArray(), ASCII);
+            response.status = Integer.parseInt(response.headers.substring(9, 12));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int length = sized ? Integer.parseInt(response.header("Content-Length")) : Integer.MAX_VALUE;
+            while (body.size() < length) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                body.write(b);
+            }
+            response.body = new String(body.toByteArray(), ASCII);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.manotaurgames.castro.fake.ManualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessagePipelineTest {
+
+    private static final long LATENCY_MS = 10;
+    private static final int NETWORK_ERROR = 7;
+
+    private ManualScheduler mScheduler;
+    private RecordingSender mSender;
+    private final List<String> mDropped = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mSender = new RecordingSender();
+    }
+
+    @Test
+    public void sendsInOrderWithinInFlightCap() {
+        MessagePipeline pipeline = builder().setMaxInFlight(2).build();
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        pipeline.send("b");
+        pipeline.send("c");
+        mScheduler.runPending();
+        assertEquals(Arrays.asList("a", "b"), mSender.frames);
+        assertEquals(2, pipeline.getInFlightCount());
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("a", "b", "c"), mSender.frames);
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void batchesMessagesQueuedWithinFlushDelay() {
+        MessagePipeline pipeline = builder().setBatching(1000, 20).build();
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        pipeline.send("b\"");
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("[\"a\",\"b\\\"\"]"), mSender.frames);
+    }
+
+    @Test
+    public void framesAreLimitedInUtf8Bytes() {
+        MessagePipeline pipeline = builder().setBatching(20, 20).build();
+        pipeline.attach(mSender);
+        // Six chars, twelve bytes, fourteen quoted: two of them don't fit in 20 bytes
+        pipeline.send("\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9");
+        pipeline.send("\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9");
+        mScheduler.advance(100);
+        assertEquals(2, mSender.frames.size());
+    }
+
+    @Test
+    public void oversizeFirstMessageGoesOutUnbatched() {
+        MessagePipeline pipeline = builder().setBatching(8, 20).build();
+        pipeline.attach(mSender);
+        pipeline.send("much too long");
+        pipeline.send("a");
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("much too long", "[\"a\"]"), mSender.frames);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesMessagesOverTheByteLimit() {
+        char[] chars = new char[MessagePipeline.MAX_MESSAGE_LENGTH / 2 + 1];
+        Arrays.fill(chars, '\u00e9');
+        builder().build().send(new String(chars));
+    }
+
+    @Test
+    public void countsUtf8Bytes() {
+        assertEquals(3, MessagePipeline.utf8Length("abc", 0, 3));
+        assertEquals(2, MessagePipeline.utf8Length("\u00e9", 0, 1));
+        assertEquals(3, MessagePipeline.utf8Length("\u20ac", 0, 1));
+        assertEquals(4, MessagePipeline.utf8Length("\ud83d\ude00", 0, 2));
+    }
+
+    @Test
+    public void realtimeGoesAheadOfQueuedTraffic() {
+        MessagePipeline pipeline = builder().build();
+        pipeline.send("normal");
+        pipeline.send("bulk", MessagePipeline.Priority.BULK);
+        pipeline.send("input", MessagePipeline.Priority.REALTIME);
+        pipeline.attach(mSender);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("input", "normal", "bulk"), mSender.frames);
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(2).build();
+        assertTrue(pipeline.send("a"));
+        assertTrue(pipeline.send("b"));
+        assertTrue(pipeline.send("c"));
+        mScheduler.runPending();
+        assertEquals(Arrays.asList("a"), mDropped);
+        pipeline.attach(mSender);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("b", "c"), mSender.frames);
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(1)
+                .setBackpressure(MessagePipeline.Backpressure.REJECT).build();
+        assertTrue(pipeline.send("a"));
+        assertFalse(pipeline.send("b"));
+        assertEquals(1, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void keyedMessageReplacesQueuedOne() {
+        MessagePipeline pipeline = builder().build();
+        pipeline.send("x=1", MessagePipeline.Priority.NORMAL, "x");
+        pipeline.send("x=2", MessagePipeline.Priority.NORMAL, "x");
+        pipeline.attach(mSender);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("x=2"), mSender.frames);
+    }
+
+    @Test
+    public void bulkSentWhileRealtimeIdleRunsUpNoDebt() {
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(300).setMaxInFlight(1)
+                .setBulkRateLimit(1000, 100).build();
+        pipeline.attach(mSender);
+        char[] chars = new char[500];
+        Arrays.fill(chars, 'x');
+        String chunk = new String(chars);
+        for (int i = 0; i < 300; i++) {
+            pipeline.send(chunk, MessagePipeline.Priority.BULK);
+        }
+        mScheduler.advance(10000);
+        assertEquals(300, mSender.frames.size());
+
+        // Steady input holds bulk to the rate limit, which still lets one more chunk through within a second
+        for (int i = 0; i < 20; i++) {
+            pipeline.send("input", MessagePipeline.Priority.REALTIME);
+            if (i == 0) {
+                pipeline.send("late", MessagePipeline.Priority.BULK);
+            }
+            mScheduler.advance(50);
+        }
+        assertTrue(mSender.frames.contains("late"));
+    }
+
+    @Test
+    public void replaysFramesLostWithTheConnectionInOrder() {
+        MessagePipeline pipeline = builder().setMaxInFlight(2).setJournal(0).build();
+        mSender.hold = true;
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        pipeline.send("b");
+        pipeline.send("c");
+        mScheduler.runPending();
+        assertEquals(Arrays.asList("a", "b"), mSender.frames);
+
+        mSender.dropConnection();
+        pipeline.send("d");
+        mScheduler.runPending();
+        RecordingSender next = new RecordingSender();
+        pipeline.attach(next);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), next.frames);
+        assertTrue(mDropped.isEmpty());
+    }
+
+    @Test
+    public void withoutJournalLostFramesAreGone() {
+        MessagePipeline pipeline = builder().build();
+        mSender.hold = true;
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        mScheduler.runPending();
+        mSender.dropConnection();
+        pipeline.send("b");
+        RecordingSender next = new RecordingSender();
+        pipeline.attach(next);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("b"), next.frames);
+    }
+
+    @Test
+    public void dropsJournaledMessagesOlderThanTheTtl() {
+        MessagePipeline pipeline = builder().setJournal(100).build();
+        pipeline.send("old");
+        mScheduler.advance(150);
+        pipeline.send("new");
+        pipeline.attach(mSender);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("new"), mSender.frames);
+        assertEquals(Arrays.asList("old"), mDropped);
+    }
+
+    @Test
+    public void replayDoesNotResendSupersededMessages() {
+        MessagePipeline pipeline = builder().setMaxInFlight(1).setJournal(0).build();
+        mSender.hold = true;
+        pipeline.attach(mSender);
+        pipeline.send("x=1", MessagePipeline.Priority.NORMAL, "x");
+        pipeline.send("y=1", MessagePipeline.Priority.NORMAL, "y");
+        mScheduler.runPending();
+        assertEquals(Arrays.asList("x=1"), mSender.frames);
+        // x=1 is in flight, y=1 still queued
+        pipeline.send("x=2", MessagePipeline.Priority.NORMAL, "x");
+        pipeline.send("y=2", MessagePipeline.Priority.NORMAL, "y");
+
+        mSender.dropConnection();
+        RecordingSender next = new RecordingSender();
+        pipeline.attach(next);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("x=2", "y=2"), next.frames);
+    }
+
+    @Test
+    public void replayOverCapacityReportsWhatItDrops() {
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(2).setMaxInFlight(2).setJournal(0).build();
+        mSender.hold = true;
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        pipeline.send("b");
+        mScheduler.runPending();
+        pipeline.send("c");
+        pipeline.send("d");
+
+        mSender.dropConnection();
+        mScheduler.runPending();
+        assertEquals(Arrays.asList("a", "b"), mDropped);
+        RecordingSender next = new RecordingSender();
+        pipeline.attach(next);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("c", "d"), next.frames);
+    }
+
+    @Test
+    public void replayOverCapacityKeepsEverythingUnderReject() {
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(2).setMaxInFlight(2).setJournal(0)
+                .setBackpressure(MessagePipeline.Backpressure.REJECT).build();
+        mSender.hold = true;
+        pipeline.attach(mSender);
+        pipeline.send("a");
+        pipeline.send("b");
+        mScheduler.runPending();
+        pipeline.send("c");
+        pipeline.send("d");
+
+        mSender.dropConnection();
+        mScheduler.runPending();
+        assertTrue(mDropped.isEmpty());
+        assertFalse(pipeline.send("e"));
+        RecordingSender next = new RecordingSender();
+        pipeline.attach(next);
+        mScheduler.advance(100);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), next.frames);
+    }
+
+    @Test
+    public void realtimeStaysFastDuringBulkUpload() {
+        long withLanes = inputLatencyDuringUpload(true);
+        long singleQueue = inputLatencyDuringUpload(false);
+        assertTrue("p95 " + withLanes + "ms with lanes", withLanes < 50);
+        assertTrue("p95 " + singleQueue + "ms through one queue", singleQueue > 500);
+    }
+
+    /**
+     * Send 60fps input for three seconds while a 4M char upload is queued, over a link whose send
+     * time grows with frame size.
+     * @return the 95th percentile of input latency, from send() to the frame's result, in ms.
+     */
+    private long inputLatencyDuringUpload(boolean lanes) {
+        final Map<String, Long> queuedAt = new HashMap<>();
+        final LatencyHistogram input = new LatencyHistogram();
+        MessagePipeline pipeline = builder().setMaxQueuedMessages(256).build();
+        pipeline.attach(new MessageSender() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendMessage(String namespace, final String message, final Callback callback) {
+                mScheduler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        Long sentAt = queuedAt.remove(message);
+                        if (sentAt != null) {
+                            input.record(mScheduler.now() - sentAt);
+                        }
+                        callback.onResult(MessagePipeline.STATUS_SUCCESS);
+                    }
+                }, 5 + message.length() / 1000);
+            }
+        });
+        char[] chars = new char[40000];
+        Arrays.fill(chars, 'x');
+        String chunk = new String(chars);
+        for (int i = 0; i < 100; i++) {
+            pipeline.send(chunk, lanes ? MessagePipeline.Priority.BULK : MessagePipeline.Priority.NORMAL);
+        }
+        for (int t = 0; t < 3000; t += 16) {
+            String message = "{\"x\":" + t + "}";
+            queuedAt.put(message, mScheduler.now());
+            pipeline.send(message, lanes ? MessagePipeline.Priority.REALTIME : MessagePipeline.Priority.NORMAL);
+            mScheduler.advance(16);
+        }
+        mScheduler.runAll(100000);
+        assertTrue(queuedAt.isEmpty());
+        return input.getPercentile(95);
+    }
+
+    private MessagePipeline.Builder builder() {
+        return new MessagePipeline.Builder("urn:x-cast:test", mScheduler)
+                .setListener(new MessagePipeline.Listener() {
+                    @Override
+                    public void onBackpressure(boolean congested) {
+                    }
+
+                    @Override
+                    public void onMessageDropped(String message) {
+                        mDropped.add(message);
+                    }
+
+                    @Override
+                    public void onSendFailed(String frame, int statusCode) {
+                    }
+                });
+    }
+
+    /**
+     * Accepts every frame and confirms it after a short delay, or holds the confirmations until the
+     * connection is dropped.
+     */
+    private final class RecordingSender implements MessageSender {
+
+        final List<String> frames = new ArrayList<>();
+        final List<Callback> held = new ArrayList<>();
+        boolean connected = true;
+        boolean hold;
+
+        void dropConnection() {
+            connected = false;
+            for (Callback callback : held) {
+                callback.onResult(NETWORK_ERROR);
+            }
+            held.clear();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void sendMessage(String namespace, String message, final Callback callback) {
+            frames.add(message);
+            if (hold) {
+                held.add(callback);
+                return;
+            }
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(MessagePipeline.STATUS_SUCCESS);
+                }
+            }, LATENCY_MS);
+        }
+    }
+}
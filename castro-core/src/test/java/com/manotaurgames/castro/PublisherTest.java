@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PublisherTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final QueuedExecutor mExecutor = new QueuedExecutor();
+
+    @Test
+    public void bufferKeepsTheNewestUpToCapacity() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        Recorder<Integer> recorder = new Recorder<>();
+        Publisher.Subscription subscription =
+                publisher.subscribe(recorder, mExecutor, Publisher.Backpressure.BUFFER, 2);
+        publisher.publish(1);
+        publisher.publish(2);
+        publisher.publish(3);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(2, 3), recorder.values);
+        assertEquals(1, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void latestKeepsOnlyTheNewest() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        Recorder<Integer> recorder = new Recorder<>();
+        Publisher.Subscription subscription =
+                publisher.subscribe(recorder, mExecutor, Publisher.Backpressure.LATEST, 8);
+        publisher.publish(1);
+        publisher.publish(2);
+        publisher.publish(3);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(3), recorder.values);
+        assertEquals(2, subscription.getDroppedCount());
+
+        publisher.publish(4);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(3, 4), recorder.values);
+    }
+
+    @Test
+    public void slowSubscriberOnlyLosesItsOwnValues() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        Recorder<Integer> slow = new Recorder<>();
+        Recorder<Integer> fast = new Recorder<>();
+        publisher.subscribe(slow, mExecutor, Publisher.Backpressure.BUFFER, 1);
+        publisher.subscribe(fast, DIRECT);
+        publisher.publish(1);
+        publisher.publish(2);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(2), slow.values);
+        assertEquals(Arrays.asList(1, 2), fast.values);
+    }
+
+    @Test
+    public void replayHandsTheLatestToNewSubscribers() {
+        Publisher<String> publisher = new Publisher<>(true);
+        assertNull(publisher.getLatest());
+        Recorder<String> early = new Recorder<>();
+        publisher.subscribe(early, DIRECT);
+        assertTrue(early.values.isEmpty());
+        publisher.publish("a");
+        publisher.publish("b");
+
+        Recorder<String> late = new Recorder<>();
+        publisher.subscribe(late, DIRECT);
+        assertEquals(Arrays.asList("b"), late.values);
+        assertEquals(Arrays.asList("a", "b"), early.values);
+        assertEquals("b", publisher.getLatest());
+    }
+
+    @Test
+    public void withoutReplayNewSubscribersWait() {
+        Publisher<String> publisher = new Publisher<>(false);
+        publisher.publish("a");
+        Recorder<String> late = new Recorder<>();
+        publisher.subscribe(late, DIRECT);
+        assertTrue(late.values.isEmpty());
+        assertNull(publisher.getLatest());
+    }
+
+    @Test
+    public void cancellingDropsWhatIsQueued() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        Recorder<Integer> recorder = new Recorder<>();
+        Publisher.Subscription subscription = publisher.subscribe(recorder, mExecutor);
+        publisher.publish(1);
+        subscription.cancel();
+        publisher.publish(2);
+        mExecutor.runAll();
+        assertTrue(recorder.values.isEmpty());
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void subscriberCanCancelItselfDuringDelivery() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        final List<Integer> values = new ArrayList<>();
+        final Publisher.Subscription[] self = new Publisher.Subscription[1];
+        self[0] = publisher.subscribe(new Publisher.Subscriber<Integer>() {
+            @Override
+            public void onNext(Integer value) {
+                values.add(value);
+                self[0].cancel();
+            }
+        }, mExecutor);
+        publisher.publish(1);
+        publisher.publish(2);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(1), values);
+    }
+
+    @Test
+    public void subscribersChangedDuringPublishSeeTheListAsItWas() {
+        final Publisher<Integer> publisher = new Publisher<>(false);
+        final Recorder<Integer> cancelled = new Recorder<>();
+        final Recorder<Integer> added = new Recorder<>();
+        final Publisher.Subscription[] toCancel = new Publisher.Subscription[1];
+        publisher.subscribe(new Publisher.Subscriber<Integer>() {
+            @Override
+            public void onNext(Integer value) {
+                if (value == 1) {
+                    toCancel[0].cancel();
+                    publisher.subscribe(added, DIRECT);
+                }
+            }
+        }, DIRECT);
+        toCancel[0] = publisher.subscribe(cancelled, DIRECT);
+        publisher.publish(1);
+        publisher.publish(2);
+        assertTrue(cancelled.values.isEmpty());
+        assertEquals(Arrays.asList(2), added.values);
+        assertEquals(2, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void failingSubscriberKeepsItsQueueMoving() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        final List<Integer> values = new ArrayList<>();
+        publisher.subscribe(new Publisher.Subscriber<Integer>() {
+            @Override
+            public void onNext(Integer value) {
+                values.add(value);
+                if (value == 1) {
+                    throw new IllegalStateException("boom");
+                }
+            }
+        }, mExecutor);
+        publisher.publish(1);
+        publisher.publish(2);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(1, 2), values);
+    }
+
+    @Test
+    public void rejectedDeliveryIsRetriedOnTheNextPublish() {
+        Publisher<Integer> publisher = new Publisher<>(false);
+        Recorder<Integer> recorder = new Recorder<>();
+        mExecutor.reject = true;
+        publisher.subscribe(recorder, mExecutor);
+        publisher.publish(1);
+        mExecutor.reject = false;
+        publisher.publish(2);
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(1, 2), recorder.values);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesZeroCapacity() {
+        new Publisher<Integer>(false).subscribe(new Recorder<Integer>(), DIRECT, Publisher.Backpressure.BUFFER, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void refusesNull() {
+        new Publisher<Integer>(false).publish(null);
+    }
+
+    private static final class Recorder<T> implements Publisher.Subscriber<T> {
+
+        final List<T> values = Collections.synchronizedList(new ArrayList<T>());
+
+        @Override
+        public void onNext(T value) {
+            values.add(value);
+        }
+    }
+
+    /**
+     * Runs deliveries when the test says so.
+     */
+    private static final class QueuedExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+        boolean reject;
+
+        @Override
+        public void execute(Runnable command) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import com.manotaurgames.castro.fake.FakeReceiver;
+import com.manotaurgames.castro.fake.ManualScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionEngineTest {
+
+    private static final long LATENCY_MS = 20;
+
+    private ManualScheduler mScheduler;
+    private FakeReceiver mReceiver;
+    private SessionEngine mEngine;
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mScheduler = new ManualScheduler();
+        mReceiver = new FakeReceiver(mScheduler).setLatency(LATENCY_MS);
+        mEngine = new SessionEngine("APP", mReceiver, mScheduler, new RecordingListener(mEvents));
+    }
+
+    @Test
+    public void selectLaunchesAndConnects() {
+        mEngine.select("route", "device", null);
+        assertEquals(ConnectionState.CONNECTING, mEngine.getStateMachine().getState());
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        assertEquals("fake-session-1", mEngine.getSessionId());
+        assertEquals("[started fake-session-1, connect false]", mEvents.toString());
+        assertTrue(mEngine.getConnectedConnection() != null);
+    }
+
+    @Test
+    public void reconnectsAfterDroppedConnection() {
+        connect();
+        mReceiver.dropConnection(FakeReceiver.NETWORK_ERROR);
+        assertEquals(ConnectionState.SUSPENDED, mEngine.getStateMachine().getState());
+        assertNull(mEngine.getConnectedConnection());
+        mScheduler.advance(10000);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        assertEquals("fake-session-1", mEngine.getSessionId());
+        assertTrue(mEvents.toString(), mEvents.contains("reconnected 1"));
+        assertEquals("connect true", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void retriedFirstConnectIsNotAReconnect() {
+        mReceiver.failNextConnects(1, FakeReceiver.NETWORK_ERROR);
+        mEngine.select("route", "device", null);
+        mScheduler.advance(10000);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        assertEquals(1, count("connect false"));
+        assertEquals(0, count("connect true"));
+    }
+
+    @Test
+    public void noPolicyLeavesSuspensionToPlayServices() {
+        mEngine.setReconnectPolicy(ReconnectPolicy.NONE);
+        connect();
+        mReceiver.dropConnection(FakeReceiver.NETWORK_ERROR);
+        mScheduler.advance(60000);
+        assertEquals(ConnectionState.SUSPENDED, mEngine.getStateMachine().getState());
+        assertEquals("[]", mEvents.toString());
+    }
+
+    @Test
+    public void abandonsWhenPolicyRunsOut() {
+        mEngine.setReconnectPolicy(new ReconnectPolicy.Builder().setMaxAttempts(2).build());
+        connect();
+        mReceiver.failNextConnects(10, FakeReceiver.NETWORK_ERROR);
+        mReceiver.dropConnection(FakeReceiver.NETWORK_ERROR);
+        mScheduler.advance(60000);
+        assertEquals(ConnectionState.IDLE, mEngine.getStateMachine().getState());
+        assertTrue(mEvents.toString(), mEvents.contains("abandoned 2"));
+        assertTrue(mEvents.toString(), mEvents.contains("teardown false"));
+    }
+
+    @Test
+    public void stoppedApplicationEndsSession() {
+        connect();
+        mReceiver.stopApplication();
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.IDLE, mEngine.getStateMachine().getState());
+        assertTrue(mEvents.toString(), mEvents.contains("disconnect"));
+    }
+
+    @Test
+    public void teardownReturnsToIdle() {
+        connect();
+        mEngine.teardown(true);
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.IDLE, mEngine.getStateMachine().getState());
+        assertEquals("[disconnect, forgotten, teardown true]", mEvents.toString());
+        assertNull(mReceiver.getRunningSessionId());
+    }
+
+    @Test
+    public void selectingAnotherDeviceIgnoresTheOldClient() {
+        mEngine.select("route", "device", null);
+        mEngine.select("other-route", "other-device", null);
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        assertEquals("other-device", mEngine.getDeviceId());
+        assertEquals(2, mReceiver.getOpenCount());
+        assertEquals(1, count("connect false"));
+    }
+
+    private void connect() {
+        mEngine.select("route", "device", null);
+        mScheduler.advance(100);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getStateMachine().getState());
+        mEvents.clear();
+    }
+
+    private int count(String event) {
+        int count = 0;
+        for (String e : mEvents) {
+            if (e.equals(event)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes each callback down as a short string.
+     */
+    static final class RecordingListener implements SessionEngine.Listener {
+
+        private final List<String> mEvents;
+
+        RecordingListener(List<String> events) {
+            mEvents = events;
+        }
+
+        @Override
+        public void onConnect(boolean isReconnect) {
+            mEvents.add("connect " + isReconnect);
+        }
+
+        @Override
+        public void onDisconnect() {
+            mEvents.add("disconnect");
+        }
+
+        @Override
+        public void onSessionStarted(String routeId, String deviceId, String sessionId) {
+            mEvents.add("started " + sessionId);
+        }
+
+        @Override
+        public void onSessionForgotten() {
+            mEvents.add("forgotten");
+        }
+
+        @Override
+        public void onTeardown(boolean selectDefaultRoute) {
+            mEvents.add("teardown " + selectDefaultRoute);
+        }
+
+        @Override
+        public void onReconnectScheduled(int attempt, long delayMs, int errorCode) {
+            mEvents.add("scheduled " + attempt);
+        }
+
+        @Override
+        public void onReconnected(int attempts, long elapsedMs) {
+            mEvents.add("reconnected " + attempts);
+        }
+
+        @Override
+        public void onReconnectAbandoned(int attempts, long elapsedMs, int errorCode) {
+            mEvents.add("abandoned " + attempts);
+        }
+    }
+}
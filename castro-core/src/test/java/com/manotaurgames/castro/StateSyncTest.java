@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateSyncTest {
+
+    private final StateSync mState = new StateSync();
+
+    @Test
+    public void snapshotThenOnlyWhatChanged() {
+        mState.set("phase", "lobby");
+        mState.set("round", 1);
+        mState.set("speed", 1.5);
+        mState.set("open", true);
+        assertEquals("{\"sync\":\"snapshot\",\"v\":1,\"state\":"
+                + "{\"phase\":\"lobby\",\"round\":1,\"speed\":1.5,\"open\":true}}", snapshot());
+        assertFalse(mState.hasChanges());
+
+        mState.set("round", 2);
+        mState.set("phase", "lobby");
+        mState.set("open", true);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"round\":2}}", delta());
+        assertEquals(2, mState.getVersion());
+    }
+
+    @Test
+    public void noDeltaWithoutChanges() {
+        mState.set("round", 1);
+        snapshot();
+        mState.set("round", 1);
+        assertFalse(mState.writeDelta(new StringBuilder()));
+        assertEquals(1, mState.getVersion());
+    }
+
+    @Test
+    public void valueChangedAndBackWithinAFrameStillGoesOut() {
+        mState.set("round", 1);
+        snapshot();
+        mState.set("round", 2);
+        mState.set("round", 1);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"round\":1}}", delta());
+    }
+
+    @Test
+    public void removingASentFieldSendsADel() {
+        mState.set("bonus", 10);
+        mState.set("round", 1);
+        snapshot();
+        mState.remove("bonus");
+        mState.set("round", 2);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"round\":2},\"del\":[\"bonus\"]}", delta());
+        mState.remove("bonus");
+        assertFalse(mState.hasChanges());
+    }
+
+    @Test
+    public void removingAnUnsentFieldSendsNothing() {
+        snapshot();
+        mState.set("bonus", 10);
+        mState.remove("bonus");
+        assertFalse(mState.hasChanges());
+        // Nor when it comes back
+        mState.set("bonus", 5);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"bonus\":5}}", delta());
+    }
+
+    @Test
+    public void removeThenAddInOneFrameIsASetNotADel() {
+        mState.set("bonus", 10);
+        snapshot();
+        mState.remove("bonus");
+        mState.set("bonus", 10);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"bonus\":10}}", delta());
+
+        // Still known to the receiver, so removing it again needs a del
+        mState.remove("bonus");
+        assertEquals("{\"sync\":\"delta\",\"v\":3,\"del\":[\"bonus\"]}", delta());
+    }
+
+    @Test
+    public void settingNullRemoves() {
+        mState.set("name", "ada");
+        snapshot();
+        mState.set("name", (String) null);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"del\":[\"name\"]}", delta());
+    }
+
+    @Test
+    public void typeChangeIsAlwaysAChange() {
+        mState.set("score", 0);
+        snapshot();
+        // Same bits as the long 0
+        mState.set("score", 0.0);
+        assertEquals("{\"sync\":\"delta\",\"v\":2,\"set\":{\"score\":0}}", delta());
+        mState.set("score", "0");
+        assertEquals("{\"sync\":\"delta\",\"v\":3,\"set\":{\"score\":\"0\"}}", delta());
+        mState.set("score", false);
+        assertEquals("{\"sync\":\"delta\",\"v\":4,\"set\":{\"score\":false}}", delta());
+        mState.set("score", false);
+        assertFalse(mState.hasChanges());
+    }
+
+    @Test
+    public void snapshotDropsPendingChanges() {
+        mState.set("a", 1);
+        mState.set("b", 1);
+        snapshot();
+        mState.set("a", 2);
+        mState.remove("b");
+        assertEquals("{\"sync\":\"snapshot\",\"v\":2,\"state\":{\"a\":2}}", snapshot());
+        assertFalse(mState.hasChanges());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNaN() {
+        mState.set("x", Double.NaN);
+    }
+
+    @Test
+    public void recognizesResyncRequests() {
+        assertTrue(isResync("{\"sync\":\"resync\",\"v\":7}"));
+        assertTrue(isResync("{\"v\":7,\"extra\":{\"sync\":\"no\"},\"sync\":\"resync\"}"));
+        assertFalse(isResync("{\"sync\":\"snapshot\",\"v\":7}"));
+        assertFalse(isResync("{\"sync\":1}"));
+        assertFalse(isResync("{\"v\":7}"));
+        assertFalse(isResync("[\"resync\"]"));
+        assertFalse(isResync("\"resync\""));
+    }
+
+    private String snapshot() {
+        StringBuilder out = new StringBuilder();
+        mState.writeSnapshot(out);
+        return out.toString();
+    }
+
+    private String delta() {
+        StringBuilder out = new StringBuilder();
+        assertTrue(mState.writeDelta(out));
+        return out.toString();
+    }
+
+    private static boolean isResync(String message) {
+        return StateSync.isResyncRequest(new JsonReader(message));
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.fake;
+
+import com.manotaurgames.castro.MessageSender;
+import com.manotaurgames.castro.ReceiverConnection;
+import com.manotaurgames.castro.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pretend cast device with one receiver app, for driving {@link com.manotaurgames.castro.SessionEngine}
+ * and {@link com.manotaurgames.castro.MessagePipeline} without Play services.
+ *
+ * Every answer comes back through the {@link Scheduler} after the configured latency. Failures are
+ * injected by hand: failed connects, dropped connections, a stopped app, or failing sends.
+ */
+public final class FakeReceiver implements ReceiverConnection.Factory {
+
+    /**
+     * Values of the ConnectionResult and CastStatusCodes constants the fake reports.
+     */
+    public static final int STATUS_SUCCESS = 0;
+    public static final int NETWORK_ERROR = 7;
+    public static final int INTERNAL_ERROR = 8;
+    public static final int TIMEOUT = 15;
+    public static final int APPLICATION_NOT_RUNNING = 2005;
+
+    /**
+     * Sees every message that arrives at the receiver.
+     */
+    public interface MessageHandler {
+        void onMessage(FakeReceiver receiver, String namespace, String message);
+    }
+
+    private final Scheduler mScheduler;
+    private final List<String> mReceived = new ArrayList<>();
+
+    private long mLatencyMs;
+    private int mFailConnects;
+    private int mConnectErrorCode = NETWORK_ERROR;
+    private int mLaunchStatusCode = STATUS_SUCCESS;
+    private int mSendStatusCode = STATUS_SUCCESS;
+    private MessageHandler mHandler;
+
+    private String mRunningSessionId;
+    private int mSessionCount;
+    private int mOpenCount;
+    private Connection mConnection;
+
+    public FakeReceiver(Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Delay of every callback: connects, launches and send results.
+     */
+    public FakeReceiver setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * Fail the next count connect attempts with errorCode.
+     */
+    public FakeReceiver failNextConnects(int count, int errorCode) {
+        mFailConnects = count;
+        mConnectErrorCode = errorCode;
+        return this;
+    }
+
+    /**
+     * @param statusCode what launching or joining the app answers, STATUS_SUCCESS to let it through.
+     */
+    public FakeReceiver setLaunchStatus(int statusCode) {
+        mLaunchStatusCode = statusCode;
+        return this;
+    }
+
+    /**
+     * @param statusCode what every send answers, STATUS_SUCCESS to deliver.
+     */
+    public FakeReceiver setSendStatus(int statusCode) {
+        mSendStatusCode = statusCode;
+        return this;
+    }
+
+    public FakeReceiver setMessageHandler(MessageHandler handler) {
+        mHandler = handler;
+        return this;
+    }
+
+    /**
+     * @return the session id of the running app, or null.
+     */
+    public String getRunningSessionId() {
+        return mRunningSessionId;
+    }
+
+    /**
+     * @return how many connections have been opened to this device.
+     */
+    public int getOpenCount() {
+        return mOpenCount;
+    }
+
+    /**
+     * @return every message delivered so far, oldest first.
+     */
+    public List<String> getReceivedMessages() {
+        return mReceived;
+    }
+
+    /**
+     * @return the live connection as a sender, or null.
+     */
+    public MessageSender getSender() {
+        return mConnection;
+    }
+
+    /**
+     * Lose the connection the way a flaky network does. The app keeps running.
+     */
+    public void dropConnection(int errorCode) {
+        Connection connection = mConnection;
+        if (connection == null || !connection.mConnected) {
+            return;
+        }
+        connection.mConnected = false;
+        connection.mCallbacks.onConnectionSuspended(errorCode);
+    }
+
+    /**
+     * Stop the receiver app, as if another sender or the user did.
+     */
+    public void stopApplication() {
+        mRunningSessionId = null;
+        Connection connection = mConnection;
+        if (connection != null && connection.mConnected && connection.mAppConnected) {
+            connection.mAppConnected = false;
+            connection.mCallbacks.onApplicationDisconnected(STATUS_SUCCESS);
+        }
+    }
+
+    @Override
+    public ReceiverConnection open(String routeId, String deviceId, ReceiverConnection.Callbacks callbacks) {
+        mOpenCount++;
+        mConnection = new Connection(callbacks);
+        return mConnection;
+    }
+
+    private void later(Runnable task) {
+        if (mLatencyMs > 0) {
+            mScheduler.postDelayed(task, mLatencyMs);
+        } else {
+            mScheduler.post(task);
+        }
+    }
+
+    private final class Connection implements ReceiverConnection, MessageSender {
+
+        final ReceiverConnection.Callbacks mCallbacks;
+        boolean mConnecting;
+        boolean mConnected;
+        boolean mAppConnected;
+        boolean mClosed;
+        // Whether an app was ever connected, to tell reconnects from first connects
+        String mLastSessionId;
+
+        Connection(ReceiverConnection.Callbacks callbacks) {
+            mCallbacks = callbacks;
+        }
+
+        @Override
+        public void connect() {
+            if (mClosed || mConnected || mConnecting) {
+                return;
+            }
+            mConnecting = true;
+            later(new Runnable() {
+                @Override
+                public void run() {
+                    if (mClosed || !mConnecting) {
+                        return;
+                    }
+                    mConnecting = false;
+                    if (mFailConnects > 0) {
+                        mFailConnects--;
+                        mCallbacks.onConnectionFailed(mConnectErrorCode);
+                        return;
+                    }
+                    mConnected = true;
+                    boolean noLongerRunning = mLastSessionId != null && !mLastSessionId.equals(mRunningSessionId);
+                    mCallbacks.onConnected(noLongerRunning);
+                }
+            });
+        }
+
+        @Override
+        public void disconnect() {
+            mClosed = true;
+            mConnecting = false;
+            mConnected = false;
+            mAppConnected = false;
+            if (mConnection == this) {
+                mConnection = null;
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public boolean isConnecting() {
+            return mConnecting;
+        }
+
+        @Override
+        public void launchApplication(String appId) {
+            answerApplication(null);
+        }
+
+        @Override
+        public void joinApplication(String appId, String sessionId) {
+            answerApplication(sessionId);
+        }
+
+        private void answerApplication(final String joinSessionId) {
+            later(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mConnected) {
+                        return;
+                    }
+                    if (mLaunchStatusCode != STATUS_SUCCESS) {
+                        mCallbacks.onApplicationFailed(mLaunchStatusCode);
+                        return;
+                    }
+                    if (joinSessionId != null && !joinSessionId.equals(mRunningSessionId)) {
+                        mCallbacks.onApplicationFailed(APPLICATION_NOT_RUNNING);
+                        return;
+                    }
+                    if (joinSessionId == null) {
+                        mRunningSessionId = "fake-session-" + (++mSessionCount);
+                    }
+                    mAppConnected = true;
+                    mLastSessionId = mRunningSessionId;
+                    mCallbacks.onApplicationConnected(mRunningSessionId);
+                }
+            });
+        }
+
+        @Override
+        public void stopApplication(String sessionId) {
+            if (sessionId.equals(mRunningSessionId)) {
+                mRunningSessionId = null;
+            }
+            mAppConnected = false;
+        }
+
+        @Override
+        public void sendMessage(final String namespace, final String message, final Callback callback) {
+            later(new Runnable() {
+                @Override
+                public void run() {
+                    int status = mConnected && mAppConnected ? mSendStatusCode : INTERNAL_ERROR;
+                    if (status == STATUS_SUCCESS) {
+                        mReceived.add(message);
+                        MessageHandler handler = mHandler;
+                        if (handler != null) {
+                            handler.onMessage(FakeReceiver.this, namespace, message);
+                        }
+                    }
+                    callback.onResult(status);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.fake;
+
+import com.manotaurgames.castro.ReceiverConnection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Several {@link FakeReceiver}s behind one factory, picked by route id, for exercising route switches.
+ */
+public final class FakeRoutes implements ReceiverConnection.Factory {
+
+    private final Map<String, FakeReceiver> mReceivers = new HashMap<>();
+
+    public FakeRoutes put(String routeId, FakeReceiver receiver) {
+        mReceivers.put(routeId, receiver);
+        return this;
+    }
+
+    public FakeReceiver get(String routeId) {
+        return mReceivers.get(routeId);
+    }
+
+    /**
+     * @throws IllegalArgumentException for a route nobody registered.
+     */
+    @Override
+    public ReceiverConnection open(String routeId, String deviceId, ReceiverConnection.Callbacks callbacks) {
+        FakeReceiver receiver = mReceivers.get(routeId);
+        if (receiver == null) {
+            throw new IllegalArgumentException("No fake receiver for route " + routeId);
+        }
+        return receiver.open(routeId, deviceId, callbacks);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manotaurgames.castro.fake;
+
+import com.manotaurgames.castro.Scheduler;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} on a virtual clock. Nothing runs until the clock is advanced, so timeouts and
+ * backoff can be stepped through deterministically and benchmarks don't sleep.
+ *
+ * Not thread-safe; everything is expected to happen on the thread driving the clock.
+ */
+public final class ManualScheduler implements Scheduler {
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow;
+    private long mSequence;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mTasks.add(new Task(task, mNow + Math.max(0, delayMs), mSequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        Iterator<Task> it = mTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == task) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return true;
+    }
+
+    /**
+     * @return the number of tasks waiting, due or not.
+     */
+    public int getPendingCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * Run everything that is due now, including tasks those post without delay.
+     * @return the number of tasks run.
+     */
+    public int runPending() {
+        return advance(0);
+    }
+
+    /**
+     * Move the clock forward, running every task that falls due on the way at its own time.
+     * @return the number of tasks run.
+     */
+    public int advance(long ms) {
+        long until = mNow + ms;
+        int count = 0;
+        Task next;
+        while ((next = mTasks.peek()) != null && next.at <= until) {
+            mTasks.poll();
+            mNow = next.at;
+            next.runnable.run();
+            count++;
+        }
+        mNow = until;
+        return count;
+    }
+
+    /**
+     * Run tasks until none are left.
+     * @return the number of tasks run.
+     * @throws IllegalStateException if more than maxTasks were run, e.g. because of a periodic task.
+     */
+    public int runAll(int maxTasks) {
+        int count = 0;
+        Task next;
+        while ((next = mTasks.poll()) != null) {
+            if (++count > maxTasks) {
+                throw new IllegalStateException("still busy after " + maxTasks + " tasks");
+            }
+            mNow = Math.max(mNow, next.at);
+            next.runnable.run();
+        }
+        return count;
+    }
+
+    private static final class Task implements Comparable<Task> {
+
+        final Runnable runnable;
+        final long at;
+        final long sequence;
+
+        Task(Runnable runnable, long at, long sequence) {
+            this.runnable = runnable;
+            this.at = at;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (at != other.at) {
+                return at < other.at ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
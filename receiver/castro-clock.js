@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receiving end of ClockSync: answers pings with the receiver's clock.
+ *
+ *   castroClock(cast.receiver.CastReceiverManager.getInstance());
+ *
+ * Uses performance.now(), so schedule timed actions on the receiver against the same clock.
+ */
+function castroClock(manager) {
+  var bus = manager.getCastMessageBus('urn:x-cast:com.manotaurgames.castro.clock',
+      cast.receiver.CastMessageBus.MessageType.JSON);
+  bus.onMessage = function (event) {
+    var t1 = performance.now();
+    var pings = Array.isArray(event.data) ? event.data.map(JSON.parse) : [event.data];
+    pings.forEach(function (ping) {
+      if (ping && typeof ping.ping === 'number') {
+        bus.send(event.senderId, {pong: ping.ping, t0: ping.t0, t1: t1, t2: performance.now()});
+      }
+    });
+  };
+  return bus;
+}
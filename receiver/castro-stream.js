@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receiving end of CastStream: reassembles chunked payloads and acks them.
+ *
+ *   var manager = cast.receiver.CastReceiverManager.getInstance();
+ *   castroStream(manager, 'urn:x-cast:com.example.game', function (senderId, name, bytes) {
+ *     // bytes is a Uint8Array
+ *   }, function (senderId, message) {
+ *     // anything on the namespace that isn't a chunk
+ *   });
+ *   manager.start();
+ *
+ * State is kept per stream id, not per sender, so a stream resumed after a reconnect, which comes
+ * with a new senderId, picks up where its last ack left off.
+ */
+function castroStream(manager, namespace, onStream, onOther) {
+  var MAX_STREAMS = 16;
+  var bus = manager.getCastMessageBus(namespace, cast.receiver.CastMessageBus.MessageType.JSON);
+  var streams = {}; // stream id -> {id, senderId, name, count, received, chunks, done}
+  var order = []; // stream ids, oldest first
+
+  function ack(senderId, stream, received) {
+    bus.send(senderId, {stream: stream, ack: received});
+  }
+
+  function decode(base64) {
+    var binary = atob(base64);
+    var bytes = new Uint8Array(binary.length);
+    for (var i = 0; i < binary.length; i++) {
+      bytes[i] = binary.charCodeAt(i);
+    }
+    return bytes;
+  }
+
+  function forget(id) {
+    delete streams[id];
+    order.splice(order.indexOf(id), 1);
+  }
+
+  function start(senderId, chunk) {
+    // A sender sends one stream at a time, so a new one replaces whatever it left unfinished
+    order.slice().forEach(function (id) {
+      var other = streams[id];
+      if (other.senderId === senderId && !other.done) {
+        forget(id);
+      }
+    });
+    while (order.length >= MAX_STREAMS) {
+      forget(order[0]);
+    }
+    order.push(chunk.stream);
+    return streams[chunk.stream] = {id: chunk.stream, senderId: senderId, name: null, count: chunk.count,
+                                    received: 0, chunks: [], done: false};
+  }
+
+  function onChunk(senderId, chunk) {
+    var state = streams[chunk.stream];
+    if (!state) {
+      if (chunk.seq !== 0) {
+        // We missed its start, e.g. after a receiver restart, or it's a late chunk of a stream we've
+        // forgotten. The ack of 0 sends the sender back to the first chunk, or is ignored if it's done
+        ack(senderId, chunk.stream, 0);
+        return;
+      }
+      state = start(senderId, chunk);
+    }
+    state.senderId = senderId;
+    if (chunk.seq === 0 && !state.done) {
+      state.name = chunk.name;
+    }
+    if (!state.done && chunk.seq >= state.received && !state.chunks[chunk.seq]) {
+      state.chunks[chunk.seq] = decode(chunk.data);
+      while (state.chunks[state.received]) {
+        state.received++;
+      }
+    }
+    // Every chunk is answered, duplicates after a resend included, so the sender catches up
+    ack(senderId, state.id, state.received);
+    if (state.received === state.count && !state.done) {
+      var length = 0;
+      state.chunks.forEach(function (part) { length += part.length; });
+      var bytes = new Uint8Array(length);
+      var offset = 0;
+      state.chunks.forEach(function (part) {
+        bytes.set(part, offset);
+        offset += part.length;
+      });
+      state.chunks = []; // Keep the id so duplicates are still acked as complete
+      state.done = true;
+      onStream(senderId, state.name, bytes);
+    }
+  }
+
+  function onMessage(senderId, message) {
+    if (message && typeof message.stream === 'number' && typeof message.seq === 'number') {
+      onChunk(senderId, message);
+    } else if (onOther) {
+      onOther(senderId, message);
+    }
+  }
+
+  bus.onMessage = function (event) {
+    if (Array.isArray(event.data)) {
+      // A batched CastChannel frame: an array of messages, each a JSON string
+      event.data.forEach(function (message) {
+        onMessage(event.senderId, JSON.parse(message));
+      });
+    } else {
+      onMessage(event.senderId, event.data);
+    }
+  };
+
+  manager.addEventListener(cast.receiver.CastReceiverManager.EventType.SENDER_DISCONNECTED, function (event) {
+    if (event.reason === cast.receiver.system.DisconnectReason.REQUESTED_BY_SENDER) {
+      order.slice().forEach(function (id) {
+        if (streams[id].senderId === event.senderId) {
+          forget(id);
+        }
+      });
+    }
+  });
+
+  return bus;
+}
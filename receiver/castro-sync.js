@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Manotaur LLC. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receiving end of CastStateSync: applies snapshots and deltas, and asks for a new snapshot on a gap.
+ *
+ *   castroSync(bus, function (senderId, state, changed) {
+ *     // state is the sender's full state, changed the names set or deleted by this frame
+ *   });
+ *
+ * bus is a CastMessageBus of type JSON. Messages that aren't sync frames are left alone, so this can
+ * share the bus with castroStream by calling castroSync.handle from its onOther callback instead.
+ */
+function castroSync(bus, onState) {
+  var senders = {}; // senderId -> {v, state}
+
+  function handle(senderId, message) {
+    if (!message || (message.sync !== 'snapshot' && message.sync !== 'delta')) {
+      return false;
+    }
+    var mirror = senders[senderId];
+    if (message.sync === 'snapshot') {
+      mirror = senders[senderId] = {v: message.v, state: message.state};
+      onState(senderId, mirror.state, Object.keys(mirror.state));
+      return true;
+    }
+    if (!mirror || message.v !== mirror.v + 1) {
+      bus.send(senderId, {sync: 'resync', v: mirror ? mirror.v : 0});
+      return true;
+    }
+    mirror.v = message.v;
+    var changed = [];
+    var name;
+    for (name in message.set || {}) {
+      mirror.state[name] = message.set[name];
+      changed.push(name);
+    }
+    (message.del || []).forEach(function (deleted) {
+      delete mirror.state[deleted];
+      changed.push(deleted);
+    });
+    onState(senderId, mirror.state, changed);
+    return true;
+  }
+
+  if (!bus.onMessage) {
+    bus.onMessage = function (event) {
+      var messages = Array.isArray(event.data) ? event.data.map(JSON.parse) : [event.data];
+      messages.forEach(function (message) {
+        handle(event.senderId, message);
+      });
+    };
+  }
+
+  return {handle: handle};
+}
@@ -25,15 +25,12 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.Toast;
 
-import com.google.android.gms.cast.Cast;
 import com.google.android.gms.cast.Cast.MessageReceivedCallback;
 import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
 import com.manotaurgames.castro.CastActivity;
+import com.manotaurgames.castro.CastChannel;
 
-import java.io.IOException;
 import java.util.ArrayList;
 
 public class MainActivity extends CastActivity {
@@ -42,12 +39,17 @@ public class MainActivity extends CastActivity {
     private static final int REQUEST_CODE = 1;
 
     private HelloWorldChannel mHelloWorldChannel;
+    private CastChannel mCastChannel;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // The router keeps the callback installed across reconnects
+        mHelloWorldChannel = new HelloWorldChannel();
+        getCastLogic().getNamespaceRouter().register(mHelloWorldChannel.getNamespace(), mHelloWorldChannel);
+
         // When the user clicks on the button, use Android voice recognition to
         // get text
         Button voiceButton = (Button) findViewById(R.id.voiceButton);
@@ -93,22 +95,8 @@ public class MainActivity extends CastActivity {
      * Send a text message to the receiver
      */
     private void sendMessage(String message) {
-        GoogleApiClient apiClient = getCastApiClient();
-        if (apiClient != null && mHelloWorldChannel != null) {
-            try {
-                Cast.CastApi.sendMessage(apiClient,
-                        mHelloWorldChannel.getNamespace(), message).setResultCallback(
-                        new ResultCallback<Status>() {
-                            @Override
-                            public void onResult(Status result) {
-                                if (!result.isSuccess()) {
-                                    Log.e(TAG, "Sending message failed");
-                                }
-                            }
-                        });
-            } catch (Exception e) {
-                Log.e(TAG, "Exception while sending message", e);
-            }
+        if (getCastApiClient() != null && mCastChannel != null) {
+            mCastChannel.send(message);
         } else {
             Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show();
         }
@@ -116,29 +104,16 @@ public class MainActivity extends CastActivity {
 
     @Override
     public void onCastConnect(GoogleApiClient apiClient, boolean isReconnect) {
-        if (mHelloWorldChannel == null) mHelloWorldChannel = new HelloWorldChannel();
-        try {
-            Cast.CastApi.setMessageReceivedCallbacks(
-                    apiClient,
-                    mHelloWorldChannel.getNamespace(),
-                    mHelloWorldChannel);
-            sendMessage(getString(R.string.instructions));
-        } catch (IOException e) {
-            Log.e(TAG, "Exception while creating channel", e);
-        }
+        if (mCastChannel == null) mCastChannel = new CastChannel.Builder(mHelloWorldChannel.getNamespace()).build();
+        mCastChannel.attach(apiClient);
+        sendMessage(getString(R.string.instructions));
     }
 
     @Override
     public void onCastDisconnect(GoogleApiClient apiClient) {
-        try {
-            if (mHelloWorldChannel != null) {
-                Cast.CastApi.removeMessageReceivedCallbacks(
-                        apiClient,
-                        mHelloWorldChannel.getNamespace());
-                mHelloWorldChannel = null;
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Exception while removing channel", e);
+        if (mCastChannel != null) {
+            mCastChannel.detach();
+            mCastChannel = null;
         }
     }
 
@@ -33,8 +33,7 @@ import com.google.android.gms.cast.Cast;
 import com.google.android.gms.cast.Cast.MessageReceivedCallback;
 import com.google.android.gms.cast.CastDevice;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
+import com.manotaurgames.castro.CastChannel;
 import com.manotaurgames.castro.CastFragment;
 
 import java.io.IOException;
@@ -46,6 +45,7 @@ public class MainFragment extends CastFragment {
     private static final int REQUEST_CODE = 1;
 
     private HelloWorldChannel mHelloWorldChannel;
+    private CastChannel mCastChannel;
 
     @Nullable
     @Override
@@ -103,22 +103,8 @@ public class MainFragment extends CastFragment {
      * Send a text message to the receiver
      */
     private void sendMessage(String message) {
-        GoogleApiClient apiClient = getCastApiClient();
-        if (apiClient != null && mHelloWorldChannel != null) {
-            try {
-                Cast.CastApi.sendMessage(apiClient,
-                        mHelloWorldChannel.getNamespace(), message).setResultCallback(
-                        new ResultCallback<Status>() {
-                            @Override
-                            public void onResult(Status result) {
-                                if (!result.isSuccess()) {
-                                    Log.e(TAG, "Sending message failed");
-                                }
-                            }
-                        });
-            } catch (Exception e) {
-                Log.e(TAG, "Exception while sending message", e);
-            }
+        if (getCastApiClient() != null && mCastChannel != null) {
+            mCastChannel.send(message);
         } else {
             Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
         }
@@ -127,11 +113,13 @@ public class MainFragment extends CastFragment {
     @Override
     public void onCastConnect(GoogleApiClient apiClient, boolean isReconnect) {
         if (mHelloWorldChannel == null) mHelloWorldChannel = new HelloWorldChannel();
+        if (mCastChannel == null) mCastChannel = new CastChannel.Builder(mHelloWorldChannel.getNamespace()).build();
         try {
             Cast.CastApi.setMessageReceivedCallbacks(
                     apiClient,
                     mHelloWorldChannel.getNamespace(),
                     mHelloWorldChannel);
+            mCastChannel.attach(apiClient);
             sendMessage(getString(R.string.instructions));
         } catch (IOException e) {
             Log.e(TAG, "Exception while creating channel", e);
@@ -140,6 +128,10 @@ public class MainFragment extends CastFragment {
 
     @Override
     public void onCastDisconnect(GoogleApiClient apiClient) {
+        if (mCastChannel != null) {
+            mCastChannel.detach();
+            mCastChannel = null;
+        }
         try {
             if (mHelloWorldChannel != null) {
                 Cast.CastApi.removeMessageReceivedCallbacks(